@@ -0,0 +1,51 @@
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+// Exposes the default-package classes under test to the benchmarks in package bench.
+public class BenchTargets implements bench.Targets
+{
+    @Override
+    public MessageHandler newHandler()
+    {
+        ClientHandler handler = new ClientHandler(new NullChannel(), new Responder());
+        return handler::handleMessage;
+    }
+
+    @Override
+    public byte[] respond(byte code)
+    {
+        ByteBuffer response = new Responder().respond(code);
+        byte[] bytes = new byte[response.remaining()];
+        response.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public byte[] frame(byte[] payload)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER_SIZE + payload.length);
+        frame.put(Frame.header(Protocol.STATUS_OK, payload.length));
+        frame.put(payload);
+        return frame.array();
+    }
+
+    @Override
+    public String readAll(byte[] response) throws Exception
+    {
+        return Project1Client.readAll(new ByteArrayInputStream(response)).getText();
+    }
+
+    @Override
+    public String decodeFrame(byte[] frame) throws Exception
+    {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.feed(frame, 0, frame.length);
+        return decoder.poll().getText();
+    }
+
+    @Override
+    public Object parseOperation(String input)
+    {
+        return Project1Client.parseOperation(input);
+    }
+}
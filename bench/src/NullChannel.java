@@ -0,0 +1,48 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+// An in-memory stand-in for a client socket that is always ready: it accepts and discards everything written to it.
+public class NullChannel implements GatheringByteChannel
+{
+    private long bytesWritten;
+
+    @Override
+    public int write(ByteBuffer src)
+    {
+        int n = src.remaining();
+        src.position(src.limit());
+        bytesWritten += n;
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+    {
+        long n = 0;
+        for (int i = offset; i < offset + length; ++i)
+            n += write(srcs[i]);
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs)
+    {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return true;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
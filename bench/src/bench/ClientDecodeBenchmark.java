@@ -0,0 +1,47 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Measures the client turning a response that has already arrived into text,
+ * both as a single-shot reply (Project1Client.readAll) and as a keep-alive frame (FrameDecoder).
+ * The responses are captured from this machine once, at setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientDecodeBenchmark
+{
+    // date, memory, ps: a short, a medium and a long response.
+    @Param({ "11", "33", "66" })
+    public String opcode;
+
+    private Targets targets;
+    private byte[] raw;
+    private byte[] framed;
+
+    @Setup
+    public void setUp()
+    {
+        targets = Targets.get();
+        raw = targets.respond((byte)Integer.parseInt(opcode, 16));
+        framed = targets.frame(raw);
+    }
+
+    @Benchmark
+    public String readAll() throws Exception
+    {
+        return targets.readAll(raw);
+    }
+
+    @Benchmark
+    public String decodeFrame() throws Exception
+    {
+        return targets.decodeFrame(framed);
+    }
+}
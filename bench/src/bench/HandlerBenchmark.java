@@ -0,0 +1,38 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Measures ClientHandler.handleMessage answering one single-shot request, from collecting the response to writing it,
+ * with the socket replaced by an in-memory channel so only the server's own work is timed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark
+{
+    // date, uptime, memory, netstat, users, ps
+    @Param({ "11", "22", "33", "44", "55", "66" })
+    public String opcode;
+
+    private byte code;
+    private Targets.MessageHandler handler;
+
+    @Setup
+    public void setUp()
+    {
+        code = (byte)Integer.parseInt(opcode, 16);
+        handler = Targets.get().newHandler();
+    }
+
+    @Benchmark
+    public boolean handleMessage()
+    {
+        return handler.handleMessage(code);
+    }
+}
@@ -0,0 +1,32 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Measures Project1Client.parseOperation on menu numbers, nicknames, and input that matches nothing.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseOperationBenchmark
+{
+    @Param({ "1", "6.", "date", "mem", "processes", "bogus" })
+    public String input;
+
+    private Targets targets;
+
+    @Setup
+    public void setUp()
+    {
+        targets = Targets.get();
+    }
+
+    @Benchmark
+    public Object parseOperation()
+    {
+        return targets.parseOperation(input);
+    }
+}
@@ -0,0 +1,41 @@
+package bench;
+
+/*
+ * The code under test, seen from the benchmarks.
+ * The application's classes are in the default package, which JMH benchmarks (required to be in a named package) cannot import,
+ * so the default-package BenchTargets class implements this interface and the benchmarks call through it.
+ */
+public interface Targets
+{
+    static Targets get()
+    {
+        try {
+            return (Targets)Class.forName("BenchTargets").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("BenchTargets is missing from the class path.", ex);
+        }
+    }
+
+    interface MessageHandler
+    {
+        boolean handleMessage(byte code);
+    }
+
+    // A ClientHandler that writes to an in-memory channel which accepts everything.
+    MessageHandler newHandler();
+
+    // The single-shot response the server would send for the opcode.
+    byte[] respond(byte code);
+
+    // The payload wrapped in an OK keep-alive frame.
+    byte[] frame(byte[] payload);
+
+    // Decodes a single-shot response with Project1Client.readAll.
+    String readAll(byte[] response) throws Exception;
+
+    // Decodes one keep-alive frame with FrameDecoder.
+    String decodeFrame(byte[] frame) throws Exception;
+
+    // Project1Client.parseOperation, returning the Operation or null.
+    Object parseOperation(String input);
+}
@@ -0,0 +1,142 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Caps how many requests the server works on at once: overall, and for each opcode on its own,
+ * so a flood of one expensive opcode (say, processes) can't take every slot from the cheap ones.
+ * A request over either limit is shed: the server answers it at once with BUSY (see Protocol) instead of queuing it,
+ * so the client can back off and retry rather than wait for a timeout.
+ * A structured opcode shares its plain opcode's limit. STATS is never shed, so an overloaded server can still be inspected.
+ * Set the limits before the server starts; admitting and releasing is then safe from any number of threads.
+ */
+public class AdmissionControl {
+
+    // Admits everything, for a server without limits.
+    public static final AdmissionControl UNLIMITED = new AdmissionControl(Integer.MAX_VALUE);
+
+    private final int maxInFlight;
+    private final int[] limits = new int[256]; // By plain opcode. 0 means the opcode has no limit of its own.
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicIntegerArray inFlightByOpcode = new AtomicIntegerArray(256);
+    private final Permit[] permits = new Permit[256]; // Each opcode's permit, which can be shared as it holds no state.
+    private final Permit NONE = new Permit(new int[0]); // Held by requests that no limit applies to.
+    private boolean limited;
+
+    // @param maxInFlight   How many requests may be worked on at once, counting a batch as one.
+    public AdmissionControl(int maxInFlight)
+    {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("Maximum in-flight requests must be positive.");
+        this.maxInFlight = maxInFlight;
+        limited = maxInFlight != Integer.MAX_VALUE;
+        for (int i = 0; i < permits.length; ++i)
+            permits[i] = new Permit(new int[] { i });
+    }
+
+    // Caps how many requests for the opcode (in either form) may be worked on at once.
+    public void setLimit(byte code, int max)
+    {
+        if (max < 1)
+            throw new IllegalArgumentException("Opcode limit must be positive.");
+        if (this == UNLIMITED)
+            throw new UnsupportedOperationException("Cannot limit UNLIMITED.");
+        limits[Structured.plain(code) & 0xFF] = max;
+        limited = true;
+    }
+
+    // Returns the opcode's own limit, or 0 if it has none.
+    public int getLimit(byte code)
+    {
+        return limits[Structured.plain(code) & 0xFF];
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    // Returns how many requests are being worked on now.
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    // What an admitted request holds until it is answered.
+    public class Permit
+    {
+        private final int[] opcodes; // Distinct plain opcodes.
+
+        private Permit(int[] opcodes)
+        {
+            this.opcodes = opcodes;
+        }
+
+        // Gives back the request's slots. Call exactly once, after its reply is written (or abandoned).
+        public void release()
+        {
+            if (this == NONE)
+                return;
+            for (int i : opcodes)
+            {
+                if (limits[i] > 0)
+                    inFlightByOpcode.decrementAndGet(i);
+            }
+            inFlight.decrementAndGet();
+        }
+    }
+
+    // Admits a request for the opcode, returning its permit, or returns null if it should be shed.
+    public Permit admit(byte code)
+    {
+        if (!limited || code == Protocol.STATS)
+            return NONE;
+        return admit(permits[Structured.plain(code) & 0xFF]);
+    }
+
+    // Admits a batch as one request that counts against the limit of each opcode in it, or returns null if it should be shed.
+    public Permit admitBatch(byte[] codes)
+    {
+        if (!limited)
+            return NONE;
+        int[] distinct = new int[codes.length];
+        int n = 0;
+        outer:
+        for (byte code : codes)
+        {
+            int i = Structured.plain(code) & 0xFF;
+            for (int k = 0; k < n; ++k)
+            {
+                if (distinct[k] == i)
+                    continue outer;
+            }
+            distinct[n++] = i;
+        }
+        return admit(new Permit(Arrays.copyOf(distinct, n)));
+    }
+
+    private Permit admit(Permit p)
+    {
+        if (inFlight.incrementAndGet() > maxInFlight)
+        {
+            inFlight.decrementAndGet();
+            return null;
+        }
+        for (int k = 0; k < p.opcodes.length; ++k)
+        {
+            int i = p.opcodes[k];
+            if (limits[i] > 0 && inFlightByOpcode.incrementAndGet(i) > limits[i])
+            {
+                // Give back this opcode's slot and those taken before it.
+                for (int j = k; j >= 0; --j)
+                {
+                    if (limits[p.opcodes[j]] > 0)
+                        inFlightByOpcode.decrementAndGet(p.opcodes[j]);
+                }
+                inFlight.decrementAndGet();
+                return null;
+            }
+        }
+        return p;
+    }
+}
@@ -0,0 +1,400 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/*
+ * A keep-alive connection (protocol version 2) driven by an AsynchronousSocketChannel, so requests never block the caller.
+ * Any number of requests may be in flight at once: they are written in the order they were made,
+ * and since the server answers in order, each reply completes the oldest outstanding future.
+ * The channel group's threads do all the I/O and complete the futures, so a few threads can serve many sessions.
+ */
+public class AsyncSession {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final AsynchronousSocketChannel channel;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    // Guarded by this.
+    private final ArrayDeque<CompletableFuture<Response>> pending = new ArrayDeque<>();
+    private ByteBuffer writing;     // Being written by the channel, or null if no write is in progress.
+    private ByteBuffer queued = ByteBuffer.allocate(64); // Requests made while a write was in progress.
+    private IOException failure;    // Why the session stopped working, or null while it works.
+    private final byte features;    // The optional features the server accepted.
+
+    private AsyncSession(AsynchronousSocketChannel channel, byte features)
+    {
+        this.channel = channel;
+        this.features = features;
+    }
+
+    /*
+     * Connects and negotiates a session. The future completes with null if the server only supports single-shot requests.
+     * @param group   The channel group whose threads do the I/O, or null for the JVM's default group.
+     */
+    public static CompletableFuture<AsyncSession> open(AsynchronousChannelGroup group, InetSocketAddress address)
+    {
+        return open(group, address, Protocol.DEFAULT_CLIENT_FEATURES);
+    }
+
+    // Like open(group, address), offering the given optional features (see Protocol).
+    public static CompletableFuture<AsyncSession> open(AsynchronousChannelGroup group, InetSocketAddress address, byte features)
+    {
+        AsynchronousSocketChannel ch;
+        try {
+            ch = AsynchronousSocketChannel.open(group);
+        } catch (IOException ex) {
+            return failed(ex);
+        }
+        ByteBuffer hello = ByteBuffer.wrap(new byte[] { Protocol.HELLO, Protocol.CURRENT_VERSION, features });
+        ByteBuffer answer = ByteBuffer.allocate(3);
+        CompletableFuture<AsyncSession> result = connect(ch, address)
+                .thenCompose(v -> writeFully(ch, hello))
+                .thenCompose(v -> readFully(ch, answer))
+                .thenApply(complete -> {
+                    if (answer.position() > 0 && answer.get(0) == Protocol.BUSY)
+                        throw new CompletionException(new IOException("Server is busy."));
+                    // A single-shot server treats HELLO as an unknown opcode and hangs up without replying.
+                    if (!complete || answer.get(0) != Protocol.HELLO || answer.get(1) < Protocol.VERSION_KEEP_ALIVE)
+                    {
+                        closeQuietly(ch);
+                        return null;
+                    }
+                    AsyncSession s = new AsyncSession(ch, answer.get(2));
+                    s.readMore();
+                    return s;
+                });
+        result.whenComplete((s, ex) -> {
+            if (ex != null)
+                closeQuietly(ch);
+        });
+        return result;
+    }
+
+    // Sends a request. The future completes with the reply, or exceptionally if the session fails first.
+    // A batch goes to a server that doesn't take batches as separate requests whose replies are put together,
+    // and a delta request as a request for the whole listing.
+    public CompletableFuture<Response> request(Project1Client.Operation op)
+    {
+        if (op.isDelta())
+        {
+            if ((features & Protocol.FEATURE_DELTA) == 0)
+                return send(new byte[] { op.getCode() });
+            return send(op.getRequest()).thenCompose(r -> complete(op, r));
+        }
+        if (!op.isBatch() || (features & Protocol.FEATURE_BATCH) != 0)
+            return send(op.getRequest());
+        byte[] codes = op.getBatchCodes();
+        return requestEach(codes, codes.length).thenApply(parts -> Batch.combine(codes, parts));
+    }
+
+    // Turns the reply to an operation's request into its response (see Project1Client.Operation.complete).
+    private static CompletableFuture<Response> complete(Project1Client.Operation op, Response r)
+    {
+        try {
+            return CompletableFuture.completedFuture(op.complete(r));
+        } catch (IOException ex) {
+            return failed(ex);
+        }
+    }
+
+    // Sends the first count opcodes as separate requests, all at once, and collects their replies in order.
+    private CompletableFuture<List<Response>> requestEach(byte[] codes, int count)
+    {
+        if (count == 0)
+            return CompletableFuture.completedFuture(new ArrayList<>(codes.length));
+        CompletableFuture<List<Response>> earlier = requestEach(codes, count - 1);
+        CompletableFuture<Response> last = send(new byte[] { codes[count - 1] });
+        return earlier.thenCombine(last, (list, r) -> {
+            list.add(r);
+            return list;
+        });
+    }
+
+    // Writes one request's bytes. The future completes with the reply.
+    private CompletableFuture<Response> send(byte[] request)
+    {
+        CompletableFuture<Response> reply = new CompletableFuture<>();
+        ByteBuffer toWrite = null;
+        synchronized (this)
+        {
+            if (failure != null)
+            {
+                reply.completeExceptionally(failure);
+                return reply;
+            }
+            pending.add(reply);
+            if (writing == null)
+            {
+                writing = ByteBuffer.wrap(request);
+                toWrite = writing;
+            }
+            else
+            {
+                if (queued.remaining() < request.length)
+                {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(queued.capacity() * 2, queued.position() + request.length));
+                    queued.flip();
+                    bigger.put(queued);
+                    queued = bigger;
+                }
+                queued.put(request);
+            }
+        }
+        if (toWrite != null)
+            channel.write(toWrite, null, writeHandler);
+        return reply;
+    }
+
+    // Returns how many requests are waiting for replies.
+    public synchronized int getOutstanding()
+    {
+        return pending.size();
+    }
+
+    // Returns whether the session has failed or been closed, after which every request fails.
+    public synchronized boolean isBroken()
+    {
+        return failure != null;
+    }
+
+    // Closes the connection. Requests still waiting for replies fail.
+    public void close()
+    {
+        fail(new IOException("Session closed."));
+    }
+
+    private final CompletionHandler<Integer, Void> writeHandler = new CompletionHandler<Integer, Void>() {
+        @Override
+        public void completed(Integer n, Void attachment)
+        {
+            ByteBuffer next;
+            synchronized (AsyncSession.this)
+            {
+                if (failure != null)
+                    return;
+                if (!writing.hasRemaining())
+                {
+                    if (queued.position() == 0)
+                    {
+                        writing = null;
+                        return;
+                    }
+                    // Swap buffers: write everything queued meanwhile in one go.
+                    ByteBuffer done = writing;
+                    queued.flip();
+                    writing = queued;
+                    queued = done.capacity() >= 64 ? done : ByteBuffer.allocate(64);
+                    queued.clear();
+                }
+                next = writing;
+            }
+            channel.write(next, null, this);
+        }
+
+        @Override
+        public void failed(Throwable ex, Void attachment)
+        {
+            fail(asIOException(ex));
+        }
+    };
+
+    private void readMore()
+    {
+        readBuf.clear();
+        channel.read(readBuf, null, readHandler);
+    }
+
+    private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+        @Override
+        public void completed(Integer n, Void attachment)
+        {
+            if (n == -1)
+            {
+                fail(new EOFException("Server closed the connection."));
+                return;
+            }
+            List<CompletableFuture<Response>> done = new ArrayList<>();
+            List<Response> replies = new ArrayList<>();
+            try {
+                readBuf.flip();
+                decoder.feed(readBuf);
+                Response r;
+                synchronized (AsyncSession.this)
+                {
+                    while ((r = decoder.poll()) != null)
+                    {
+                        CompletableFuture<Response> f = pending.poll();
+                        if (f == null)
+                            throw new IOException("Server sent a reply nobody asked for.");
+                        done.add(f);
+                        replies.add(r);
+                    }
+                }
+            } catch (IOException ex) {
+                fail(ex);
+                return;
+            }
+            // Complete outside the lock: callers' continuations may run right here and make new requests.
+            for (int i = 0; i < done.size(); ++i)
+                done.get(i).complete(replies.get(i));
+            readMore();
+        }
+
+        @Override
+        public void failed(Throwable ex, Void attachment)
+        {
+            fail(asIOException(ex));
+        }
+    };
+
+    private void fail(IOException ex)
+    {
+        List<CompletableFuture<Response>> waiting;
+        synchronized (this)
+        {
+            if (failure != null)
+                return;
+            failure = ex;
+            waiting = new ArrayList<>(pending);
+            pending.clear();
+        }
+        closeQuietly(channel);
+        for (CompletableFuture<Response> f : waiting)
+            f.completeExceptionally(ex);
+    }
+
+    /*
+     * Sends a request on a connection of its own (protocol version 1), reading the reply until the server hangs up.
+     * @param group   The channel group whose threads do the I/O, or null for the JVM's default group.
+     */
+    public static CompletableFuture<Response> requestSingleShot(AsynchronousChannelGroup group, InetSocketAddress address, Project1Client.Operation op)
+    {
+        CompletableFuture<Response> whole = requestSingleShot(group, address, op.getRequest());
+        if (op.isDelta())
+        {
+            // A server that doesn't know deltas hangs up without answering. Ask for the whole listing.
+            return whole.thenCompose(r -> !r.isOk() ? CompletableFuture.completedFuture(r)
+                    : r.getSize() != 0 ? complete(op, r) : requestSingleShot(group, address, new byte[] { op.getCode() }));
+        }
+        if (!op.isBatch())
+            return whole;
+        // A server that doesn't know batches hangs up without answering. Ask for each part on its own.
+        byte[] codes = op.getBatchCodes();
+        return whole.thenCompose(r -> {
+            if (!r.isOk() || r.getSize() != 0)
+                return CompletableFuture.completedFuture(r);
+            List<CompletableFuture<Response>> parts = new ArrayList<>(codes.length);
+            for (byte code : codes)
+                parts.add(requestSingleShot(group, address, new byte[] { code }));
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                List<Response> replies = new ArrayList<>(codes.length);
+                for (CompletableFuture<Response> f : parts)
+                    replies.add(f.join());
+                return Batch.combine(codes, replies);
+            });
+        });
+    }
+
+    private static CompletableFuture<Response> requestSingleShot(AsynchronousChannelGroup group, InetSocketAddress address, byte[] request)
+    {
+        AsynchronousSocketChannel ch;
+        try {
+            ch = AsynchronousSocketChannel.open(group);
+        } catch (IOException ex) {
+            return failed(ex);
+        }
+        CompletableFuture<Response> result = connect(ch, address)
+                .thenCompose(v -> writeFully(ch, ByteBuffer.wrap(request)))
+                .thenCompose(v -> readToEnd(ch, ByteBuffer.allocate(READ_BUFFER_SIZE), new ByteArrayOutputStream(), 0));
+        result.whenComplete((r, ex) -> closeQuietly(ch));
+        return result;
+    }
+
+    private static CompletableFuture<Response> readToEnd(AsynchronousSocketChannel ch, ByteBuffer buf, ByteArrayOutputStream all, long firstByteTime)
+    {
+        buf.clear();
+        return read(ch, buf).thenCompose(n -> {
+            if (n == -1)
+                return CompletableFuture.completedFuture(Project1Client.singleShotResponse(all.toByteArray(), firstByteTime));
+            all.write(buf.array(), 0, n);
+            return readToEnd(ch, buf, all, firstByteTime == 0 && n > 0 ? System.nanoTime() : firstByteTime);
+        });
+    }
+
+    private static CompletableFuture<Void> connect(AsynchronousSocketChannel ch, InetSocketAddress address)
+    {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        ch.connect(address, f, new Completer<Void>());
+        return f;
+    }
+
+    private static CompletableFuture<Integer> read(AsynchronousSocketChannel ch, ByteBuffer buf)
+    {
+        CompletableFuture<Integer> f = new CompletableFuture<>();
+        ch.read(buf, f, new Completer<Integer>());
+        return f;
+    }
+
+    private static CompletableFuture<Void> writeFully(AsynchronousSocketChannel ch, ByteBuffer buf)
+    {
+        CompletableFuture<Integer> f = new CompletableFuture<>();
+        ch.write(buf, f, new Completer<Integer>());
+        return f.thenCompose(n -> buf.hasRemaining() ? writeFully(ch, buf) : CompletableFuture.completedFuture(null));
+    }
+
+    // Completes with true once buf is full, or false if the stream ends first.
+    private static CompletableFuture<Boolean> readFully(AsynchronousSocketChannel ch, ByteBuffer buf)
+    {
+        return read(ch, buf).thenCompose(n -> {
+            if (n == -1)
+                return CompletableFuture.completedFuture(false);
+            return buf.hasRemaining() ? readFully(ch, buf) : CompletableFuture.completedFuture(true);
+        });
+    }
+
+    // Completes the future it is given with the outcome of an asynchronous operation.
+    private static class Completer<V> implements CompletionHandler<V, CompletableFuture<V>> {
+        @Override
+        public void completed(V result, CompletableFuture<V> f)
+        {
+            f.complete(result);
+        }
+
+        @Override
+        public void failed(Throwable ex, CompletableFuture<V> f)
+        {
+            f.completeExceptionally(ex);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable ex)
+    {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(ex);
+        return f;
+    }
+
+    private static IOException asIOException(Throwable ex)
+    {
+        return ex instanceof IOException ? (IOException)ex : new IOException(ex);
+    }
+
+    private static void closeQuietly(AsynchronousSocketChannel ch)
+    {
+        try {
+            ch.close();
+        } catch (IOException ex) { } // Ignore exception when closing.
+    }
+}
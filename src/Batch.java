@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The wire format of batches (see Protocol).
+ * A request is BATCH, a count, and that many opcodes.
+ * The reply holds one item per opcode, in the order they were asked for:
+ * the opcode, a status byte (as in Frame), a 4-byte big-endian length, and that many bytes of payload.
+ */
+public final class Batch {
+
+    private Batch() { }
+
+    public static final int MAX_ITEMS = 16;
+    public static final int ITEM_HEADER_SIZE = 6;
+
+    // One answer from a batch reply.
+    public static class Item
+    {
+        final byte code;
+        final Response response;
+
+        Item(byte code, Response response)
+        {
+            this.code = code;
+            this.response = response;
+        }
+
+        public byte getCode()
+        {
+            return code;
+        }
+
+        public Response getResponse()
+        {
+            return response;
+        }
+    }
+
+    // Returns the bytes of a request for the given opcodes.
+    public static byte[] request(byte[] codes)
+    {
+        if (codes.length < 1 || codes.length > MAX_ITEMS)
+            throw new IllegalArgumentException("A batch holds 1 to " + MAX_ITEMS + " opcodes.");
+        byte[] req = new byte[codes.length + 2];
+        req[0] = Protocol.BATCH;
+        req[1] = (byte)codes.length;
+        System.arraycopy(codes, 0, req, 2, codes.length);
+        return req;
+    }
+
+    // Returns true iff a batch may hold the given number of opcodes.
+    public static boolean isValidCount(int count)
+    {
+        return count >= 1 && count <= MAX_ITEMS;
+    }
+
+    // Builds a reply from the answer to each opcode. Consumes the payloads.
+    public static ByteBuffer encode(byte[] codes, byte[] statuses, ByteBuffer[] payloads)
+    {
+        int size = 0;
+        for (ByteBuffer p : payloads)
+            size += ITEM_HEADER_SIZE + p.remaining();
+        ByteBuffer reply = ByteBuffer.allocate(size);
+        for (int i = 0; i < codes.length; ++i)
+        {
+            reply.put(codes[i]);
+            reply.put(statuses[i]);
+            reply.putInt(payloads[i].remaining());
+            reply.put(payloads[i]);
+        }
+        reply.flip();
+        return reply;
+    }
+
+    // Builds a reply from responses to the opcodes that were requested one by one, for a server that doesn't take batches.
+    public static Response combine(byte[] codes, List<Response> responses)
+    {
+        byte[] statuses = new byte[codes.length];
+        ByteBuffer[] payloads = new ByteBuffer[codes.length];
+        long firstByteTime = 0;
+        long wireSize = 0;
+        for (int i = 0; i < codes.length; ++i)
+        {
+            Response r = responses.get(i);
+            wireSize += r.getWireSize();
+            statuses[i] = r.getStatus();
+            payloads[i] = ByteBuffer.wrap(r.getBody());
+            if (firstByteTime == 0 || (r.getFirstByteTime() != 0 && r.getFirstByteTime() - firstByteTime < 0))
+                firstByteTime = r.getFirstByteTime();
+        }
+        ByteBuffer reply = encode(codes, statuses, payloads);
+        return new Response(Protocol.STATUS_OK, reply.array(), firstByteTime, wireSize);
+    }
+
+    // Splits a reply into its items.
+    public static List<Item> decode(byte[] reply) throws IOException
+    {
+        List<Item> items = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.wrap(reply);
+        while (in.hasRemaining())
+        {
+            if (in.remaining() < ITEM_HEADER_SIZE)
+                throw new IOException("Truncated batch reply.");
+            byte code = in.get();
+            byte status = in.get();
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining())
+                throw new IOException(String.format("Malformed batch item length %d.", length));
+            byte[] body = new byte[length];
+            in.get(body);
+            items.add(new Item(code, new Response(status, body, 0)));
+        }
+        return items;
+    }
+}
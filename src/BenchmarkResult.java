@@ -1,13 +1,33 @@
 public class BenchmarkResult {
     boolean success;
     long responseSize;
+    long wireSize;
     long duration;
+    long timeToFirstByte;
 
     public BenchmarkResult(boolean success, long responseSize, long duration)
+    {
+        this(success, responseSize, duration, -1);
+    }
+
+    /*
+     * @param duration          Nanoseconds from sending the request to receiving all of the response.
+     * @param timeToFirstByte   Nanoseconds from sending the request to receiving the first byte of the response, or -1 if unknown.
+     */
+    public BenchmarkResult(boolean success, long responseSize, long duration, long timeToFirstByte)
     {
         this.success = success;
         this.responseSize = responseSize;
+        this.wireSize = responseSize;
         this.duration = duration;
+        this.timeToFirstByte = timeToFirstByte;
+    }
+
+    // The result of a request that got the given response.
+    public BenchmarkResult(Response response, long duration, long timeToFirstByte)
+    {
+        this(response.isOk(), response.getSize(), duration, timeToFirstByte);
+        wireSize = response.getWireSize();
     }
 
     public boolean wasSuccess()
@@ -15,13 +35,27 @@ public class BenchmarkResult {
         return success;
     }
 
+    // Returns the size of the response once decoded (decompressed, without frame headers).
     public long getResponseSize()
     {
         return responseSize;
     }
 
+    // Returns how many bytes the response took on the wire, counting frame headers and before decompression.
+    public long getWireSize()
+    {
+        return wireSize;
+    }
+
+    // Returns nanoseconds until all of the response arrived.
     public long getDuration()
     {
         return duration;
     }
+
+    // Returns nanoseconds until the first byte of the response arrived, or -1 if unknown.
+    public long getTimeToFirstByte()
+    {
+        return timeToFirstByte;
+    }
 }
@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Keeps the server's expensive work in separate compartments, so a flood of one kind of request can't hold up the others.
+ * Requests are cheap (date, uptime, stats, and cache hits), which are answered right where they are read:
+ * on the NIO event loop, or on the client's own thread. Or they are expensive (the opcodes that run a command or scan /proc),
+ * and each such opcode has a small pool of its own, as do batches. So a flood of processes requests only ties up the processes pool,
+ * while date never waits and netstat keeps its own threads.
+ * By default the pools' queues are unbounded, so every request is eventually answered, as it was before bulkheads.
+ * Servers with admission control (see AdmissionControl) bound them instead, and a request whose pool's queue is full is shed with BUSY.
+ * Threads are daemons, start on demand and exit when idle.
+ */
+public class Bulkheads {
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64; // With admission control.
+    public static final int UNBOUNDED = Integer.MAX_VALUE; // A queue capacity that never sheds.
+    private static final long IDLE_SECONDS = 30;
+
+    private final ThreadPoolExecutor[] pools = new ThreadPoolExecutor[256]; // By plain opcode; null for cheap ones.
+    private final ThreadPoolExecutor batches;
+    private final int threads;
+    private final int queueCapacity;
+
+    // @param threads         How many requests of each expensive opcode (and how many batches) run at once.
+    // @param queueCapacity   How many more of each may wait, or UNBOUNDED.
+    public Bulkheads(int threads, int queueCapacity)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException("Bulkhead thread count must be positive.");
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("Bulkhead queue capacity must be positive.");
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        for (int code = 0; code < 0x80; ++code)
+        {
+            if (ServerCommands.isSlow((byte)code))
+                pools[code] = newPool(ServerCommands.nameOf((byte)code));
+        }
+        batches = newPool(ServerCommands.nameOf(Protocol.BATCH));
+    }
+
+    private ThreadPoolExecutor newPool(String name)
+    {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+                queueCapacity == UNBOUNDED ? new LinkedBlockingQueue<Runnable>() : new ArrayBlockingQueue<Runnable>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "Bulkhead " + name);
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Returns the pool that runs requests for the opcode (in either form), the batch pool for BATCH, or null for cheap opcodes.
+    public ThreadPoolExecutor forOpcode(byte code)
+    {
+        if (code == Protocol.BATCH)
+            return batches;
+        return pools[Structured.plain(code) & 0xFF];
+    }
+
+    // Waits for a response produced in a bulkhead, rethrowing whatever producing it threw,
+    // including RejectedExecutionException if its bulkhead had no room.
+    public static <T> T await(Future<T> f) throws IOException
+    {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a response.");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new IOException(cause);
+        }
+    }
+
+    // Returns how many requests are waiting in all of the pools.
+    public int getQueueDepth()
+    {
+        int depth = batches.getQueue().size();
+        for (ThreadPoolExecutor pool : pools)
+        {
+            if (pool != null)
+                depth += pool.getQueue().size();
+        }
+        return depth;
+    }
+
+    // Describes the pools, for the server's startup message.
+    public String describe()
+    {
+        if (queueCapacity == UNBOUNDED)
+            return String.format("bulkheads of %d threads and an unbounded queue for each expensive opcode and for batches", threads);
+        return String.format("bulkheads of %d threads and %d queue slots for each expensive opcode and for batches", threads, queueCapacity);
+    }
+
+    // Returns a line for each pool that has been used: how many of its requests are running and waiting.
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int code = 0; code <= pools.length; ++code)
+        {
+            ThreadPoolExecutor pool = code == pools.length ? batches : pools[code];
+            if (pool == null || pool.getTaskCount() == 0)
+                continue;
+            sb.append(String.format("bulkhead %-10s running=%d queued=%d completed=%d\n",
+                    code == pools.length ? ServerCommands.nameOf(Protocol.BATCH) : ServerCommands.nameOf((byte)code),
+                    pool.getActiveCount(), pool.getQueue().size(), pool.getCompletedTaskCount()));
+        }
+        return sb.toString();
+    }
+}
@@ -1,23 +1,55 @@
 
 import java.net.*;
 import java.io.*;
-import java.nio.CharBuffer;
-import java.nio.charset.StandardCharsets;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.util.HashSet;
-import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable {
+
+    // How long a keep-alive session may sit idle before the server closes it, so idle clients don't hold threads forever.
+    public static final int SESSION_IDLE_TIMEOUT_MS = 60000;
+    // The same for the pool engine, where each idle session holds one of a few workers, so they are let go much sooner.
+    public static final int POOL_SESSION_IDLE_TIMEOUT_MS = 5000;
 
     private Socket client;
-    private OutputStream write;
+    private GatheringByteChannel write;
+    private Responder responder;
+    private final ServerMetrics metrics = ServerMetrics.get();
+    private int compressAt = Compression.NEVER; // Session payloads at least this long are compressed.
+    private int sessionIdleTimeoutMs = SESSION_IDLE_TIMEOUT_MS;
+    private BooleanSupplier sessionsAllowed = () -> true;
 
-    public ClientHandler(Socket client) throws IOException {
+    // The socket must have a channel (i.e. come from a ServerSocketChannel), which responses are written through.
+    public ClientHandler(Socket client, Responder responder) throws IOException {
         this.client = client;
-        write = client.getOutputStream();
+        this.responder = responder;
+        write = client.getChannel();
+        if (write == null)
+            throw new IllegalArgumentException("Client socket has no channel.");
+    }
+
+    // Writes responses to the given channel without a socket, so handleMessage can be benchmarked in memory.
+    ClientHandler(GatheringByteChannel write, Responder responder) {
+        this.write = write;
+        this.responder = responder;
+    }
+
+    // Sets how long a keep-alive session may sit idle before it is closed. Call before running the handler.
+    public void setSessionIdleTimeout(int milliseconds) {
+        sessionIdleTimeoutMs = milliseconds;
+    }
+
+    // Sets what says whether a HELLO may start a keep-alive session now. When it says no, the handler answers
+    // with version 1 and hangs up, so the client falls back to single-shot requests. Call before running the handler.
+    public void setSessionsAllowed(BooleanSupplier allowed) {
+        sessionsAllowed = allowed;
     }
 
     private Set<Consumer<ClientHandler>> termListeners = new HashSet<>();
@@ -28,21 +60,54 @@ public class ClientHandler extends Thread {
     @Override
     public void run() {
         try {
-            InputStream read = client.getInputStream();
+            InputStream read = new BufferedInputStream(client.getInputStream(), 256);
             int message = read.read();
             if (message == -1) {
                 // This means client has disconnected.
                 return; // Jump to finally...
             }
-            boolean success = handleMessage((byte) message);
-            if (!success) {
-                System.out.println("Message could not be handled successfully.");
+            if (message == Protocol.HELLO) {
+                runSession(read);
+                return;
+            }
+            long start = System.nanoTime();
+            byte[] codes = null;
+            ByteBuffer request = null;
+            if (message == Protocol.BATCH && (codes = readBatch(read)) == null)
+                return;
+            if (message == Protocol.DELTA && (request = readDelta(read)) == null)
+                return;
+            AdmissionControl.Permit permit = admit((byte) message, codes, request);
+            if (permit == null) {
+                ResponseWriter.get().write(write, ByteBuffer.wrap(new byte[] { Protocol.BUSY }));
+                return;
+            }
+            try {
+                if (codes != null || request != null) {
+                    ByteBuffer response = produce((byte) message, codes, request, null);
+                    if (response != null) {
+                        ResponseWriter.get().write(write, response);
+                        metrics.recordRequest((byte) message, System.nanoTime() - start);
+                    }
+                    return;
+                }
+                boolean success = handleMessage((byte) message);
+                if (!success) {
+                    ServerLog.warn("Message could not be handled successfully.\n");
+                }
+            } catch (RejectedExecutionException ex) {
+                metrics.recordShed((byte) message);
+                ResponseWriter.get().write(write, ByteBuffer.wrap(new byte[] { Protocol.BUSY }));
+            } finally {
+                permit.release();
             }
 
+        } catch (SocketTimeoutException ex) {
+            // Idle session timed out. Just close it.
         } catch (IOException ex) {
             String exmsg = ex.getMessage();
-            if (!exmsg.equals("Connection reset")) // todo: Is there a more robust way to detect client disconnect as the cause of the exception?
-                System.out.format("Error communicating with client: %s\n", exmsg);
+            if (!"Connection reset".equals(exmsg)) // todo: Is there a more robust way to detect client disconnect as the cause of the exception?
+                ServerLog.error("Error communicating with client: %s\n", exmsg);
         } finally {
             try {
                 if (client != null)
@@ -50,7 +115,9 @@ public class ClientHandler extends Thread {
             } catch (IOException e) {
             } // Ignore exception when attempting to close client.
 
-            System.out.format("Client disconnected: %s\n", client.getRemoteSocketAddress().toString());
+            metrics.connectionClosed();
+            if (ServerLog.isEnabled(ServerLog.Level.INFO))
+                ServerLog.info("Client disconnected: %s\n", client.getRemoteSocketAddress());
 
             for (Consumer<ClientHandler> listener : termListeners) {
                 listener.accept(this);
@@ -58,173 +125,204 @@ public class ClientHandler extends Thread {
         }
     }
 
-    // Handles the incoming message from the client and responds if necessary.
-    // Returns true if the message was handled, otherwise false.
-    private boolean handleMessage(byte code) {
-        try {
-            switch (code) {
-                case 0x11:
-                    handleDateAndTime();
-                    return true;
-                case 0x22:
-                    handleUptime();
-                    return true;
-                case 0x33:
-                    handleMemoryUsage();
-                    return true;
-                case 0x44:
-                    handleNetstat();
-                    return true;
-                case 0x55:
-                    handleUsers();
-                    return true;
-                case 0x66:
-                    handleProcesses();
-                    return true;
-                default:
-                    System.out.printf("Unknown command: %02x\n", code);
-                    return false;
-            }
-        } catch (IOException ioe) {
-            System.out.printf("Error handling message! code = %02x\n", code);
-            return false;
+    // Negotiates a keep-alive session, then answers opcodes until the client disconnects.
+    private void runSession(InputStream read) throws IOException {
+        int clientVersion = read.read();
+        int clientFeatures = read.read();
+        if (clientVersion == -1 || clientFeatures == -1)
+            return;
+        byte version = (byte) Math.min(clientVersion, Protocol.CURRENT_VERSION);
+        if (version < Protocol.VERSION_KEEP_ALIVE)
+            return; // Nothing to offer below keep-alive; the client should not have sent HELLO.
+        if (!sessionsAllowed.getAsBoolean()) {
+            // A session would hold this thread while it idles; have the client use single-shot requests instead.
+            ResponseWriter.get().write(write, ByteBuffer.wrap(new byte[] { Protocol.HELLO, Protocol.VERSION_SINGLE_SHOT, 0 }));
+            return;
         }
-    }
 
-    private static DateTimeFormatter dtf = DateTimeFormatter.ofPattern("MM/dd/yyyy, HH:mm:ss");
-
-    private void handleDateAndTime() throws IOException {
-        write.write(StandardCharsets.UTF_8.encode(LocalDateTime.now().format(dtf)).array());
-        write.flush();
-    }
-
-    // Check we're on Linux.
-    private static boolean haveUnix;
-
-    static {
-	String osname = System.getProperty("os.name").toLowerCase();
-	System.out.format("osname: %s\n", osname);
-        haveUnix = osname.contains("nux") || osname.contains("nix");
-    }
+        client.setSoTimeout(sessionIdleTimeoutMs);
+        client.setTcpNoDelay(true);
+        ResponseWriter writer = ResponseWriter.get();
+        byte features = (byte) (clientFeatures & Protocol.SUPPORTED_FEATURES);
+        writer.write(write, ByteBuffer.wrap(new byte[] { Protocol.HELLO, version, features }));
+        if ((features & Protocol.FEATURE_COMPRESSION) != 0)
+            compressAt = responder.getCompressionThreshold();
 
-    private void handleUptime() throws IOException // todo: test on linux
-    {
-        String msg;
-        if (haveUnix) {
-            int upSeconds;
-            Scanner read = null;
-            try {
-                read = new Scanner(new FileInputStream("/proc/uptime"));
-                upSeconds = (int)read.nextDouble();
-            } catch (IOException e) {
-                System.out.format("Error getting uptime: %s\n", e.getMessage());
-                upSeconds = -1;
-            } finally {
-                if (read != null)
-                    read.close();
+        int message;
+        while ((message = read.read()) != -1) {
+            long start = System.nanoTime();
+            byte code = (byte) message;
+            byte[] codes = null;
+            ByteBuffer request = null;
+            // A malformed batch leaves us unable to tell where the next request starts.
+            if (message == Protocol.BATCH && (codes = readBatch(read)) == null)
+                return;
+            if (message == Protocol.DELTA && (request = readDelta(read)) == null)
+                return;
+            AdmissionControl.Permit permit = admit(code, codes, request);
+            if (permit == null) {
+                writer.writeFrame(write, Protocol.STATUS_BUSY, ResponseWriter.EMPTY);
+                continue;
             }
-            if (upSeconds == -1) {
-                msg = "Error reading uptime";
-            } else {
-                int upMinutes = upSeconds / 60;
-                int upHours = upMinutes / 60;
-                int upDays = upHours / 24;
-		upHours %= upDays * 24;
-		upMinutes %= upHours * 60;
-		upSeconds %= 60;
-
-                if (upDays > 0) {
-                    msg = String.format("%dd %dh %02dm %02ds", upDays, upHours, upMinutes, upSeconds);
+            try {
+                if (codes != null || request != null) {
+                    ByteBuffer response = produce(code, codes, request, writer);
+                    if (response == null)
+                        writer.writeFrame(write, Protocol.STATUS_UNKNOWN_OPCODE, ResponseWriter.EMPTY);
+                    else
+                        writer.writeFrame(write, Protocol.STATUS_OK, response, compressAt);
+                } else if (responder.shouldStream(code) && streamResponse(code, true)) {
+                    // Sent as the command ran.
                 } else {
-                    msg = String.format("%dh %02dm %02ds", upHours, upMinutes, upSeconds);
+                    ByteBuffer response = produce(code, null, null, writer);
+                    if (response == null) {
+                        metrics.recordUnknownOpcode();
+                        ServerLog.warn("Unknown command: %02x\n", code);
+                        writer.writeFrame(write, Protocol.STATUS_UNKNOWN_OPCODE, ResponseWriter.EMPTY);
+                        continue;
+                    }
+                    long writeStart = System.nanoTime();
+                    writer.writeFrame(write, Protocol.STATUS_OK, response, compressAt);
+                    metrics.recordWrite(code, System.nanoTime() - writeStart);
                 }
+            } catch (RejectedExecutionException ex) {
+                metrics.recordShed(code);
+                writer.writeFrame(write, Protocol.STATUS_BUSY, ResponseWriter.EMPTY);
+                continue;
+            } finally {
+                permit.release();
             }
-        } else {
-            msg = "Uptime not supported (linux not detected)";
+            metrics.recordRequest(code, System.nanoTime() - start);
         }
-        write.write(StandardCharsets.UTF_8.encode(msg).array());
-        write.flush();
     }
 
-    private void handleMemoryUsage() throws IOException // Done.
-    {
-        String msg;
-        if (haveUnix) {
-            try {
-                ProcessBuilder psb = new ProcessBuilder();
-                psb.command("free");
-                Process p = psb.start();
-                msg = readAll(p.getInputStream());
-            } catch (IOException e) {
-                msg = "Error reading memory usage";
-            }
-        } else {
-            msg = "Memory usage not supported (linux not detected)";
+    // Produces the response to a request that has been read: a batch of codes, a delta request, or else the opcode alone.
+    // Cheap requests are answered on this thread, expensive ones in their bulkhead (see Bulkheads), which this waits for;
+    // concurrent requests for the same expensive opcode share one collection (see Coalescer).
+    // Returns null if the opcode is unknown, and throws RejectedExecutionException if the bulkhead has no room.
+    // The writer's buffer may be used for a cheap opcode's response, which is then only valid until the writer's next use.
+    private ByteBuffer produce(byte code, final byte[] codes, ByteBuffer delta, ResponseWriter writer) throws IOException {
+        if (codes != null)
+            return Bulkheads.await(responder.respondBatchAsync(codes));
+        if (delta != null) {
+            final byte listing = delta.get();
+            final long since = delta.getLong();
+            return Bulkheads.await(responder.respondDeltaAsync(listing, since));
         }
-        write.write(StandardCharsets.UTF_8.encode(msg).array());
-        write.flush();
+        if (!ServerCommands.isSlow(code))
+            return writer == null ? responder.respond(code) : responder.respond(code, writer);
+        return Bulkheads.await(responder.respondAsync(code));
     }
 
-    private void handleNetstat() throws IOException // Done.
-    {
-        String msg;
-        if (haveUnix) {
-            try {
-                ProcessBuilder psb = new ProcessBuilder();
-                psb.command("netstat");
-                Process p = psb.start();
-                msg = readAll(p.getInputStream());
-            } catch (IOException e) {
-                msg = "Error reading netstat";
-            }
-        } else {
-            msg = "Netstat not supported (linux not detected)";
+    // Admits a request that has been read: a batch of codes, a delta request, or else the opcode alone.
+    // Returns null, counting the request as shed, if the server has no room for it.
+    private AdmissionControl.Permit admit(byte code, byte[] codes, ByteBuffer delta) {
+        AdmissionControl admission = responder.getAdmissionControl();
+        AdmissionControl.Permit permit;
+        if (codes != null)
+            permit = admission.admitBatch(codes);
+        else if (delta != null)
+            permit = admission.admit(delta.get(delta.position()));
+        else
+            permit = admission.admit(code);
+        if (permit == null)
+            metrics.recordShed(code);
+        return permit;
+    }
+
+    // Reads the count and opcodes that follow BATCH. Returns null if the count is invalid or the client hung up.
+    private static byte[] readBatch(InputStream read) throws IOException {
+        int count = read.read();
+        if (!Batch.isValidCount(count))
+            return null;
+        byte[] codes = new byte[count];
+        int filled = 0;
+        while (filled < count) {
+            int n = read.read(codes, filled, count - filled);
+            if (n == -1)
+                return null;
+            filled += n;
         }
-        write.write(StandardCharsets.UTF_8.encode(msg).array());
-        write.flush();
+        return codes;
     }
 
-    private void handleUsers() throws IOException // todo: implement me!
-    {
-        String msg;
-        if (haveUnix) {
-            try {
-                ProcessBuilder psb = new ProcessBuilder();
-                psb.command("who");
-                Process p = psb.start();
-                msg = readAll(p.getInputStream());
-            } catch (IOException e) {
-                msg = "Error reading users";
-            }
-        } else {
-            msg = "Users not supported (linux not detected)";
+    // Reads the opcode and epoch that follow DELTA. Returns null if the client hung up.
+    private static ByteBuffer readDelta(InputStream read) throws IOException {
+        byte[] rest = new byte[Delta.REQUEST_SIZE - 1];
+        int filled = 0;
+        while (filled < rest.length) {
+            int n = read.read(rest, filled, rest.length - filled);
+            if (n == -1)
+                return null;
+            filled += n;
         }
-        write.write(StandardCharsets.UTF_8.encode(msg).array());
-        write.flush();
+        return ByteBuffer.wrap(rest);
     }
 
-    private void handleProcesses() throws IOException // Sends ps command + shows running processes
-    {
-        String msg;
-        if (haveUnix) {
+    // Handles the incoming message from the client and responds if necessary.
+    // Returns true if the message was handled, otherwise false.
+    boolean handleMessage(byte code) {
+        try {
+            long start = System.nanoTime();
+            ResponseWriter writer = ResponseWriter.get();
+            ByteBuffer response;
             try {
-                ProcessBuilder psb = new ProcessBuilder();
-                psb.command("ps", "-e");
-                Process p = psb.start();
-                msg = readAll(p.getInputStream());
-            } catch (IOException e) {
-                msg = "Error reading processes";
+                if (responder.shouldStream(code) && streamResponse(code, false)) {
+                    metrics.recordRequest(code, System.nanoTime() - start);
+                    return true;
+                }
+                response = produce(code, null, null, writer);
+            } catch (RejectedExecutionException ex) {
+                metrics.recordShed(code);
+                writer.write(write, ByteBuffer.wrap(new byte[] { Protocol.BUSY }));
+                return true;
             }
-        } else {
-            msg = "Processes not supported (linux not detected)";
+            if (response == null) {
+                metrics.recordUnknownOpcode();
+                ServerLog.warn("Unknown command: %02x\n", code);
+                return false;
+            }
+            long writeStart = System.nanoTime();
+            writer.write(write, response);
+            long end = System.nanoTime();
+            metrics.recordWrite(code, end - writeStart);
+            metrics.recordRequest(code, end - start);
+            return true;
+        } catch (IOException ioe) {
+            ServerLog.error("Error handling message! code = %02x\n", code);
+            return false;
         }
-        write.write(StandardCharsets.UTF_8.encode(msg).array());
-        write.flush();
     }
 
-    static String readAll(java.io.InputStream is) {
-        java.util.Scanner s = new java.util.Scanner(is).useDelimiter("\\A");
-        return s.hasNext() ? s.next() : "";
+    // Sends a command's output to the client while the command is still running.
+    // The command runs and is streamed in the opcode's bulkhead (see Bulkheads), which this waits for, so streams are bounded
+    // like any other expensive request; each stream runs its own command, so unlike respondAsync they are never shared.
+    // Returns false, having sent nothing, if the command couldn't be started; the caller should then answer the usual way,
+    // which reports the failure like any other. Throws RejectedExecutionException if the bulkhead has no room.
+    private boolean streamResponse(byte code, boolean framed) throws IOException {
+        Callable<Boolean> stream = () -> {
+            Process p;
+            try {
+                p = responder.startStream(code);
+            } catch (IOException ex) {
+                return false;
+            }
+            try (InputStream output = p.getInputStream()) {
+                ResponseWriter.get().stream(write, output, framed, compressAt); // This thread's writer, not the handler's.
+            } finally {
+                // If the client went away mid-stream, don't leave the command running.
+                p.destroy();
+            }
+            return true;
+        };
+        ThreadPoolExecutor pool = responder.getBulkheads().forOpcode(code);
+        try {
+            return pool == null ? stream.call() : Bulkheads.await(pool.submit(stream));
+        } catch (IOException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
     }
 
 }
@@ -0,0 +1,190 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A keep-alive connection to the server (protocol version 2).
+ * Any number of requests can be sent over one session, and several can be sent before reading any replies.
+ * Replies arrive in the order the requests were sent.
+ */
+public class ClientSession implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final byte[] readBuf = new byte[READ_BUFFER_SIZE];
+    private final ArrayDeque<Project1Client.Operation> sent = new ArrayDeque<>(); // Requests whose replies haven't been read.
+    private byte features; // The optional features the server accepted.
+
+    private ClientSession(Socket socket) throws IOException
+    {
+        this.socket = socket;
+        in = socket.getInputStream();
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    // Connects to the server and negotiates a keep-alive session.
+    // Returns null if the server only supports single-shot requests.
+    public static ClientSession open(InetAddress remoteAddress, int port) throws IOException
+    {
+        return open(remoteAddress, port, Protocol.DEFAULT_CLIENT_FEATURES);
+    }
+
+    // Like open(remoteAddress, port), offering the given optional features (see Protocol).
+    public static ClientSession open(InetAddress remoteAddress, int port, byte features) throws IOException
+    {
+        Socket socket = new Socket(remoteAddress, port);
+        socket.setTcpNoDelay(true);
+        ClientSession session = null;
+        try {
+            session = new ClientSession(socket);
+            if (!session.negotiate(features))
+            {
+                session.close();
+                return null;
+            }
+            return session;
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    // Sends HELLO and reads the server's answer. Returns false if the server doesn't speak keep-alive.
+    private boolean negotiate(byte offered) throws IOException
+    {
+        out.write(Protocol.HELLO);
+        out.write(Protocol.CURRENT_VERSION);
+        out.write(offered);
+        out.flush();
+
+        // A single-shot server treats HELLO as an unknown opcode and hangs up without replying.
+        int hello = in.read();
+        if (hello == (Protocol.BUSY & 0xFF))
+            throw new IOException("Server is busy.");
+        if (hello != Protocol.HELLO)
+            return false;
+        int version = in.read();
+        int accepted = in.read();
+        features = (byte)accepted;
+        return version >= Protocol.VERSION_KEEP_ALIVE && accepted != -1;
+    }
+
+    // Returns true iff the server accepted the given optional feature (see Protocol).
+    public boolean supports(byte feature)
+    {
+        return (features & feature) != 0;
+    }
+
+    // Queues a request without waiting for its reply. Call flush() to make sure it is sent.
+    // A batch goes to a server that doesn't take batches as separate requests, and receive() puts the replies together.
+    // A delta request goes to a server that doesn't take deltas as a request for the whole listing.
+    public void send(Project1Client.Operation op) throws IOException
+    {
+        if (op.isBatch() && !supports(Protocol.FEATURE_BATCH))
+            out.write(op.getBatchCodes());
+        else if (op.isDelta() && !supports(Protocol.FEATURE_DELTA))
+            out.write(op.getCode());
+        else
+            out.write(op.getRequest());
+        sent.add(op);
+    }
+
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    // Reads the reply to the oldest request that hasn't been answered yet.
+    public Response receive() throws IOException
+    {
+        Project1Client.Operation op = sent.poll();
+        if (op == null)
+            throw new IllegalStateException("No request is waiting for a reply.");
+        if (op.isBatch() && !supports(Protocol.FEATURE_BATCH))
+        {
+            byte[] codes = op.getBatchCodes();
+            List<Response> parts = new ArrayList<>(codes.length);
+            for (int i = 0; i < codes.length; ++i)
+                parts.add(readReply());
+            return Batch.combine(codes, parts);
+        }
+        if (op.isDelta() && supports(Protocol.FEATURE_DELTA))
+            return op.complete(readReply());
+        return readReply();
+    }
+
+    // Reads the next reply frame (or frames, if streamed).
+    private Response readReply() throws IOException
+    {
+        Response r;
+        while ((r = decoder.poll()) == null)
+        {
+            // Blocks until more of the reply arrives; takes whatever is there, which may include later replies.
+            int n = in.read(readBuf);
+            if (n == -1)
+                throw new EOFException("Server closed the connection.");
+            decoder.feed(readBuf, 0, n);
+        }
+        return r;
+    }
+
+    // Sends one request and waits for its reply.
+    public Response request(Project1Client.Operation op) throws IOException
+    {
+        send(op);
+        flush();
+        return receive();
+    }
+
+    // Sends all the requests at once, then collects the replies in order.
+    public List<Response> requestAll(List<Project1Client.Operation> ops) throws IOException
+    {
+        for (Project1Client.Operation op : ops)
+            send(op);
+        flush();
+        List<Response> replies = new ArrayList<>(ops.size());
+        for (int i = 0; i < ops.size(); ++i)
+            replies.add(receive());
+        return replies;
+    }
+
+    /*
+     * Returns whether the connection still looks usable: open, with no replies outstanding,
+     * and not closed by the server (which hangs up on sessions left idle too long).
+     * Waits up to a millisecond, so only use it on connections that have been sitting idle.
+     */
+    public boolean probe()
+    {
+        if (socket.isClosed() || !sent.isEmpty() || decoder.isPartial())
+            return false;
+        try {
+            if (in.available() > 0)
+                return false; // Nothing should arrive unasked.
+            socket.setSoTimeout(1);
+            try {
+                in.read(); // Any byte at all, or end of stream, means the session is unusable.
+                return false;
+            } catch (SocketTimeoutException ex) {
+                return true; // Nothing to read: still connected.
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+}
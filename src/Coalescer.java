@@ -0,0 +1,114 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/*
+ * Shares one collection of a response among all the concurrent requests for the same opcode,
+ * so a burst of a thousand netstat requests runs netstat a few times rather than a thousand.
+ * Unlike a cache, it never answers with data collected before the request arrived: a request only joins a collection
+ * that hasn't started yet. Each opcode has at most one collection running and one waiting to start after it;
+ * requests that arrive while one runs all join the waiting one, which starts as soon as the running one finishes.
+ * Nothing blocks: callers get a future, and collections run on the executor they are given, which must be the same one for every
+ * request for an opcode and must never run them on the calling thread, since the thread that finishes one collection starts the next.
+ */
+public class Coalescer {
+
+    private final Slot[] slots = new Slot[256];
+
+    public Coalescer()
+    {
+        for (int i = 0; i < slots.length; ++i)
+            slots[i] = new Slot();
+    }
+
+    // One opcode's collections. Guarded by its own monitor.
+    private static class Slot
+    {
+        Flight running;
+        Flight waiting;
+    }
+
+    // One collection and everyone waiting for it.
+    private static class Flight extends CompletableFuture<ByteBuffer>
+    {
+        final Executor executor;
+        final Supplier<ByteBuffer> load;
+
+        Flight(Executor executor, Supplier<ByteBuffer> load)
+        {
+            this.executor = executor;
+            this.load = load;
+        }
+    }
+
+    /*
+     * Returns the response to the opcode, collected by load on the executor once for this request and any others that join it.
+     * The future's buffer is the caller's own view. It completes exceptionally if load throws,
+     * or with RejectedExecutionException if the executor has no room.
+     */
+    public CompletableFuture<ByteBuffer> get(byte code, Executor executor, Supplier<ByteBuffer> load)
+    {
+        Slot slot = slots[code & 0xFF];
+        Flight f;
+        boolean start = false;
+        synchronized (slot)
+        {
+            if (slot.running == null)
+            {
+                f = slot.running = new Flight(executor, load);
+                start = true;
+            }
+            else
+            {
+                if (slot.waiting == null)
+                    slot.waiting = new Flight(executor, load);
+                else
+                    ServerMetrics.get().recordCoalesced();
+                f = slot.waiting;
+            }
+        }
+        if (start)
+            launch(slot, f);
+        return f.thenApply(ByteBuffer::duplicate);
+    }
+
+    // Starts the flight, and if the executor has no room, fails it and starts the one waiting after it instead, and so on.
+    private void launch(Slot slot, Flight f)
+    {
+        while (f != null)
+        {
+            final Flight flight = f;
+            try {
+                flight.executor.execute(() -> collect(slot, flight));
+                return;
+            } catch (RejectedExecutionException ex) {
+                flight.completeExceptionally(ex);
+                f = finished(slot);
+            }
+        }
+    }
+
+    private void collect(Slot slot, Flight f)
+    {
+        try {
+            f.complete(f.load.get());
+        } catch (Throwable ex) {
+            f.completeExceptionally(ex);
+        }
+        launch(slot, finished(slot));
+    }
+
+    // Makes the waiting flight, if there is one, the running one now that the running one is done, and returns it.
+    private Flight finished(Slot slot)
+    {
+        synchronized (slot)
+        {
+            Flight next = slot.waiting;
+            slot.running = next;
+            slot.waiting = null;
+            return next;
+        }
+    }
+}
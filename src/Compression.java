@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compression of frame payloads in keep-alive sessions whose client asked for it (see Protocol.FEATURE_COMPRESSION).
+ * A compressed payload is the 4-byte big-endian length of the original payload, followed by the original compressed
+ * with raw Deflate (no zlib header or checksum), and its frame's status has the STATUS_COMPRESSED bit set.
+ * Payloads shorter than the server's threshold aren't worth the CPU time and are sent as they are,
+ * as are payloads that compression wouldn't shrink.
+ *
+ * Each thread reuses one Deflater or Inflater and its buffers, so compressing allocates nothing once warmed up.
+ */
+public final class Compression {
+
+    private Compression() { }
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+    // A threshold that no payload reaches, for sessions without compression.
+    public static final int NEVER = Integer.MAX_VALUE;
+    // Responses are compressed on the hot path, so favor speed; text still shrinks several times over.
+    public static final int LEVEL = Deflater.BEST_SPEED;
+
+    private static final int LENGTH_SIZE = 4;
+
+    private static final ThreadLocal<Compressor> compressors = ThreadLocal.withInitial(Compressor::new);
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /*
+     * Returns the remaining bytes of the payload compressed, without consuming them, or null if that wouldn't make them smaller.
+     * The result belongs to the calling thread and is only valid until its next call.
+     */
+    public static ByteBuffer compress(ByteBuffer payload)
+    {
+        return compressors.get().compress(payload);
+    }
+
+    // Returns the original of a compressed payload. Throws if it is malformed.
+    public static byte[] decompress(byte[] payload) throws IOException
+    {
+        if (payload.length < LENGTH_SIZE)
+            throw new IOException("Malformed compressed payload.");
+        int length = ByteBuffer.wrap(payload).getInt();
+        if (length < 0 || length > Protocol.MAX_FRAME_LENGTH)
+            throw new IOException(String.format("Malformed compressed payload length %d.", length));
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(payload, LENGTH_SIZE, payload.length - LENGTH_SIZE);
+        byte[] original = new byte[length];
+        int filled = 0;
+        try {
+            while (filled < length)
+            {
+                int n = inflater.inflate(original, filled, length - filled);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                filled += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(String.format("Malformed compressed payload: %s", ex.getMessage()));
+        }
+        if (filled != length)
+            throw new IOException("Compressed payload is shorter than it claims.");
+        return original;
+    }
+
+    // One thread's deflater and buffers. Deflater only takes arrays before Java 11, so payloads are copied in.
+    private static class Compressor
+    {
+        private final Deflater deflater = new Deflater(LEVEL, true);
+        private byte[] in = new byte[16 * 1024];
+        private byte[] out = new byte[16 * 1024];
+
+        ByteBuffer compress(ByteBuffer payload)
+        {
+            int length = payload.remaining();
+            if (in.length < length)
+                in = new byte[Math.max(length, in.length * 2)];
+            if (out.length < length)
+                out = new byte[in.length];
+            payload.duplicate().get(in, 0, length);
+
+            deflater.reset();
+            deflater.setInput(in, 0, length);
+            deflater.finish();
+            int size = LENGTH_SIZE;
+            while (!deflater.finished())
+            {
+                // Give up as soon as it's clear the result won't be smaller.
+                if (size >= length)
+                    return null;
+                size += deflater.deflate(out, size, length - size);
+            }
+            if (size >= length)
+                return null;
+            ByteBuffer compressed = ByteBuffer.wrap(out, 0, size);
+            compressed.putInt(0, length);
+            return compressed;
+        }
+    }
+}
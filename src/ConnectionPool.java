@@ -0,0 +1,354 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Keeps keep-alive sessions open between requests so that clients making many requests, from any number of threads,
+ * don't spend a connection (and a port left in TIME_WAIT) on each one.
+ * At most a fixed number of sessions are open to each server; when they are all in use, callers wait for one.
+ * Sessions left idle too long are closed by a background sweep, before the server's own idle timeout closes them,
+ * and a session that has been idle for a while is probed before it is handed out again.
+ */
+public class ConnectionPool implements Closeable
+{
+    public static final int DEFAULT_MAX_PER_SERVER = 8;
+    // Shorter than the pool engine's ClientHandler.POOL_SESSION_IDLE_TIMEOUT_MS, so the pool usually closes first,
+    // and idle pooled sessions don't sit on the server's workers.
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 4000;
+    // Sessions idle this long are probed before reuse.
+    public static final long VALIDATE_AFTER_MS = 1000;
+    // How long to wait for a session when all of a server's sessions are in use.
+    public static final long DEFAULT_MAX_WAIT_MS = 30000;
+
+    private final int maxPerServer;
+    private final long idleTimeoutMs;
+    private final long maxWaitMs;
+    private final ConcurrentHashMap<InetSocketAddress, ServerPool> servers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+    private volatile boolean closed;
+    private volatile byte features = Protocol.DEFAULT_CLIENT_FEATURES; // Offered when opening sessions.
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder failedProbes = new LongAdder();
+
+    public ConnectionPool()
+    {
+        this(DEFAULT_MAX_PER_SERVER, DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_MAX_WAIT_MS);
+    }
+
+    public ConnectionPool(int maxPerServer, long idleTimeoutMs, long maxWaitMs)
+    {
+        if (maxPerServer < 1)
+            throw new IllegalArgumentException("Must allow at least one connection per server.");
+        this.maxPerServer = maxPerServer;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxWaitMs = maxWaitMs;
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ConnectionPool sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(idleTimeoutMs / 2, 100);
+        sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Sends one request over a pooled session and returns its reply.
+     * If a reused session turns out to be dead, the request is retried once on a new one.
+     * Returns null if the server only supports single-shot requests.
+     */
+    public Response request(InetAddress remoteAddress, int port, Project1Client.Operation op) throws IOException
+    {
+        ServerPool pool = poolFor(remoteAddress, port);
+        for (int attempt = 0; ; ++attempt)
+        {
+            Lease lease = pool.borrow();
+            if (lease == null)
+                return null;
+            try {
+                Response r = lease.session.request(op);
+                pool.release(lease.session);
+                return r;
+            } catch (IOException ex) {
+                pool.discard(lease.session);
+                if (!lease.reused || attempt > 0)
+                    throw ex;
+                // The server may have closed the session while it sat idle. Try once more.
+            } catch (RuntimeException | Error ex) {
+                pool.discard(lease.session); // It may be mid-reply, so it can't be reused; but its place must be freed.
+                throw ex;
+            }
+        }
+    }
+
+    // Chooses whether sessions opened from now on ask the server to compress large responses (see Compression).
+    public void setCompression(boolean compress)
+    {
+        features = compress ? (byte)(features | Protocol.FEATURE_COMPRESSION) : (byte)(features & ~Protocol.FEATURE_COMPRESSION);
+    }
+
+    // Returns how many sessions are open to all servers, in use or idle.
+    public int getOpenCount()
+    {
+        int n = 0;
+        for (ServerPool p : servers.values())
+            n += p.getOpenCount();
+        return n;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("connections: open=%d opened=%d reused=%d evicted=%d failed-probes=%d",
+                getOpenCount(), opened.sum(), reused.sum(), evicted.sum(), failedProbes.sum());
+    }
+
+    // Closes every idle session and stops the sweeper. Sessions in use are closed when they are returned.
+    @Override
+    public void close()
+    {
+        closed = true;
+        sweeper.shutdownNow();
+        for (ServerPool p : servers.values())
+            p.closeIdle();
+    }
+
+    private ServerPool poolFor(InetAddress remoteAddress, int port)
+    {
+        InetSocketAddress key = new InetSocketAddress(remoteAddress, port);
+        ServerPool pool = servers.get(key);
+        if (pool == null)
+            pool = servers.computeIfAbsent(key, ServerPool::new);
+        return pool;
+    }
+
+    // Closes sessions idle longer than the timeout and probes the rest of those idle a while.
+    private void sweep()
+    {
+        for (ServerPool p : servers.values())
+            p.sweep();
+    }
+
+    private static void closeQuietly(ClientSession s)
+    {
+        try {
+            s.close();
+        } catch (IOException ex) { } // Ignore exception when closing.
+    }
+
+    private static class Idle
+    {
+        final ClientSession session;
+        final long since = System.nanoTime();
+
+        Idle(ClientSession session)
+        {
+            this.session = session;
+        }
+
+        long idleMillis(long now)
+        {
+            return TimeUnit.NANOSECONDS.toMillis(now - since);
+        }
+    }
+
+    private static class Lease
+    {
+        final ClientSession session;
+        final boolean reused;
+
+        Lease(ClientSession session, boolean reused)
+        {
+            this.session = session;
+            this.reused = reused;
+        }
+    }
+
+    // The sessions to one server. Guarded by its own monitor.
+    private class ServerPool
+    {
+        private final InetSocketAddress address;
+        // Most recently used last, so the warmest session is reused first and the coldest ones age out.
+        private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+        private int open; // Idle plus in use, plus any being opened.
+        private boolean singleShot; // Learned when the server turns down a keep-alive session.
+
+        ServerPool(InetSocketAddress address)
+        {
+            this.address = address;
+        }
+
+        synchronized int getOpenCount()
+        {
+            return open;
+        }
+
+        // Returns an idle session, a new one if there is room, or waits for one to be returned.
+        // Returns null if the server doesn't support sessions.
+        Lease borrow() throws IOException
+        {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+            while (true)
+            {
+                Idle candidate = null;
+                synchronized (this)
+                {
+                    while (!singleShot && idle.isEmpty() && open >= maxPerServer)
+                    {
+                        long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (wait <= 0)
+                            throw new IOException("Timed out waiting for a pooled connection.");
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted waiting for a pooled connection.");
+                        }
+                    }
+                    if (singleShot)
+                        return null;
+                    if (!idle.isEmpty())
+                        candidate = idle.pollLast();
+                    else
+                        ++open; // Reserve room for a new session.
+                }
+
+                if (candidate == null)
+                    return openNew();
+                if (candidate.idleMillis(System.nanoTime()) < VALIDATE_AFTER_MS || candidate.session.probe())
+                {
+                    reused.increment();
+                    return new Lease(candidate.session, true);
+                }
+                failedProbes.increment();
+                discard(candidate.session);
+            }
+        }
+
+        private Lease openNew() throws IOException
+        {
+            ClientSession s = null;
+            try {
+                s = ClientSession.open(address.getAddress(), address.getPort(), features);
+            } finally {
+                if (s == null)
+                {
+                    synchronized (this)
+                    {
+                        --open;
+                        notify();
+                    }
+                }
+            }
+            if (s == null)
+            {
+                synchronized (this)
+                {
+                    singleShot = true;
+                    notifyAll();
+                }
+                return null;
+            }
+            opened.increment();
+            return new Lease(s, false);
+        }
+
+        // Makes a session that finished its request available again.
+        void release(ClientSession s)
+        {
+            synchronized (this)
+            {
+                if (!closed)
+                {
+                    idle.addLast(new Idle(s));
+                    notify();
+                    return;
+                }
+            }
+            discard(s);
+        }
+
+        // Closes a session that can't be used any more and frees its place.
+        void discard(ClientSession s)
+        {
+            closeQuietly(s);
+            synchronized (this)
+            {
+                --open;
+                notify();
+            }
+        }
+
+        void sweep()
+        {
+            long now = System.nanoTime();
+            List<Idle> expired = new ArrayList<>();
+            List<Idle> check = new ArrayList<>();
+            synchronized (this)
+            {
+                for (Iterator<Idle> it = idle.iterator(); it.hasNext(); )
+                {
+                    Idle i = it.next();
+                    long ms = i.idleMillis(now);
+                    if (ms >= idleTimeoutMs)
+                        expired.add(i);
+                    else if (ms >= VALIDATE_AFTER_MS)
+                        check.add(i);
+                    else
+                        continue;
+                    it.remove(); // Still counted as open, like a session in use.
+                }
+            }
+            for (Idle i : expired)
+            {
+                evicted.increment();
+                discard(i.session);
+            }
+            for (Idle i : check)
+            {
+                if (i.session.probe())
+                {
+                    synchronized (this)
+                    {
+                        if (!closed)
+                        {
+                            idle.addFirst(i); // Keep its original idle time, so it still ages out.
+                            notify();
+                            continue;
+                        }
+                    }
+                    discard(i.session); // The pool was closed while we probed.
+                }
+                else
+                {
+                    failedProbes.increment();
+                    discard(i.session);
+                }
+            }
+        }
+
+        void closeIdle()
+        {
+            List<Idle> all;
+            synchronized (this)
+            {
+                all = new ArrayList<>(idle);
+                idle.clear();
+            }
+            for (Idle i : all)
+                discard(i.session);
+        }
+    }
+}
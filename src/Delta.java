@@ -0,0 +1,316 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/*
+ * Incremental updates to the listings that pollers ask for again and again (see Protocol).
+ * A request is DELTA, a plain opcode, and the 8-byte big-endian epoch of the client's last copy of that listing (NO_EPOCH if none).
+ * The server numbers each different listing it sends with a new epoch and remembers a few recent ones (see DeltaHistory).
+ * The reply starts with the epoch of the current listing and a kind byte:
+ *
+ *   FULL    followed by the whole listing, when the server no longer has the client's epoch (or a patch wouldn't be smaller)
+ *   PATCH   followed by the 8-byte epoch it applies to, the 4-byte length of the new listing,
+ *           then edits to apply to the lines of the old listing, in order, until the end of the payload:
+ *           COPY or SKIP and a 4-byte count of old lines to keep or drop, or INSERT, a 4-byte count, and that many new lines,
+ *           each a 2-byte length followed by its bytes (without the newline)
+ *
+ * Lines are compared as bytes, so a row that changed is dropped and inserted again; an unchanged listing is a single COPY.
+ */
+public final class Delta {
+
+    private Delta() { }
+
+    public static final long NO_EPOCH = 0;
+    public static final int REQUEST_SIZE = 10;
+
+    // Reply kinds.
+    public static final byte FULL = 0;
+    public static final byte PATCH = 1;
+
+    // Edits of a patch.
+    public static final byte COPY = 0;
+    public static final byte SKIP = 1;
+    public static final byte INSERT = 2;
+
+    private static final int MAX_LINE_LENGTH = 0xFFFF;
+
+    // Returns true iff the server keeps deltas for the given opcode: the listings that are long and mostly stable between polls.
+    public static boolean supports(byte code)
+    {
+        return code == 0x44 || code == 0x66;
+    }
+
+    // Returns the bytes of a request for the given opcode's changes since the given epoch.
+    public static byte[] request(byte code, long since)
+    {
+        return ByteBuffer.allocate(REQUEST_SIZE).put(Protocol.DELTA).put(code).putLong(since).array();
+    }
+
+    // Splits a listing into lines. Each byte maps to one char, so joining them with '\n' gives back the same bytes.
+    public static String[] lines(byte[] listing)
+    {
+        return new String(listing, ISO_8859_1).split("\n", -1);
+    }
+
+    // Returns a FULL reply holding the listing.
+    public static ByteBuffer full(long epoch, byte[] listing)
+    {
+        ByteBuffer b = ByteBuffer.allocate(9 + listing.length);
+        b.putLong(epoch).put(FULL).put(listing);
+        b.flip();
+        return b;
+    }
+
+    /*
+     * Returns a PATCH reply that turns the old lines into the new ones,
+     * or null if it wouldn't be smaller than a FULL reply (or has a line too long to encode).
+     */
+    public static ByteBuffer patch(long epoch, long base, String[] from, String[] to, int length)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(epoch);
+            out.writeByte(PATCH);
+            out.writeLong(base);
+            out.writeInt(length);
+            if (!diff(from, to, out, 9 + length))
+                return null;
+        } catch (IOException ex) {
+            throw new AssertionError(ex); // Only writes to memory.
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /*
+     * Writes edits turning one list of lines into the other, matching lines greedily from the front:
+     * a line that occurs later in the other list is waited for, and one that doesn't is dropped or inserted.
+     * Rows rarely move in these listings, so this finds nearly the smallest patch in linear time.
+     * Returns false, leaving the output unfinished, if the patch reaches the given size.
+     */
+    private static boolean diff(String[] from, String[] to, DataOutputStream out, int limit) throws IOException
+    {
+        // How many times each line occurs in what's left of each list.
+        Map<String, Integer> fromLeft = counts(from);
+        Map<String, Integer> toLeft = counts(to);
+        Edits edits = new Edits(out);
+        int i = 0, j = 0;
+        while (i < from.length || j < to.length)
+        {
+            if (out.size() >= limit)
+                return false;
+            if (i < from.length && j < to.length && from[i].equals(to[j]))
+            {
+                edits.copy();
+                take(fromLeft, from[i++]);
+                take(toLeft, to[j++]);
+            }
+            else if (j < to.length && (i == from.length || !fromLeft.containsKey(to[j])))
+            {
+                if (to[j].length() > MAX_LINE_LENGTH)
+                    return false;
+                edits.insert(to[j]);
+                take(toLeft, to[j++]);
+            }
+            else
+            {
+                edits.skip();
+                take(fromLeft, from[i++]);
+            }
+        }
+        edits.finish();
+        return out.size() < limit;
+    }
+
+    private static Map<String, Integer> counts(String[] lines)
+    {
+        Map<String, Integer> counts = new HashMap<>(lines.length * 2);
+        for (String line : lines)
+            counts.merge(line, 1, Integer::sum);
+        return counts;
+    }
+
+    private static void take(Map<String, Integer> counts, String line)
+    {
+        counts.compute(line, (k, n) -> n == 1 ? null : n - 1);
+    }
+
+    // Writes runs of edits, merging consecutive edits of the same kind.
+    private static class Edits
+    {
+        private final DataOutputStream out;
+        private byte kind = -1;
+        private int count;
+        private final List<String> inserted = new ArrayList<>();
+
+        Edits(DataOutputStream out)
+        {
+            this.out = out;
+        }
+
+        void copy() throws IOException
+        {
+            add(COPY);
+        }
+
+        void skip() throws IOException
+        {
+            add(SKIP);
+        }
+
+        void insert(String line) throws IOException
+        {
+            add(INSERT);
+            inserted.add(line);
+        }
+
+        private void add(byte k) throws IOException
+        {
+            if (k != kind)
+            {
+                finish();
+                kind = k;
+            }
+            ++count;
+        }
+
+        void finish() throws IOException
+        {
+            if (count == 0)
+                return;
+            out.writeByte(kind);
+            out.writeInt(count);
+            for (String line : inserted)
+            {
+                out.writeShort(line.length());
+                out.write(line.getBytes(ISO_8859_1));
+            }
+            inserted.clear();
+            count = 0;
+        }
+    }
+
+    /*
+     * A client's copies of the listings it has asked for deltas of, so it can apply the patches it gets.
+     * It keeps the last few epochs of each opcode, so replies to requests that were in flight at once all apply.
+     * Safe to share between threads.
+     */
+    public static class Tracker
+    {
+        private static final int KEEP = 4;
+
+        private final Map<Byte, LinkedHashMap<Long, String[]>> copies = new HashMap<>();
+
+        // Returns the newest epoch held for the opcode, or NO_EPOCH if none.
+        public synchronized long since(byte code)
+        {
+            LinkedHashMap<Long, String[]> held = copies.get(code);
+            long newest = NO_EPOCH;
+            if (held != null)
+            {
+                for (Long epoch : held.keySet())
+                    newest = epoch;
+            }
+            return newest;
+        }
+
+        // Turns the reply to a DELTA request for the opcode into a response holding the whole listing, and keeps it.
+        // Replies that aren't OK are returned as they are.
+        public Response apply(byte code, Response r) throws IOException
+        {
+            if (!r.isOk())
+                return r;
+            ByteBuffer in = ByteBuffer.wrap(r.getBody());
+            byte[] listing;
+            long epoch;
+            try {
+                epoch = in.getLong();
+                byte kind = in.get();
+                if (kind == FULL)
+                {
+                    listing = new byte[in.remaining()];
+                    in.get(listing);
+                    keep(code, epoch, lines(listing));
+                }
+                else if (kind == PATCH)
+                {
+                    long base = in.getLong();
+                    int length = in.getInt();
+                    String[] from = get(code, base);
+                    if (from == null)
+                        throw new IOException("Server sent a patch to a listing this client doesn't have.");
+                    String[] to = applyPatch(from, in);
+                    listing = String.join("\n", to).getBytes(ISO_8859_1);
+                    if (listing.length != length)
+                        throw new IOException("Patched listing has the wrong length.");
+                    keep(code, epoch, to);
+                }
+                else
+                    throw new IOException(String.format("Unknown delta reply kind %d.", kind));
+            } catch (BufferUnderflowException ex) {
+                throw new IOException("Malformed delta reply.");
+            }
+            return new Response(Protocol.STATUS_OK, listing, r.getFirstByteTime(), r.getWireSize());
+        }
+
+        private synchronized String[] get(byte code, long epoch)
+        {
+            LinkedHashMap<Long, String[]> held = copies.get(code);
+            return held == null ? null : held.get(epoch);
+        }
+
+        private synchronized void keep(byte code, long epoch, String[] lines)
+        {
+            LinkedHashMap<Long, String[]> held = copies.computeIfAbsent(code, c -> new LinkedHashMap<>());
+            held.remove(epoch); // So it counts as the newest again.
+            held.put(epoch, lines);
+            while (held.size() > KEEP)
+                held.remove(held.keySet().iterator().next());
+        }
+
+        private static String[] applyPatch(String[] from, ByteBuffer in) throws IOException
+        {
+            List<String> to = new ArrayList<>(from.length + 16);
+            int i = 0;
+            while (in.hasRemaining())
+            {
+                byte kind = in.get();
+                int count = in.getInt();
+                if (count < 0 || (kind != INSERT && count > from.length - i))
+                    throw new IOException("Malformed delta patch.");
+                switch (kind)
+                {
+                    case COPY:
+                        for (int k = 0; k < count; ++k)
+                            to.add(from[i++]);
+                        break;
+                    case SKIP:
+                        i += count;
+                        break;
+                    case INSERT:
+                        for (int k = 0; k < count; ++k)
+                        {
+                            byte[] line = new byte[in.getShort() & 0xFFFF];
+                            in.get(line);
+                            to.add(new String(line, ISO_8859_1));
+                        }
+                        break;
+                    default:
+                        throw new IOException(String.format("Unknown delta edit %d.", kind));
+                }
+            }
+            if (i != from.length)
+                throw new IOException("Delta patch doesn't cover the whole listing.");
+            return to.toArray(new String[0]);
+        }
+    }
+}
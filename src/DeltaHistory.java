@@ -0,0 +1,124 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The server's side of delta updates (see Delta): the last few different listings sent for each opcode, numbered by epoch.
+ * A listing that is the same as the newest one keeps its epoch, so pollers of a quiet host get an empty patch.
+ * Each reply is encoded once per pair of epochs and then shared, so many pollers at the same epoch cost one diff between them.
+ * Safe to use from any number of threads.
+ */
+public class DeltaHistory {
+
+    public static final int DEFAULT_DEPTH = 8;
+
+    private final int depth;
+    // Epochs start somewhere random, so an epoch a client kept from an earlier run of the server won't match this one's.
+    private final AtomicLong lastEpoch = new AtomicLong(ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE / 2));
+    private final ConcurrentHashMap<Byte, Ring> rings = new ConcurrentHashMap<>();
+
+    // @param depth   How many listings of each opcode to remember. A client whose epoch is older gets the whole listing.
+    public DeltaHistory(int depth)
+    {
+        if (depth < 1)
+            throw new IllegalArgumentException("History depth must be positive.");
+        this.depth = depth;
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /*
+     * Returns the reply to a DELTA request for the opcode, given the current listing:
+     * a patch from the client's epoch if it is still remembered, otherwise the whole listing.
+     * Consumes the listing. The result is a view the caller may consume.
+     */
+    public ByteBuffer respond(byte code, long since, ByteBuffer listing)
+    {
+        byte[] bytes = new byte[listing.remaining()];
+        listing.get(bytes);
+        Ring ring = rings.get(code);
+        if (ring == null)
+            ring = rings.computeIfAbsent(code, c -> new Ring());
+        Snapshot[] found = ring.record(bytes, since);
+        return found[0].replyTo(found[1]).duplicate();
+    }
+
+    // One listing and the replies that lead to it.
+    private static class Snapshot
+    {
+        final long epoch;
+        final byte[] listing;
+        private volatile String[] lines;
+        private volatile ByteBuffer full;
+        // Keyed by the epoch patched from. Only remembered epochs get patches, so this stays as small as the ring.
+        private final ConcurrentHashMap<Long, ByteBuffer> patches = new ConcurrentHashMap<>();
+
+        Snapshot(long epoch, byte[] listing)
+        {
+            this.epoch = epoch;
+            this.listing = listing;
+        }
+
+        String[] lines()
+        {
+            String[] l = lines;
+            if (l == null)
+                lines = l = Delta.lines(listing);
+            return l;
+        }
+
+        // Returns the reply for a client holding the given earlier snapshot, which is null if we don't remember the client's.
+        ByteBuffer replyTo(Snapshot base)
+        {
+            if (base == null)
+                return fullReply();
+            return patches.computeIfAbsent(base.epoch, e -> {
+                ByteBuffer p = Delta.patch(epoch, e, base.lines(), lines(), listing.length);
+                return p == null ? fullReply() : p;
+            });
+        }
+
+        private ByteBuffer fullReply()
+        {
+            ByteBuffer f = full;
+            if (f == null)
+                full = f = Delta.full(epoch, listing);
+            return f;
+        }
+    }
+
+    // One opcode's recent snapshots, oldest first. Guarded by its own monitor.
+    private class Ring
+    {
+        private final ArrayDeque<Snapshot> snapshots = new ArrayDeque<>();
+
+        // Makes the listing the newest snapshot, unless it already is, and returns it along with the snapshot of the given epoch (or null).
+        synchronized Snapshot[] record(byte[] listing, long since)
+        {
+            Snapshot newest = snapshots.peekLast();
+            if (newest == null || !Arrays.equals(newest.listing, listing))
+            {
+                newest = new Snapshot(lastEpoch.incrementAndGet(), listing);
+                snapshots.addLast(newest);
+                if (snapshots.size() > depth)
+                    snapshots.removeFirst();
+            }
+            Snapshot base = null;
+            if (since != Delta.NO_EPOCH)
+            {
+                for (Snapshot s : snapshots)
+                {
+                    if (s.epoch == since)
+                        base = s;
+                }
+            }
+            return new Snapshot[] { newest, base };
+        }
+    }
+}
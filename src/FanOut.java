@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/*
+ * Sends one operation to many servers at once and reports each answer as it arrives.
+ * Requests are asynchronous (see Project1Client.requestAsync), so a few threads serve every host,
+ * and at most a fixed number are outstanding at a time. Each host has its own deadline, covering name lookup,
+ * connecting and the reply, so polling many hosts takes about as long as the slowest one rather than their sum.
+ */
+public class FanOut {
+
+    public static final int DEFAULT_CONCURRENCY = 256;
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    private final Project1Client.Operation op;
+    private final long timeoutMs;
+    private final int concurrency;
+    private boolean compress;
+
+    public FanOut(Project1Client.Operation op, long timeoutMs, int concurrency)
+    {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be positive.");
+        this.op = op;
+        this.timeoutMs = timeoutMs;
+        this.concurrency = concurrency;
+    }
+
+    // Chooses whether to ask the servers to compress large responses.
+    public void setCompression(boolean compress)
+    {
+        this.compress = compress;
+    }
+
+    // A server to ask.
+    public static class Target
+    {
+        final String host;
+        final int port;
+
+        public Target(String host, int port)
+        {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    // What one server answered, or why it didn't.
+    public static class Result
+    {
+        final Target target;
+        final Project1Client.Operation op;
+        final Response response; // Null if there was no answer.
+        final String error;      // Null if there was an answer.
+        final boolean timedOut;
+        final long nanos;
+
+        Result(Target target, Project1Client.Operation op, Response response, String error, boolean timedOut, long nanos)
+        {
+            this.target = target;
+            this.op = op;
+            this.response = response;
+            this.error = error;
+            this.timedOut = timedOut;
+            this.nanos = nanos;
+        }
+
+        public boolean isOk()
+        {
+            return response != null && response.isOk();
+        }
+
+        // Returns the text of the answer, with each part labeled if it answers a batch, and structured answers formatted as text.
+        public String getText()
+        {
+            if (!response.isOk())
+                return response.getText();
+            try {
+                return Project1Client.textOf(op, response);
+            } catch (IOException ex) {
+                return ex.getMessage();
+            }
+        }
+    }
+
+    /*
+     * Asks every target, passing each result to onResult as soon as it is known (one at a time, in no particular order).
+     * Returns once every target has answered or timed out.
+     */
+    public void run(List<Target> targets, Consumer<Result> onResult) throws IOException, InterruptedException
+    {
+        ThreadFactory daemons = r -> {
+            Thread t = new Thread(r, "FanOut");
+            t.setDaemon(true);
+            return t;
+        };
+        AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(
+                Math.min(Runtime.getRuntime().availableProcessors(), 4), daemons);
+        // Name lookups block, so they get threads of their own.
+        ExecutorService resolver = Executors.newFixedThreadPool(Math.min(concurrency, 32), daemons);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemons);
+        Semaphore slots = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(targets.size());
+        Object outputLock = new Object();
+
+        try {
+            for (Target target : targets)
+            {
+                slots.acquire();
+                long start = System.nanoTime();
+                Project1Client[] client = new Project1Client[1];
+                CompletableFuture<Response> answer = new CompletableFuture<>();
+                CompletableFuture.supplyAsync(() -> resolve(target.host), resolver)
+                        .thenCompose(addr -> {
+                            synchronized (client)
+                            {
+                                client[0] = new Project1Client(addr, target.port);
+                                client[0].setAsyncChannelGroup(group);
+                                client[0].setCompression(compress);
+                            }
+                            return client[0].requestAsync(op);
+                        })
+                        .whenComplete((r, ex) -> {
+                            if (ex != null)
+                                answer.completeExceptionally(ex);
+                            else
+                                answer.complete(r);
+                        });
+                timer.schedule(() -> answer.completeExceptionally(new TimeoutException()), timeoutMs, TimeUnit.MILLISECONDS);
+
+                answer.whenComplete((r, ex) -> {
+                    long nanos = System.nanoTime() - start;
+                    synchronized (client)
+                    {
+                        if (client[0] != null)
+                            client[0].close();
+                    }
+                    slots.release();
+                    Result result;
+                    if (ex == null)
+                        result = new Result(target, op, r, null, false, nanos);
+                    else
+                    {
+                        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                        boolean timedOut = cause instanceof TimeoutException;
+                        result = new Result(target, op, null, timedOut ? "timed out" : describe(cause), timedOut, nanos);
+                    }
+                    try {
+                        synchronized (outputLock)
+                        {
+                            onResult.accept(result);
+                        }
+                    } finally {
+                        done.countDown(); // Even if onResult throws, so run() still returns.
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            timer.shutdownNow();
+            resolver.shutdownNow();
+            group.shutdownNow();
+        }
+    }
+
+    private static InetAddress resolve(String host)
+    {
+        try {
+            return InetAddress.getByName(host);
+        } catch (UnknownHostException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    private static String describe(Throwable ex)
+    {
+        if (ex instanceof UnknownHostException)
+            return "unknown host";
+        String msg = ex.getMessage();
+        return msg == null ? ex.getClass().getSimpleName() : msg;
+    }
+
+    // Prints results as rows of a table: host, outcome, time, and the response with each line after the first indented.
+    public static class TablePrinter implements Consumer<Result>
+    {
+        private final PrintStream out;
+        private int ok, failed;
+        private long slowest;
+
+        public TablePrinter(PrintStream out)
+        {
+            this.out = out;
+            out.format("%-30s %-9s %10s  %s%n", "Host", "Status", "Time (ms)", "Response");
+        }
+
+        @Override
+        public void accept(Result r)
+        {
+            String status;
+            String text;
+            if (r.response == null)
+            {
+                status = r.timedOut ? "timeout" : "error";
+                text = r.error;
+            }
+            else
+            {
+                status = r.response.isOk() ? "ok"
+                        : r.response.getStatus() == Protocol.STATUS_UNKNOWN_OPCODE ? "unknown"
+                        : r.response.getStatus() == Protocol.STATUS_BUSY ? "busy" : "error";
+                text = r.getText().trim();
+            }
+            if (r.isOk())
+                ++ok;
+            else
+                ++failed;
+            slowest = Math.max(slowest, r.nanos);
+            String[] lines = text.split("\n");
+            String host = r.target.host.contains(":") ? "[" + r.target.host + "]" : r.target.host;
+            out.format("%-30s %-9s %10.1f  %s%n", host + ":" + r.target.port, status, r.nanos / 1e6, lines[0]);
+            for (int i = 1; i < lines.length; ++i)
+                out.format("%52s  %s%n", "", lines[i]);
+            out.flush();
+        }
+
+        public void finish(long elapsedNanos)
+        {
+            out.format("%d hosts: %d ok, %d failed. Slowest %.1f ms, total %.1f ms.%n",
+                    ok + failed, ok, failed, slowest / 1e6, elapsedNanos / 1e6);
+        }
+    }
+
+    // Prints results as a JSON array, one element per line as each result arrives.
+    public static class JsonPrinter implements Consumer<Result>
+    {
+        private final PrintStream out;
+        private boolean first = true;
+
+        public JsonPrinter(PrintStream out)
+        {
+            this.out = out;
+            out.println("[");
+        }
+
+        @Override
+        public void accept(Result r)
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append(first ? "  {" : ",\n  {");
+            first = false;
+            sb.append("\"host\": ").append(quote(r.target.host));
+            sb.append(", \"port\": ").append(r.target.port);
+            sb.append(", \"ok\": ").append(r.isOk());
+            sb.append(String.format(", \"ms\": %.3f", r.nanos / 1e6));
+            if (r.response != null)
+            {
+                sb.append(", \"status\": ").append(r.response.getStatus());
+                sb.append(", \"response\": ").append(quote(r.getText()));
+            }
+            else
+            {
+                sb.append(", \"timedOut\": ").append(r.timedOut);
+                sb.append(", \"error\": ").append(quote(r.error));
+            }
+            sb.append('}');
+            out.print(sb);
+            out.flush();
+        }
+
+        public void finish()
+        {
+            out.println(first ? "]" : "\n]");
+        }
+
+        private static String quote(String s)
+        {
+            StringBuilder sb = new StringBuilder(s.length() + 2);
+            sb.append('"');
+            for (int i = 0; i < s.length(); ++i)
+            {
+                char c = s.charAt(i);
+                switch (c)
+                {
+                    case '"':  sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (c < 0x20)
+                            sb.append(String.format("\\u%04x", (int)c));
+                        else
+                            sb.append(c);
+                }
+            }
+            return sb.append('"').toString();
+        }
+    }
+}
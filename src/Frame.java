@@ -0,0 +1,31 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Wire format of one response in a keep-alive session:
+ * a status byte, a 4-byte big-endian payload length, and the payload.
+ * FrameDecoder turns frames back into Responses.
+ */
+public final class Frame {
+
+    private Frame() { }
+
+    public static final int HEADER_SIZE = 5;
+
+    // Writes a frame header.
+    public static void writeHeader(DataOutput out, byte status, int length) throws IOException
+    {
+        out.writeByte(status);
+        out.writeInt(length);
+    }
+
+    // Returns a frame header in a new buffer, ready to be read.
+    public static ByteBuffer header(byte status, int length)
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(0, status);
+        header.putInt(1, length);
+        return header;
+    }
+}
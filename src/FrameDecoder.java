@@ -0,0 +1,105 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/*
+ * Reassembles frames (see Frame) from a byte stream that may arrive in pieces of any size.
+ * Feed it bytes as they are read, then poll() for the responses that are complete.
+ * A streamed response's PARTIAL frames are joined with its final frame into one response.
+ * Compressed payloads are decompressed (see Compression).
+ * Each response also records when its first byte was fed in, for measuring time to first byte,
+ * and how many bytes it took on the wire.
+ */
+public class FrameDecoder {
+
+    private final byte[] header = new byte[Frame.HEADER_SIZE];
+    private int headerFill = 0;
+    private byte[] payload; // Null while reading a header.
+    private int payloadFill;
+    private ByteArrayOutputStream chunks; // Payloads of the PARTIAL frames of the current response, if any.
+    private long firstByteTime;           // System.nanoTime() when the current response began arriving, or 0.
+    private long wireSize;                // Bytes of the current response fed in so far, in finished frames.
+    private final Queue<Response> ready = new ArrayDeque<>();
+
+    public void feed(byte[] src, int offset, int length) throws IOException
+    {
+        feed(ByteBuffer.wrap(src, offset, length));
+    }
+
+    // Consumes all remaining bytes of src.
+    public void feed(ByteBuffer src) throws IOException
+    {
+        while (src.hasRemaining())
+        {
+            if (payload == null)
+            {
+                if (firstByteTime == 0)
+                    firstByteTime = System.nanoTime();
+                int n = Math.min(Frame.HEADER_SIZE - headerFill, src.remaining());
+                src.get(header, headerFill, n);
+                headerFill += n;
+                if (headerFill < Frame.HEADER_SIZE)
+                    return;
+                int length = (header[1] & 0xFF) << 24 | (header[2] & 0xFF) << 16 | (header[3] & 0xFF) << 8 | (header[4] & 0xFF);
+                if (length < 0 || length > Protocol.MAX_FRAME_LENGTH)
+                    throw new IOException(String.format("Malformed frame length %d.", length));
+                payload = new byte[length];
+                payloadFill = 0;
+            }
+
+            int n = Math.min(payload.length - payloadFill, src.remaining());
+            src.get(payload, payloadFill, n);
+            payloadFill += n;
+            if (payloadFill == payload.length)
+                frameDone();
+        }
+    }
+
+    private void frameDone() throws IOException
+    {
+        byte status = header[0];
+        byte[] body = payload;
+        payload = null;
+        headerFill = 0;
+        wireSize += Frame.HEADER_SIZE + body.length;
+        if ((status & Protocol.STATUS_COMPRESSED) != 0)
+        {
+            status &= ~Protocol.STATUS_COMPRESSED;
+            body = Compression.decompress(body);
+        }
+
+        if (status == Protocol.STATUS_PARTIAL)
+        {
+            // Hold on to it until the rest of the response arrives.
+            if (chunks == null)
+                chunks = new ByteArrayOutputStream(Math.max(32, body.length * 2));
+            chunks.write(body);
+            if (chunks.size() > Protocol.MAX_FRAME_LENGTH)
+                throw new IOException("Streamed response is too long.");
+            return;
+        }
+        if (chunks != null)
+        {
+            chunks.write(body);
+            body = chunks.toByteArray();
+            chunks = null;
+        }
+        ready.add(new Response(status, body, firstByteTime, wireSize));
+        firstByteTime = 0;
+        wireSize = 0;
+    }
+
+    // Returns the oldest complete response, or null if none is complete yet.
+    public Response poll()
+    {
+        return ready.poll();
+    }
+
+    // Returns true iff a response has been started but not finished.
+    public boolean isPartial()
+    {
+        return firstByteTime != 0;
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A high-dynamic-range histogram of nanosecond latencies, laid out like HdrHistogram.
+ * By default values are kept to 3 significant digits: each power-of-two range is split into 1024 equal sub-buckets,
+ * so a value of 1 ms and one of 1 minute are both recorded to within 0.1%.
+ * Fewer digits make a much smaller histogram, for keeping many of them at once.
+ * Any number of threads may record into one histogram at once; every count is an atomic add, so nothing locks.
+ */
+public class LatencyHistogram
+{
+    // Larger values are recorded as this one. About 2.4 hours.
+    public static final long HIGHEST_TRACKABLE_VALUE = 1L << 43;
+
+    // With 3 digits, 2048 sub-buckets cover the first two powers of two; every later bucket uses the top half of them.
+    private final int subBucketHalfCountMagnitude;
+    private final int subBucketHalfCount;
+    private final int subBucketCount;
+    private final long subBucketMask;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong sum = new AtomicLong();
+
+    public LatencyHistogram()
+    {
+        this(3);
+    }
+
+    // @param significantDigits   How precisely values are kept, from 1 to 5.
+    public LatencyHistogram(int significantDigits)
+    {
+        if (significantDigits < 1 || significantDigits > 5)
+            throw new IllegalArgumentException("Significant digits must be from 1 to 5.");
+        // Enough sub-buckets that values up to 2 * 10^digits are kept exactly.
+        long singleUnitResolution = 2 * (long)Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = 64 - Long.numberOfLeadingZeros(singleUnitResolution - 1);
+        subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+        subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+        subBucketCount = subBucketHalfCount * 2;
+        subBucketMask = subBucketCount - 1;
+        counts = new AtomicLongArray(countsIndex(HIGHEST_TRACKABLE_VALUE) + 1);
+    }
+
+    // Records one value in nanoseconds. Negative values are recorded as 0.
+    public void record(long nanos)
+    {
+        long value = Math.max(0, Math.min(nanos, HIGHEST_TRACKABLE_VALUE));
+        counts.incrementAndGet(countsIndex(value));
+        totalCount.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value))
+            ;
+        while (value < (m = min.get()) && !min.compareAndSet(m, value))
+            ;
+    }
+
+    // Adds every value recorded in the other histogram, which must be as precise as this one, to this one.
+    public void add(LatencyHistogram other)
+    {
+        if (other.subBucketCount != subBucketCount)
+            throw new IllegalArgumentException("Histograms differ in precision.");
+        for (int i = 0; i < counts.length(); ++i)
+        {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        sum.addAndGet(other.sum.get());
+        long m;
+        long otherMax = other.max.get();
+        while (otherMax > (m = max.get()) && !max.compareAndSet(m, otherMax))
+            ;
+        long otherMin = other.min.get();
+        while (otherMin < (m = min.get()) && !min.compareAndSet(m, otherMin))
+            ;
+    }
+
+    public long getTotalCount()
+    {
+        return totalCount.get();
+    }
+
+    // Returns the largest value recorded, exactly, or 0 if there are none.
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    // Returns the smallest value recorded, exactly, or 0 if there are none.
+    public long getMin()
+    {
+        return totalCount.get() == 0 ? 0 : min.get();
+    }
+
+    public double getMean()
+    {
+        long n = totalCount.get();
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+
+    /*
+     * Returns the value that the given percentage of recorded values are at or below,
+     * to within the histogram's precision, or 0 if there are none.
+     * @param percentile    From 0 to 100.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = totalCount.get();
+        if (total == 0)
+            return 0;
+        long wanted = Math.max(1, (long)Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); ++i)
+        {
+            seen += counts.get(i);
+            if (seen >= wanted)
+                return Math.min(highestEquivalentValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /*
+     * Writes the distribution in HdrHistogram's percentile format (.hgrm), which its plotter can read.
+     * Each half of the remaining distance to 100% gets the given number of rows, so the tail is shown in detail.
+     * @param unitNanos   Nanoseconds per unit of the value column, e.g. 1000 for microseconds.
+     */
+    public void writePercentileDistribution(PrintStream out, int ticksPerHalfDistance, double unitNanos)
+    {
+        out.format("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        long total = totalCount.get();
+        if (total != 0)
+        {
+            int index = 0;
+            long seen = 0;
+            double percentile = 0;
+            double step = 50.0 / ticksPerHalfDistance;
+            int ticks = 0;
+            while (true)
+            {
+                long wanted = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+                while (seen < wanted)
+                    seen += counts.get(index++);
+                long value = Math.min(highestEquivalentValue(index - 1), max.get());
+                if (seen == total)
+                {
+                    out.format("%12.3f %2.12f %10d%n", value / unitNanos, 1.0, seen);
+                    break;
+                }
+                out.format("%12.3f %2.12f %10d %14.2f%n", value / unitNanos, (double)seen / total, seen, 1 / (1 - (double)seen / total));
+                percentile += step;
+                if (++ticks == ticksPerHalfDistance)
+                {
+                    ticks = 0;
+                    step /= 2;
+                }
+            }
+        }
+        out.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", getMean() / unitNanos, getStdDeviation() / unitNanos);
+        out.format("#[Max     = %12.3f, Total count    = %12d]%n", getMax() / unitNanos, total);
+        out.format("#[Buckets = %12d, SubBuckets     = %12d]%n", counts.length() / subBucketHalfCount - 1, subBucketCount);
+    }
+
+    private double getStdDeviation()
+    {
+        long total = totalCount.get();
+        if (total == 0)
+            return 0;
+        double mean = getMean();
+        double squares = 0;
+        for (int i = 0; i < counts.length(); ++i)
+        {
+            long c = counts.get(i);
+            if (c != 0)
+            {
+                double d = (double)(lowestEquivalentValue(i) + highestEquivalentValue(i)) / 2 - mean;
+                squares += d * d * c;
+            }
+        }
+        return Math.sqrt(squares / total);
+    }
+
+    // Maps a value to its slot in counts.
+    private int countsIndex(long value)
+    {
+        int bucketIndex = 63 - Long.numberOfLeadingZeros(value | subBucketMask) - subBucketHalfCountMagnitude;
+        int subBucketIndex = (int)(value >>> bucketIndex);
+        return (bucketIndex << subBucketHalfCountMagnitude) + subBucketIndex;
+    }
+
+    // The smallest value that maps to the given slot.
+    private long lowestEquivalentValue(int index)
+    {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        long subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0)
+        {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return subBucketIndex << bucketIndex;
+    }
+
+    // The largest value that maps to the given slot.
+    private long highestEquivalentValue(int index)
+    {
+        return lowestEquivalentValue(index + 1) - 1;
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Summarizes a load test: for each operation, how many requests succeeded or failed, the throughput,
+ * histograms of the latency and time to first byte of the successful ones,
+ * and their average response size, decoded and on the wire.
+ * Tester threads record into it directly as their requests finish; nothing locks.
+ */
+public class LoadReport
+{
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final Map<String, OperationStats> byOperation = new ConcurrentSkipListMap<>();
+    private final long startTime;
+    private volatile long stopTime;
+
+    public LoadReport()
+    {
+        this(System.nanoTime());
+    }
+
+    // Starts the report at the given System.nanoTime(), such as the planned start of a test phase.
+    public LoadReport(long startTime)
+    {
+        this.startTime = startTime;
+    }
+
+    public void record(Project1Client.Operation op, BenchmarkResult result)
+    {
+        OperationStats stats = byOperation.get(op.getShortName());
+        if (stats == null)
+            stats = byOperation.computeIfAbsent(op.getShortName(), k -> new OperationStats());
+        stats.record(result);
+    }
+
+    // Marks the end of the test. Throughput is measured up to here.
+    public void finish()
+    {
+        finish(System.nanoTime());
+    }
+
+    // Marks the end of the test at the given System.nanoTime().
+    public void finish(long stopTime)
+    {
+        this.stopTime = stopTime;
+    }
+
+    public long getElapsedNanos()
+    {
+        long stop = stopTime;
+        return (stop == 0 ? System.nanoTime() : stop) - startTime;
+    }
+
+    // Returns the statistics for the operation with the given short name, or null if it was never recorded.
+    public OperationStats get(String operation)
+    {
+        return byOperation.get(operation);
+    }
+
+    // Prints one latency line and one time-to-first-byte line per operation. Times are in microseconds.
+    public void print(PrintStream out)
+    {
+        double seconds = getElapsedNanos() / 1e9;
+        out.format("%-10s %-11s %9s %7s %11s", "Operation", "Measure", "OK", "Errors", "Req/s");
+        for (double p : PERCENTILES)
+            out.format(" %10s", "p" + formatPercentile(p));
+        out.format(" %10s %10s %10s %10s%n", "max", "mean", "bytes", "wire");
+        for (Map.Entry<String, OperationStats> e : byOperation.entrySet())
+        {
+            OperationStats s = e.getValue();
+            long ok = s.latency.getTotalCount();
+            printRow(out, e.getKey(), "latency", s.latency,
+                    String.format("%9d %7d %11.1f", ok, s.failures.sum(), ok / seconds),
+                    ok == 0 ? "" : String.format(" %10d %10d", s.bytes.sum() / ok, s.wireBytes.sum() / ok));
+            if (s.firstByte.getTotalCount() != 0)
+                printRow(out, "", "first byte", s.firstByte, String.format("%9s %7s %11s", "", "", ""), "");
+        }
+        out.format("All times in microseconds and sizes in bytes per response. Elapsed: %.3f s.%n", seconds);
+    }
+
+    private static void printRow(PrintStream out, String operation, String measure, LatencyHistogram h, String counts, String sizes)
+    {
+        out.format("%-10s %-11s %s", operation, measure, counts);
+        for (double p : PERCENTILES)
+            out.format(" %10.1f", h.getValueAtPercentile(p) / 1000.0);
+        out.format(" %10.1f %10.1f%s%n", h.getMax() / 1000.0, h.getMean() / 1000.0, sizes);
+    }
+
+    private static String formatPercentile(double p)
+    {
+        return p == Math.rint(p) ? Long.toString((long)p) : Double.toString(p);
+    }
+
+    /*
+     * Writes each operation's latency distribution, in microseconds, to its own file named prefix.operation.hgrm.
+     * Returns false (after printing an error) if a file could not be written.
+     */
+    public boolean writeHistogramLogs(String prefix)
+    {
+        for (Map.Entry<String, OperationStats> e : byOperation.entrySet())
+        {
+            String name = prefix + "." + e.getKey() + ".hgrm";
+            try (PrintStream out = new PrintStream(name)) {
+                e.getValue().latency.writePercentileDistribution(out, 5, 1000);
+            } catch (FileNotFoundException ex) {
+                System.err.format("Cannot write histogram log \"%s\": %s\n", name, ex.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static class OperationStats
+    {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram firstByte = new LatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder wireBytes = new LongAdder();
+
+        void record(BenchmarkResult result)
+        {
+            if (!result.wasSuccess())
+            {
+                failures.increment();
+                return;
+            }
+            latency.record(result.getDuration());
+            if (result.getTimeToFirstByte() >= 0)
+                firstByte.record(result.getTimeToFirstByte());
+            bytes.add(result.getResponseSize());
+            wireBytes.add(result.getWireSize());
+        }
+
+        // Latencies of successful requests, in nanoseconds.
+        public LatencyHistogram getLatency()
+        {
+            return latency;
+        }
+
+        // Times to first byte of successful requests, in nanoseconds, where known.
+        public LatencyHistogram getFirstByte()
+        {
+            return firstByte;
+        }
+
+        public long getFailures()
+        {
+            return failures.sum();
+        }
+
+        // Decoded size of the successful responses.
+        public long getBytes()
+        {
+            return bytes.sum();
+        }
+
+        // Size of the successful responses on the wire, counting frame headers and before decompression.
+        public long getWireBytes()
+        {
+            return wireBytes.sum();
+        }
+    }
+}
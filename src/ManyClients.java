@@ -1,15 +1,26 @@
 import java.io.*;
 import java.net.InetAddress;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 // Creates and controls a number of clients to do the same thing at a time.
 public class ManyClients {
 
     List<Project1Client> clients;
+    private volatile LoadReport report;
     public ManyClients(int count, InetAddress remoteAddress, int port)
     {
         clients = new ArrayList<>();
@@ -19,15 +30,54 @@ public class ManyClients {
         }
     }
 
+    // Has every client borrow its connections from the given pool instead of connecting for itself.
+    public void setConnectionPool(ConnectionPool pool)
+    {
+        for (Project1Client c : clients)
+            c.setConnectionPool(pool);
+    }
+
+    // Chooses whether the clients ask the server to compress large responses.
+    public void setCompression(boolean compress)
+    {
+        for (Project1Client c : clients)
+            c.setCompression(compress);
+    }
+
+    // Chooses whether the clients ask for the netstat and processes listings as changes since their last copies (see Delta).
+    public void setDelta(boolean delta)
+    {
+        for (Project1Client c : clients)
+            c.setDelta(delta);
+    }
+
+    // Returns the summary of the last run, or null if there has been none.
+    public LoadReport getReport()
+    {
+        return report;
+    }
+
     public BenchmarkResult[] timeOperation(Project1Client.Operation op)
     {
+        return timeOperation(op, 1, false);
+    }
+
+    /*
+     * Has every client perform the operation the given number of times, and returns the result of every request.
+     * @param requestsPerClient   How many requests each client makes.
+     * @param keepAlive           Whether each client pipelines its requests over one keep-alive connection.
+     *                            Otherwise, each request uses a connection of its own.
+     */
+    public BenchmarkResult[] timeOperation(Project1Client.Operation op, int requestsPerClient, boolean keepAlive)
+    {
+        report = new LoadReport();
         Tester[] tests = new Tester[clients.size()];
         ExecutorService pool = Executors.newCachedThreadPool();
         // Start all tests.
         for (int i = 0; i < clients.size(); ++i)
         {
             Project1Client c = clients.get(i);
-            Tester t = new Tester(c, op);
+            Tester t = new Tester(c, op, requestsPerClient, keepAlive);
             tests[i] = t;
             pool.execute(t);
         }
@@ -38,49 +88,401 @@ public class ManyClients {
             pool.awaitTermination(1, TimeUnit.HOURS);
         } catch (InterruptedException ex)
         { return null; }
+        report.finish();
 
-        BenchmarkResult[] results = new BenchmarkResult[clients.size()];
+        BenchmarkResult[] results = new BenchmarkResult[clients.size() * requestsPerClient];
         for (int i = 0; i < clients.size(); ++i)
         {
-            results[i] = tests[i].getResult();
+            System.arraycopy(tests[i].getResults(), 0, results, i * requestsPerClient, requestsPerClient);
+        }
+
+        return results;
+    }
+
+
+    /*
+     * Has every client make the given number of requests through requestAsync, keeping up to inFlight of them outstanding at a time,
+     * and returns the result of every request, grouped by client.
+     * All the I/O is done by a fixed number of threads, however many clients there are.
+     * @param ioThreads   How many threads do the I/O for all the clients.
+     */
+    public BenchmarkResult[] timeOperationAsync(Project1Client.Operation op, int requestsPerClient, int inFlight, int ioThreads)
+            throws IOException
+    {
+        AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(ioThreads, r -> {
+            Thread t = new Thread(r, "ManyClients I/O");
+            t.setDaemon(true);
+            return t;
+        });
+        report = new LoadReport();
+        BenchmarkResult[] results = new BenchmarkResult[clients.size() * requestsPerClient];
+        CountDownLatch done = new CountDownLatch(results.length);
+        for (int i = 0; i < clients.size(); ++i)
+        {
+            Project1Client c = clients.get(i);
+            c.setAsyncChannelGroup(group);
+            AsyncTester t = new AsyncTester(c, op, requestsPerClient, results, i * requestsPerClient, done);
+            for (int j = 0; j < Math.min(inFlight, requestsPerClient); ++j)
+                t.next();
+        }
+
+        try {
+            done.await(1, TimeUnit.HOURS);
+        } catch (InterruptedException ex)
+        { return null; }
+        finally
+        {
+            report.finish();
+            for (Project1Client c : clients)
+                c.close();
+            group.shutdownNow();
+        }
+        return results;
+    }
+
+    // Makes one client's requests for timeOperationAsync. Each completed request starts the next, until there are no more.
+    private class AsyncTester
+    {
+        private final Project1Client client;
+        private final Project1Client.Operation op;
+        private final int requests;
+        private final BenchmarkResult[] results;
+        private final int offset;
+        private final CountDownLatch done;
+        private final AtomicInteger started = new AtomicInteger();
+
+        AsyncTester(Project1Client client, Project1Client.Operation op, int requests, BenchmarkResult[] results, int offset, CountDownLatch done)
+        {
+            this.client = client;
+            this.op = op;
+            this.requests = requests;
+            this.results = results;
+            this.offset = offset;
+            this.done = done;
         }
 
+        void next()
+        {
+            int i = started.getAndIncrement();
+            if (i >= requests)
+                return;
+            long startTime = System.nanoTime();
+            client.requestAsync(op).whenComplete((resp, ex) -> {
+                long stopTime = System.nanoTime();
+                BenchmarkResult r;
+                if (ex != null)
+                {
+                    r = new BenchmarkResult(false, 0, stopTime - startTime);
+                }
+                else
+                {
+                    long firstByte = resp.getFirstByteTime() == 0 ? -1 : resp.getFirstByteTime() - startTime;
+                    r = new BenchmarkResult(resp, stopTime - startTime, firstByte);
+                }
+                results[offset + i] = r;
+                report.record(op, r);
+                done.countDown();
+                next();
+            });
+        }
+    }
+
+    /*
+     * Sends requests at a fixed rate for a fixed time, whether or not earlier requests have been answered (an open-loop test).
+     * The clients act as a pool of connections; a request that finds them all busy waits for one.
+     * Every duration is measured from when the request was scheduled to be sent, not from when it actually was,
+     * so time spent waiting behind a slow server counts against the server (avoiding coordinated omission).
+     * @param ratePerSecond   How many requests to send per second.
+     * @param durationNanos   How long to keep sending.
+     * @param keepAlive       Whether each client reuses one keep-alive connection.
+     * @return The result of every request, in the order they were scheduled.
+     */
+    public BenchmarkResult[] runOpenLoop(Project1Client.Operation op, double ratePerSecond, long durationNanos, boolean keepAlive)
+    {
+        long total = (long)(ratePerSecond * durationNanos / 1e9);
+        if (total > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many requests for one run.");
+        BenchmarkResult[] results = new BenchmarkResult[(int)total];
+        LoadReport report = new LoadReport();
+        this.report = report;
+
+        BlockingQueue<Project1Client> idle = new ArrayBlockingQueue<>(clients.size(), false, clients);
+        for (Project1Client c : clients)
+            c.setKeepAlive(keepAlive);
+        ExecutorService pool = Executors.newFixedThreadPool(clients.size());
+
+        double interval = 1e9 / ratePerSecond;
+        long start = System.nanoTime();
+        for (int i = 0; i < results.length; ++i)
+        {
+            long intended = start + (long)(i * interval);
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0)
+                LockSupport.parkNanos(wait);
+            pool.execute(new ScheduledRequest(op, idle, results, report, i, intended));
+        }
+
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException ex)
+        { return null; }
+        finally
+        {
+            report.finish();
+            for (Project1Client c : clients)
+                c.close();
+        }
         return results;
     }
 
+    /*
+     * Runs a mixed workload with one virtual user per client, and returns a report for each phase that has a nonzero length,
+     * in order, keyed by "ramp-up", "steady" or "ramp-down".
+     * A request counts toward the phase in which it was sent.
+     * @param keepAlive   Whether each user reuses one keep-alive connection for all of its requests.
+     */
+    public Map<String, LoadReport> runScenario(Scenario scenario, boolean keepAlive)
+    {
+        int users = clients.size();
+        long start = System.nanoTime();
+        long steadyStart = start + scenario.getRampUpNanos();
+        long rampDownStart = steadyStart + scenario.getSteadyNanos();
+        long end = rampDownStart + scenario.getRampDownNanos();
+
+        // Phase i runs from phaseStarts[i] until the next phase starts.
+        String[] phaseNames = { "ramp-up", "steady", "ramp-down" };
+        long[] phaseStarts = { start, steadyStart, rampDownStart, end };
+        LoadReport[] phaseReports = new LoadReport[phaseNames.length];
+        for (int i = 0; i < phaseReports.length; ++i)
+        {
+            phaseReports[i] = new LoadReport(phaseStarts[i]);
+            phaseReports[i].finish(phaseStarts[i + 1]);
+        }
+
+        ExecutorService pool = Executors.newCachedThreadPool();
+        for (int i = 0; i < users; ++i)
+        {
+            Project1Client c = clients.get(i);
+            c.setKeepAlive(keepAlive);
+            long userStart = start + scenario.getRampUpNanos() * i / users;
+            long userStop = rampDownStart + scenario.getRampDownNanos() * (i + 1) / users;
+            pool.execute(new VirtualUser(c, scenario, userStart, userStop, phaseStarts, phaseReports));
+        }
+
+        pool.shutdown();
+        try {
+            pool.awaitTermination(scenario.getTotalNanos() + TimeUnit.HOURS.toNanos(1), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex)
+        { return null; }
+        finally
+        {
+            for (Project1Client c : clients)
+                c.close();
+        }
+
+        Map<String, LoadReport> byPhase = new LinkedHashMap<>();
+        for (int i = 0; i < phaseNames.length; ++i)
+        {
+            if (phaseStarts[i + 1] > phaseStarts[i])
+                byPhase.put(phaseNames[i], phaseReports[i]);
+        }
+        report = byPhase.get("steady");
+        return byPhase;
+    }
+
+    // One client's part in a scenario: request, think, repeat, from its start time until its stop time.
+    private static class VirtualUser implements Runnable
+    {
+        private final Project1Client client;
+        private final Scenario scenario;
+        private final long startTime;
+        private final long stopTime;
+        private final long[] phaseStarts;
+        private final LoadReport[] phaseReports;
+
+        VirtualUser(Project1Client client, Scenario scenario, long startTime, long stopTime, long[] phaseStarts, LoadReport[] phaseReports)
+        {
+            this.client = client;
+            this.scenario = scenario;
+            this.startTime = startTime;
+            this.stopTime = stopTime;
+            this.phaseStarts = phaseStarts;
+            this.phaseReports = phaseReports;
+        }
+
+        @Override
+        public void run()
+        {
+            Random random = ThreadLocalRandom.current();
+            long wait;
+            while ((wait = startTime - System.nanoTime()) > 0)
+                LockSupport.parkNanos(wait);
+
+            long now;
+            while ((now = System.nanoTime()) - stopTime < 0)
+            {
+                Project1Client.Operation op = scenario.pickOperation(random);
+                BenchmarkResult result;
+                try {
+                    Response resp = client.request(op);
+                    long stop = System.nanoTime();
+                    long firstByte = resp.getFirstByteTime() == 0 ? -1 : resp.getFirstByteTime() - now;
+                    result = new BenchmarkResult(resp, stop - now, firstByte);
+                } catch (IOException ex) {
+                    result = new BenchmarkResult(false, 0, System.nanoTime() - now);
+                }
+                phaseReports[phaseAt(now)].record(op, result);
+
+                long thinkUntil = System.nanoTime() + scenario.pickThinkTime(random);
+                while ((wait = Math.min(thinkUntil, stopTime) - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+            }
+        }
+
+        private int phaseAt(long time)
+        {
+            int phase = 0;
+            while (phase < phaseReports.length - 1 && time - phaseStarts[phase + 1] >= 0)
+                ++phase;
+            return phase;
+        }
+    }
+
+    // One request of an open-loop run.
+    private static class ScheduledRequest implements Runnable
+    {
+        private final Project1Client.Operation op;
+        private final BlockingQueue<Project1Client> idle;
+        private final BenchmarkResult[] results;
+        private final LoadReport report;
+        private final int index;
+        private final long intendedTime;
+
+        ScheduledRequest(Project1Client.Operation op, BlockingQueue<Project1Client> idle, BenchmarkResult[] results, LoadReport report, int index, long intendedTime)
+        {
+            this.op = op;
+            this.idle = idle;
+            this.results = results;
+            this.report = report;
+            this.index = index;
+            this.intendedTime = intendedTime;
+        }
+
+        @Override
+        public void run()
+        {
+            Project1Client client;
+            try {
+                client = idle.take();
+            } catch (InterruptedException ex) {
+                results[index] = new BenchmarkResult(false, 0, 0);
+                report.record(op, results[index]);
+                return;
+            }
+            try {
+                Response resp = client.request(op);
+                long stopTime = System.nanoTime();
+                long firstByte = resp.getFirstByteTime() == 0 ? -1 : resp.getFirstByteTime() - intendedTime;
+                results[index] = new BenchmarkResult(resp, stopTime - intendedTime, firstByte);
+            } catch (IOException ex) {
+                results[index] = new BenchmarkResult(false, 0, System.nanoTime() - intendedTime);
+            } finally {
+                idle.add(client);
+            }
+            report.record(op, results[index]);
+        }
+    }
 
     class Tester extends Thread
     {
         private Project1Client client;
         private Project1Client.Operation op;
-        private BenchmarkResult result = null;
+        private boolean keepAlive;
+        private BenchmarkResult[] results;
 
-        public Tester(Project1Client client, Project1Client.Operation operation)
+        public Tester(Project1Client client, Project1Client.Operation operation, int requests, boolean keepAlive)
         {
             this.client = client;
             op = operation;
+            this.keepAlive = keepAlive;
+            results = new BenchmarkResult[requests];
         }
 
-        public BenchmarkResult getResult()
+        public BenchmarkResult[] getResults()
         {
-            return result;
+            return results;
         }
 
         @Override
         public void run()
         {
-            try {
-                long startTime = System.currentTimeMillis();
-                String resp = client.doRequest(op);
-                long stopTime = System.currentTimeMillis();
+            if (keepAlive && runPipelined())
+                return;
+
+            for (int i = 0; i < results.length; ++i)
+            {
+                try {
+                    long startTime = System.nanoTime();
+                    Response resp = client.request(op);
+                    long stopTime = System.nanoTime();
 
-                int length = resp.trim().length();
-                result = new BenchmarkResult(true, length, stopTime - startTime);
+                    results[i] = toResult(resp, startTime, stopTime);
+                }
+                catch (IOException ex)
+                {
+                    results[i] = new BenchmarkResult(false, 0, 0);
+                }
+                report.record(op, results[i]);
+            }
+        }
+
+        // Times are from System.nanoTime().
+        private BenchmarkResult toResult(Response resp, long startTime, long stopTime)
+        {
+            long firstByte = resp.getFirstByteTime() == 0 ? -1 : resp.getFirstByteTime() - startTime;
+            return new BenchmarkResult(resp, stopTime - startTime, firstByte);
+        }
+
+        // Sends all requests over one session before reading any replies.
+        // Each request's duration runs from when the batch was sent until its own reply arrived.
+        // Returns false if the server doesn't support sessions.
+        private boolean runPipelined()
+        {
+            int done = 0;
+            ClientSession session = null;
+            try {
+                session = client.openSession();
+                if (session == null)
+                    return false;
+                long startTime = System.nanoTime();
+                for (int i = 0; i < results.length; ++i)
+                    session.send(op);
+                session.flush();
+                for (; done < results.length; ++done)
+                {
+                    Response resp = session.receive();
+                    long stopTime = System.nanoTime();
+                    results[done] = toResult(resp, startTime, stopTime);
+                    report.record(op, results[done]);
+                }
             }
             catch (IOException ex)
             {
-                result = new BenchmarkResult(false, 0, 0);
+                for (; done < results.length; ++done)
+                {
+                    results[done] = new BenchmarkResult(false, 0, 0);
+                    report.record(op, results[done]);
+                }
+            }
+            finally
+            {
+                try {
+                    if (session != null)
+                        session.close();
+                } catch (IOException ex) { } // Ignore exception when closing.
             }
+            return true;
         }
     }
 
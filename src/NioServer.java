@@ -0,0 +1,610 @@
+/*
+ * This server multiplexes all of its clients over a few event-loop threads using a Selector,
+ * rather than giving each client a thread of its own.
+ * The first event loop also accepts new connections and deals them out round-robin to all loops.
+ * Opcodes that are quick to answer, and cache hits, are handled right on the event loop.
+ * Opcodes that read /proc or run an external command are handed to their bulkheads (see Bulkheads) so the loops never block;
+ * when a bulkhead's queue is full, the request is answered BUSY.
+ * Keep-alive clients may pipeline requests; each connection's requests are answered one at a time, in order.
+ * Replies are queued as buffers and written with gathering writes; cached and fixed replies are direct buffers shared without copying.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+public class NioServer implements Server {
+
+    public static final int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+
+    // Size of each event loop's direct read buffer.
+    private static final int READ_BUFFER_SIZE = 4096;
+    // Most buffers handed to one gathering write.
+    private static final int GATHER_LIMIT = 16;
+    // How many pipelined request bytes we hold for each client while earlier requests are answered.
+    private static final int INPUT_BUFFER_SIZE = 256;
+
+    private ServerSocketChannel svChannel;
+    private EventLoop[] loops;
+    private Thread[] loopThreads;
+    private Responder responder;
+    private final ServerMetrics metrics = ServerMetrics.get();
+    private volatile boolean stop = false;
+
+    /*
+     * @param port            The port to listen on.
+     * @param eventLoopCount  The number of threads that do socket I/O.
+     * @param responder       Produces the responses sent to clients, running slow ones in its bulkheads.
+     */
+    public NioServer(int port, int eventLoopCount, Responder responder) throws IOException
+    {
+        if (eventLoopCount < 1)
+            throw new IllegalArgumentException("Event loop count must be positive.");
+
+        this.responder = responder;
+        svChannel = ServerSocketChannel.open();
+        svChannel.bind(new InetSocketAddress(port), 1024);
+        svChannel.configureBlocking(false);
+
+        loops = new EventLoop[eventLoopCount];
+        loopThreads = new Thread[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; ++i)
+        {
+            loops[i] = new EventLoop();
+            loopThreads[i] = new Thread(loops[i], "nio-loop-" + i);
+        }
+        svChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        Bulkheads bulkheads = responder.getBulkheads();
+        metrics.setQueueDepth(bulkheads::getQueueDepth);
+        metrics.setBulkheads(bulkheads);
+    }
+
+    @Override
+    public void start()
+    {
+        try {
+            System.out.format("Starting NIO server on %s with %d event loops and %s.\n",
+                    svChannel.getLocalAddress().toString(), loops.length, responder.getBulkheads().describe());
+        } catch (IOException ex) { } // Only affects the message.
+        for (Thread t : loopThreads)
+            t.start();
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        for (Thread t : loopThreads)
+        {
+            if (t.isAlive())
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void stop(long timeoutMilliseconds)
+    {
+        stop = true;
+        for (EventLoop loop : loops)
+            loop.selector.wakeup();
+        try {
+            long deadline = System.currentTimeMillis() + timeoutMilliseconds;
+            for (Thread t : loopThreads)
+                t.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException ex) { }
+    }
+
+    @Override
+    public void abort()
+    {
+        stop = true;
+        for (EventLoop loop : loops)
+            loop.selector.wakeup();
+        for (Thread t : loopThreads)
+            t.interrupt();
+    }
+
+    private int nextLoop = 0;
+
+    // Called on the first event loop when the server socket has connections waiting.
+    private void acceptAll() throws IOException
+    {
+        SocketChannel ch;
+        while ((ch = svChannel.accept()) != null)
+        {
+            metrics.connectionOpened();
+            if (ServerLog.isEnabled(ServerLog.Level.INFO))
+                ServerLog.info("Client connected: %s\n", ch.socket().getRemoteSocketAddress());
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            EventLoop target = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            target.add(ch);
+        }
+    }
+
+    class EventLoop implements Runnable
+    {
+        final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuf = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer[] gather = new ByteBuffer[GATHER_LIMIT];
+
+        EventLoop() throws IOException
+        {
+            selector = Selector.open();
+        }
+
+        // Runs the given task on this loop's thread. May be called from any thread.
+        void execute(Runnable task)
+        {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Starts serving the given newly accepted client on this loop.
+        void add(final SocketChannel ch)
+        {
+            execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        ch.register(selector, SelectionKey.OP_READ, new Connection());
+                    } catch (IOException ex) {
+                        closeClient(ch);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while (!stop)
+                {
+                    selector.select();
+                    runTasks();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext())
+                    {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                }
+            } catch (IOException ex) {
+                ServerLog.error("Server error: %s\n", ex.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys())
+                    closeClient(key.channel());
+                close(selector);
+            }
+        }
+
+        private void runTasks()
+        {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+
+        private void handle(SelectionKey key)
+        {
+            try {
+                if (!key.isValid())
+                    return;
+                if (key.isAcceptable())
+                {
+                    acceptAll();
+                    return;
+                }
+                if (key.isReadable())
+                    onReadable(key);
+                if (key.isValid() && key.isWritable())
+                    onWritable(key);
+            } catch (IOException ex) {
+                if (key.channel() == svChannel)
+                {
+                    ServerLog.error("Server error: %s\n", ex.getMessage());
+                    return;
+                }
+                String exmsg = ex.getMessage();
+                if (!"Connection reset".equals(exmsg))
+                    ServerLog.error("Error communicating with client: %s\n", exmsg);
+                closeClient(key.channel());
+            }
+        }
+
+        private void onReadable(SelectionKey key) throws IOException
+        {
+            SocketChannel ch = (SocketChannel)key.channel();
+            Connection conn = (Connection)key.attachment();
+            readBuf.clear();
+            readBuf.limit(Math.min(readBuf.capacity(), conn.in.remaining()));
+            int bytesRead = ch.read(readBuf);
+            if (bytesRead == -1)
+            {
+                // The client won't send anything more, but may still be waiting for replies.
+                conn.inputClosed = true;
+            } else {
+                readBuf.flip();
+                conn.in.put(readBuf);
+            }
+            process(key, conn);
+            flushAndUpdate(key, conn);
+        }
+
+        private void onWritable(SelectionKey key) throws IOException
+        {
+            Connection conn = (Connection)key.attachment();
+            if (!flush((SocketChannel)key.channel(), conn.out))
+                return;
+            // Caught up; answer any requests that were waiting for the socket to drain.
+            process(key, conn);
+            flushAndUpdate(key, conn);
+        }
+
+        // Answers as many buffered requests as possible without blocking.
+        private void process(SelectionKey key, Connection conn)
+        {
+            conn.in.flip();
+            try {
+                loop:
+                while (!conn.busy && !conn.closeAfterWrite && conn.in.hasRemaining())
+                {
+                    switch (conn.state)
+                    {
+                        case Connection.FIRST:
+                            byte first = conn.in.get(conn.in.position());
+                            if (first == Protocol.HELLO)
+                            {
+                                conn.in.get();
+                                conn.state = Connection.HELLO;
+                            } else {
+                                // A version 1 client: answer once and hang up.
+                                if (!hasWholeRequest(conn.in))
+                                    break loop;
+                                conn.closeAfterWrite = true;
+                                answerNext(key, conn);
+                                if (!key.isValid())
+                                    return;
+                            }
+                            break;
+                        case Connection.HELLO:
+                            if (conn.in.remaining() < 2)
+                                break loop;
+                            byte version = (byte)Math.min(conn.in.get(), Protocol.CURRENT_VERSION);
+                            byte features = (byte)(conn.in.get() & Protocol.SUPPORTED_FEATURES);
+                            if (version < Protocol.VERSION_KEEP_ALIVE)
+                            {
+                                closeClient(key.channel());
+                                return;
+                            }
+                            conn.out.add(ByteBuffer.wrap(new byte[] { Protocol.HELLO, version, features }));
+                            if ((features & Protocol.FEATURE_COMPRESSION) != 0)
+                                conn.compressAt = responder.getCompressionThreshold();
+                            conn.state = Connection.SESSION;
+                            break;
+                        case Connection.SESSION:
+                            if (!hasWholeRequest(conn.in))
+                                break loop;
+                            answerNext(key, conn);
+                            if (!key.isValid())
+                                return;
+                            break;
+                    }
+                }
+            } finally {
+                conn.in.compact();
+            }
+        }
+
+        // Returns true iff the buffer holds a whole request: an opcode, a whole delta request,
+        // or a whole batch request (or one with an invalid count, which answerNext rejects).
+        private boolean hasWholeRequest(ByteBuffer in)
+        {
+            byte first = in.get(in.position());
+            if (first == Protocol.DELTA)
+                return in.remaining() >= Delta.REQUEST_SIZE;
+            if (first != Protocol.BATCH)
+                return true;
+            if (in.remaining() < 2)
+                return false;
+            int count = in.get(in.position() + 1) & 0xFF;
+            return !Batch.isValidCount(count) || in.remaining() >= 2 + count;
+        }
+
+        // Answers the request at the front of the input: one opcode, a delta request, or a whole batch.
+        private void answerNext(SelectionKey key, Connection conn)
+        {
+            long start = System.nanoTime();
+            AdmissionControl admission = responder.getAdmissionControl();
+            byte code = conn.in.get();
+            if (code == Protocol.DELTA)
+            {
+                byte listing = conn.in.get();
+                long since = conn.in.getLong();
+                AdmissionControl.Permit permit = admitted(conn, code, admission.admit(listing));
+                if (permit != null)
+                    answerDelta(key, conn, listing, since, start, permit);
+                return;
+            }
+            if (code != Protocol.BATCH)
+            {
+                AdmissionControl.Permit permit = admitted(conn, code, admission.admit(code));
+                if (permit != null)
+                    answer(key, conn, code, start, permit);
+                return;
+            }
+            int count = conn.in.get() & 0xFF;
+            if (!Batch.isValidCount(count))
+            {
+                // We can't tell where the next request starts. Send what's queued, then hang up.
+                conn.closeAfterWrite = true;
+                return;
+            }
+            byte[] codes = new byte[count];
+            conn.in.get(codes);
+            AdmissionControl.Permit permit = admitted(conn, code, admission.admitBatch(codes));
+            if (permit != null)
+                answerBatch(key, conn, codes, start, permit);
+        }
+
+        // Returns the request's permit, or if it was shed (the permit is null), counts it and queues a BUSY reply.
+        private AdmissionControl.Permit admitted(Connection conn, byte code, AdmissionControl.Permit permit)
+        {
+            if (permit == null)
+                busy(conn, code);
+            return permit;
+        }
+
+        // Tells the client we have no room for its request. A single-shot client is hung up on after the reply.
+        private void busy(Connection conn, byte code)
+        {
+            metrics.recordShed(code);
+            if (conn.state == Connection.SESSION)
+                conn.out.add(Frame.header(Protocol.STATUS_BUSY, 0));
+            else
+                conn.out.add(ByteBuffer.wrap(new byte[] { Protocol.BUSY }));
+        }
+
+        // Queues the reply to a batch, handing it to a worker unless every part can be answered now.
+        private void answerBatch(final SelectionKey key, final Connection conn, final byte[] codes, long start, AdmissionControl.Permit permit)
+        {
+            offload(key, conn, Protocol.BATCH, start, permit, responder.respondBatchAsync(codes));
+        }
+
+        // Queues the reply to a delta request, handing it to a worker if the listing would block.
+        private void answerDelta(final SelectionKey key, final Connection conn, final byte code, final long since, long start,
+                AdmissionControl.Permit permit)
+        {
+            if (!Delta.supports(code))
+            {
+                permit.release();
+                unknown(key, conn, code);
+                return;
+            }
+            offload(key, conn, Protocol.DELTA, start, permit, responder.respondDeltaAsync(code, since));
+        }
+
+        // Queues the response to one opcode, handing it to a worker if it would block.
+        private void answer(final SelectionKey key, final Connection conn, final byte code, long start, AdmissionControl.Permit permit)
+        {
+            if (!ServerCommands.isKnown(code))
+            {
+                permit.release();
+                unknown(key, conn, code);
+                return;
+            }
+
+            ByteBuffer now = ServerCommands.isSlow(code) ? responder.tryRespondNow(code) : responder.respond(code);
+            if (now != null)
+            {
+                reply(conn, now);
+                permit.release();
+                metrics.recordRequest(code, System.nanoTime() - start);
+                return;
+            }
+
+            offload(key, conn, code, start, permit, responder.respondAsync(code));
+        }
+
+        // Tells a session client that the opcode is unknown, or hangs up on a single-shot one.
+        private void unknown(SelectionKey key, Connection conn, byte code)
+        {
+            metrics.recordUnknownOpcode();
+            ServerLog.warn("Unknown command: %02x\n", code);
+            if (conn.state == Connection.SESSION)
+                conn.out.add(Frame.header(Protocol.STATUS_UNKNOWN_OPCODE, 0));
+            else
+                closeClient(key.channel());
+        }
+
+        // Waits for a reply being produced in a bulkhead (see Responder.respondAsync), then queues it back on this loop,
+        // or queues it at once if it is already there. The connection reads nothing more meanwhile. The request's time, from start until its reply is queued,
+        // is recorded under the given opcode, and its permit is released then. If the bulkhead had no room, the request is shed instead.
+        private void offload(final SelectionKey key, final Connection conn, final byte code, final long start,
+                final AdmissionControl.Permit permit, CompletableFuture<ByteBuffer> pending)
+        {
+            if (pending.isDone() && !pending.isCompletedExceptionally())
+            {
+                reply(conn, pending.join());
+                permit.release();
+                metrics.recordRequest(code, System.nanoTime() - start);
+                return;
+            }
+            conn.busy = true;
+            pending.whenComplete((msg, ex) -> {
+                final ByteBuffer compressed = ex == null ? compressFor(conn, msg) : null; // Here rather than on the loop.
+                execute(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        conn.busy = false;
+                        permit.release();
+                        if (!key.isValid())
+                            return; // Client went away while we were working.
+                        if (ex == null)
+                        {
+                            reply(conn, msg, compressed);
+                            metrics.recordRequest(code, System.nanoTime() - start);
+                        }
+                        else if (causeOf(ex) instanceof RejectedExecutionException)
+                            busy(conn, code); // The bulkhead's queue is full.
+                        else
+                        {
+                            ServerLog.error("Failed to answer %s: %s\n", ServerCommands.nameOf(code), causeOf(ex));
+                            closeClient(key.channel());
+                            return;
+                        }
+                        process(key, conn);
+                        try {
+                            flushAndUpdate(key, conn);
+                        } catch (IOException e) {
+                            closeClient(key.channel());
+                        }
+                    }
+                });
+            });
+        }
+
+        // Returns what a future failed with, unwrapped from the CompletionException its dependents see.
+        private Throwable causeOf(Throwable ex)
+        {
+            return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        }
+
+        private void reply(Connection conn, ByteBuffer msg)
+        {
+            reply(conn, msg, compressFor(conn, msg));
+        }
+
+        // Queues a reply, sending the compressed form of the payload instead if there is one.
+        private void reply(Connection conn, ByteBuffer msg, ByteBuffer compressed)
+        {
+            if (compressed != null)
+            {
+                conn.out.add(Frame.header((byte)(Protocol.STATUS_OK | Protocol.STATUS_COMPRESSED), compressed.remaining()));
+                conn.out.add(compressed);
+                return;
+            }
+            if (conn.state == Connection.SESSION)
+                conn.out.add(Frame.header(Protocol.STATUS_OK, msg.remaining()));
+            conn.out.add(msg);
+        }
+
+        // Returns the payload compressed for the connection in a buffer of its own, or null if it should be sent as is.
+        private ByteBuffer compressFor(Connection conn, ByteBuffer msg)
+        {
+            if (conn.state != Connection.SESSION || msg.remaining() < conn.compressAt)
+                return null;
+            ByteBuffer compressed = Compression.compress(msg);
+            if (compressed == null)
+                return null;
+            ByteBuffer copy = ByteBuffer.allocate(compressed.remaining());
+            copy.put(compressed);
+            copy.flip();
+            return copy;
+        }
+
+        // Writes what we can, then decides whether to close or what to wait for next.
+        private void flushAndUpdate(SelectionKey key, Connection conn) throws IOException
+        {
+            if (!key.isValid())
+                return;
+            boolean drained = flush((SocketChannel)key.channel(), conn.out);
+            if (drained && !conn.busy && (conn.closeAfterWrite || conn.inputClosed))
+            {
+                closeClient(key.channel());
+                return;
+            }
+            int ops = 0;
+            if (!drained)
+                ops |= SelectionKey.OP_WRITE;
+            // Stop reading while replies are backed up, so a client that never reads can't make us buffer without bound.
+            else if (!conn.inputClosed && !conn.closeAfterWrite && conn.in.hasRemaining())
+                ops |= SelectionKey.OP_READ;
+            key.interestOps(ops);
+        }
+
+        // Writes as much of the queued buffers as the socket will take, several at a time in one gathering write,
+        // so that a frame header and its payload, or several pipelined replies, go out together.
+        // Returns true iff the queue was emptied.
+        private boolean flush(SocketChannel ch, Queue<ByteBuffer> out) throws IOException
+        {
+            while (!out.isEmpty())
+            {
+                int n = 0;
+                for (ByteBuffer b : out)
+                {
+                    if (n == gather.length)
+                        break;
+                    gather[n++] = b;
+                }
+                try {
+                    metrics.addBytesOut(ch.write(gather, 0, n));
+                    if (gather[n - 1].hasRemaining())
+                    {
+                        // The socket's send buffer is full.
+                        dropWritten(out);
+                        return false;
+                    }
+                } finally {
+                    Arrays.fill(gather, 0, n, null);
+                }
+                dropWritten(out);
+            }
+            return true;
+        }
+
+        private void dropWritten(Queue<ByteBuffer> out)
+        {
+            while (!out.isEmpty() && !out.peek().hasRemaining())
+                out.poll();
+        }
+    }
+
+    // Per-client protocol state, owned by the client's event loop.
+    private static class Connection
+    {
+        static final int FIRST = 0;   // Waiting for the first byte, which tells us the protocol version.
+        static final int HELLO = 1;   // Waiting for the rest of a HELLO.
+        static final int SESSION = 2; // In a keep-alive session.
+
+        int state = FIRST;
+        final ByteBuffer in = ByteBuffer.allocate(INPUT_BUFFER_SIZE); // Kept ready for writing.
+        final Queue<ByteBuffer> out = new ArrayDeque<>();
+        boolean busy;            // A worker is producing the reply to the current request.
+        boolean closeAfterWrite; // Single-shot client; hang up once the reply is sent.
+        boolean inputClosed;     // The client has shut down its side of the connection.
+        int compressAt = Compression.NEVER; // Session payloads at least this long are compressed.
+    }
+
+    // Closes a client's connection, counting it as closed the first time.
+    private void closeClient(Channel ch)
+    {
+        if (ch instanceof SocketChannel && ch.isOpen())
+        {
+            metrics.connectionClosed();
+            if (ServerLog.isEnabled(ServerLog.Level.INFO))
+                ServerLog.info("Client disconnected: %s\n", ((SocketChannel)ch).socket().getRemoteSocketAddress());
+        }
+        close(ch);
+    }
+
+    private static void close(java.io.Closeable c)
+    {
+        try {
+            c.close();
+        } catch (IOException ex) { } // Ignore exception when closing.
+    }
+}
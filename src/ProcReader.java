@@ -0,0 +1,892 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/*
+ * Reads system information straight from /proc (and /var/run/utmp) instead of running free, netstat, who and ps.
+ * The output imitates those commands' default output, except that netstat shows numeric addresses
+ * rather than looking up host names.
+ *
+ * Each source can also be returned as a structured response (see Structured), from the same parse.
+ *
+ * Each instance reuses one read buffer and one output builder, so an instance must only be used by one thread at a time.
+ * Use get() to obtain the calling thread's instance.
+ * The text returned is that builder itself, so it is only valid until the next call on the same instance;
+ * likewise for the buffer returned by the structured methods.
+ */
+public class ProcReader {
+
+    private static final ThreadLocal<ProcReader> instances = ThreadLocal.withInitial(ProcReader::new);
+
+    // Returns the calling thread's reader.
+    public static ProcReader get()
+    {
+        return instances.get();
+    }
+
+    // Clock ticks per second used by /proc/[pid]/stat. This is 100 on every mainstream Linux platform.
+    private static final int CLOCK_TICKS = 100;
+    private static final String PROC = "/proc/";
+    private static final File PROC_DIR = new File(PROC);
+
+    private byte[] buf = new byte[16 * 1024];
+    private int length; // Number of valid bytes in buf.
+    private int pos;    // Parse position in buf.
+    private final StringBuilder out = new StringBuilder(16 * 1024);
+    private final StringBuilder path = new StringBuilder(PROC); // Reused for per-process paths.
+    private ByteBuffer bin = ByteBuffer.allocate(16 * 1024); // The structured counterpart of out.
+    private final long[] memory = new long[Structured.MEMORY_FIELDS];
+    private int[] pids = new int[1024]; // Reused for the process listing; grows to the most processes seen.
+
+    private ProcReader() { }
+
+    // Returns the number of whole seconds the system has been up.
+    public int uptimeSeconds() throws IOException
+    {
+        load("/proc/uptime");
+        return (int)nextLong();
+    }
+
+    // Returns the memory summary in the format of "free".
+    public CharSequence memoryUsage() throws IOException
+    {
+        readMemory();
+        out.setLength(0);
+        formatMemory(out, memory);
+        return out;
+    }
+
+    // Returns the memory summary as a structured response.
+    public ByteBuffer memoryUsageStructured() throws IOException
+    {
+        readMemory();
+        startStructured();
+        reserve(memory.length * 8);
+        for (long value : memory)
+            bin.putLong(value);
+        return finishStructured();
+    }
+
+    // Fills memory with the fields of "free", in the order of Structured.MEMORY_FIELDS.
+    private void readMemory() throws IOException
+    {
+        load("/proc/meminfo");
+        long total = 0, free = 0, available = -1, buffers = 0, cached = 0, reclaimable = 0, shared = 0;
+        long swapTotal = 0, swapFree = 0;
+        while (pos < length)
+        {
+            int nameStart = pos;
+            int colon = indexOf((byte)':', pos);
+            if (colon < 0)
+                break;
+            pos = colon + 1;
+            long value = nextLong();
+            if (nameEquals(nameStart, colon, "MemTotal")) total = value;
+            else if (nameEquals(nameStart, colon, "MemFree")) free = value;
+            else if (nameEquals(nameStart, colon, "MemAvailable")) available = value;
+            else if (nameEquals(nameStart, colon, "Buffers")) buffers = value;
+            else if (nameEquals(nameStart, colon, "Cached")) cached = value;
+            else if (nameEquals(nameStart, colon, "SReclaimable")) reclaimable = value;
+            else if (nameEquals(nameStart, colon, "Shmem")) shared = value;
+            else if (nameEquals(nameStart, colon, "SwapTotal")) swapTotal = value;
+            else if (nameEquals(nameStart, colon, "SwapFree")) swapFree = value;
+            skipLine();
+        }
+        long buffCache = buffers + cached + reclaimable;
+        if (available < 0)
+            available = free; // Kernels before 3.14 don't report it.
+        long used = total - available;
+        if (used < 0)
+            used = total - free;
+
+        memory[0] = total;
+        memory[1] = used;
+        memory[2] = free;
+        memory[3] = shared;
+        memory[4] = buffCache;
+        memory[5] = available;
+        memory[6] = swapTotal;
+        memory[7] = swapTotal - swapFree;
+        memory[8] = swapFree;
+    }
+
+    // Appends memory fields, in the order of Structured.MEMORY_FIELDS, in the format of "free".
+    static void formatMemory(StringBuilder out, long[] memory)
+    {
+        out.append("               total        used        free      shared  buff/cache   available\n");
+        out.append("Mem:    ");
+        for (int i = 0; i < 6; ++i)
+            appendRight(out, memory[i], 12);
+        out.append("\nSwap:   ");
+        for (int i = 6; i < 9; ++i)
+            appendRight(out, memory[i], 12);
+        out.append('\n');
+    }
+
+    private static final String[] TCP_STATES = {
+            "", "ESTABLISHED", "SYN_SENT", "SYN_RECV", "FIN_WAIT1", "FIN_WAIT2", "TIME_WAIT",
+            "CLOSE", "CLOSE_WAIT", "LAST_ACK", "LISTEN", "CLOSING"
+    };
+    private static final int TCP_LISTEN = 0x0A;
+    private static final int UDP_ESTABLISHED = 0x01;
+
+    private static final String[] UNIX_TYPES = { "", "STREAM", "DGRAM", "RAW", "RDM", "SEQPACKET" };
+    private static final String[] UNIX_STATES = { "FREE", "", "CONNECTING", "CONNECTED", "DISCONNECTING" };
+    private static final int UNIX_ACCEPTING = 0x10000;
+
+    // Returns the open (non-listening) sockets in the format of "netstat".
+    public CharSequence netstat() throws IOException
+    {
+        out.setLength(0);
+        out.append("Active Internet connections (w/o servers)\n");
+        out.append("Proto Recv-Q Send-Q Local Address           Foreign Address         State      \n");
+        scanInetSockets(false);
+        out.append("Active UNIX domain sockets (w/o servers)\n");
+        out.append("Proto RefCnt Flags       Type       State         I-Node   Path\n");
+        scanUnixSockets(false);
+        return out;
+    }
+
+    // Returns the open (non-listening) sockets as a structured response.
+    public ByteBuffer netstatStructured() throws IOException
+    {
+        startStructured();
+        reserve(4);
+        int countAt = bin.position();
+        bin.putInt(0);
+        int count = scanInetSockets(true); // May grow bin, so call before using it.
+        bin.putInt(countAt, count);
+        reserve(4);
+        countAt = bin.position();
+        bin.putInt(0);
+        count = scanUnixSockets(true);
+        bin.putInt(countAt, count);
+        return finishStructured();
+    }
+
+    // Lists the Internet sockets, as text or structured. Returns how many were listed.
+    private int scanInetSockets(boolean structured) throws IOException
+    {
+        return scanInetSockets("/proc/net/tcp", "tcp", false, structured)
+                + scanInetSockets("/proc/net/tcp6", "tcp6", false, structured)
+                + scanInetSockets("/proc/net/udp", "udp", true, structured)
+                + scanInetSockets("/proc/net/udp6", "udp6", true, structured);
+    }
+
+    private int scanInetSockets(String path, String proto, boolean udp, boolean structured) throws IOException
+    {
+        if (!tryLoad(path))
+            return 0; // e.g. IPv6 disabled.
+        int count = 0;
+        skipLine(); // Header.
+        while (pos < length)
+        {
+            skipField(); // sl
+            skipSpaces();
+            int localStart = pos;
+            skipField();
+            skipSpaces();
+            int remoteStart = pos;
+            skipField();
+            int state = (int)nextHex();
+            long txQueue = nextHex();
+            pos++; // ':'
+            long rxQueue = nextHex();
+            skipLine();
+
+            if (udp ? state != UDP_ESTABLISHED : state == TCP_LISTEN)
+                continue; // A server.
+
+            byte[] local = addressAt(localStart);
+            byte[] remote = addressAt(remoteStart);
+            if (structured)
+            {
+                reserve(12 + 2 * (local.length + 2));
+                bin.put((byte)((udp ? Structured.INET_UDP : 0) | (local.length == 16 ? Structured.INET_IPV6 : 0)));
+                bin.put((byte)state);
+                bin.putInt((int)rxQueue);
+                bin.putInt((int)txQueue);
+                bin.put(local).putShort((short)portAt(localStart));
+                bin.put(remote).putShort((short)portAt(remoteStart));
+            } else {
+                formatInetSocket(out, proto, rxQueue, txQueue, local, portAt(localStart), remote, portAt(remoteStart),
+                        inetStateName(udp, state));
+            }
+            ++count;
+        }
+        return count;
+    }
+
+    // Appends one line of netstat's Internet sockets.
+    static void formatInetSocket(StringBuilder out, String proto, long rxQueue, long txQueue,
+                                 byte[] local, int localPort, byte[] remote, int remotePort, String state)
+    {
+        appendLeft(out, proto, 6);
+        appendRight(out, rxQueue, 6);
+        out.append(' ');
+        appendRight(out, txQueue, 6);
+        out.append(' ');
+        int col = out.length();
+        appendAddress(out, local, localPort);
+        padTo(out, col + 23);
+        out.append(' ');
+        col = out.length();
+        appendAddress(out, remote, remotePort);
+        padTo(out, col + 23);
+        out.append(' ');
+        appendLeft(out, state, 11);
+        out.append('\n');
+    }
+
+    // Returns netstat's name for the state of an Internet socket. UDP sockets listed are always connected.
+    static String inetStateName(boolean udp, int state)
+    {
+        return udp ? "ESTABLISHED" : (state < TCP_STATES.length ? TCP_STATES[state] : "UNKNOWN");
+    }
+
+    // Lists the UNIX domain sockets, as text or structured. Returns how many were listed.
+    private int scanUnixSockets(boolean structured)
+    {
+        if (!tryLoad("/proc/net/unix"))
+            return 0;
+        int count = 0;
+        skipLine(); // Header.
+        while (pos < length)
+        {
+            skipField();                 // Num
+            long refCount = nextHex();
+            nextHex();                   // Protocol
+            long flags = nextHex();
+            int type = (int)nextHex();
+            int state = (int)nextHex();
+            long inode = nextLong();
+            skipSpaces();
+            int pathStart = pos;
+            int pathEnd = lineEnd();
+            pos = pathEnd;
+            skipLine();
+            if ((flags & UNIX_ACCEPTING) != 0)
+                continue; // A server.
+
+            if (structured)
+            {
+                reserve(14);
+                bin.putInt((int)refCount).put((byte)type).put((byte)state).putLong(inode);
+                putString(pathStart, pathEnd, true);
+            } else {
+                appendUnixSocket(out, refCount, type, state, inode);
+                appendAscii(pathStart, pathEnd);
+                out.append('\n');
+            }
+            ++count;
+        }
+        return count;
+    }
+
+    // Appends the columns of one line of netstat's UNIX domain sockets, up to but not including the path.
+    static void appendUnixSocket(StringBuilder out, long refCount, int type, int state, long inode)
+    {
+        appendLeft(out, "unix", 6);
+        appendLeft(out, refCount, 7);
+        appendLeft(out, "[ ]", 12);
+        appendLeft(out, type < UNIX_TYPES.length ? UNIX_TYPES[type] : "UNKNOWN", 11);
+        appendLeft(out, state < UNIX_STATES.length ? UNIX_STATES[state] : "UNKNOWN", 14);
+        appendLeft(out, inode, 9);
+    }
+
+    // Parses the address of an address:port pair from /proc/net/tcp, e.g. "0100007F:0050" is 127.0.0.1.
+    private byte[] addressAt(int start)
+    {
+        int colon = indexOf((byte)':', start);
+        int hexDigits = colon - start;
+        byte[] addr = new byte[hexDigits / 2];
+        // The address is stored as 32-bit words in host (little-endian) byte order.
+        for (int word = 0; word < addr.length / 4; ++word)
+        {
+            for (int b = 0; b < 4; ++b)
+            {
+                int at = start + word * 8 + (3 - b) * 2;
+                addr[word * 4 + b] = (byte)(hexValue(buf[at]) << 4 | hexValue(buf[at + 1]));
+            }
+        }
+        return addr;
+    }
+
+    // Parses the port of an address:port pair from /proc/net/tcp, e.g. "0100007F:0050" is 80.
+    private int portAt(int start)
+    {
+        int colon = indexOf((byte)':', start);
+        int port = 0;
+        for (int i = colon + 1; i < colon + 5; ++i)
+            port = port << 4 | hexValue(buf[i]);
+        return port;
+    }
+
+    // Appends an address and port like netstat -n, e.g. "127.0.0.1:80", or "*" for port 0.
+    private static void appendAddress(StringBuilder out, byte[] addr, int port)
+    {
+        if (addr.length == 4)
+        {
+            appendIPv4(out, addr, 0);
+        } else if (isV4Mapped(addr)) {
+            appendIPv4(out, addr, 12);
+        } else {
+            appendIPv6(out, addr);
+        }
+        out.append(':');
+        if (port == 0)
+            out.append('*');
+        else
+            out.append(port);
+    }
+
+    private static void appendIPv4(StringBuilder out, byte[] addr, int offset)
+    {
+        for (int i = 0; i < 4; ++i)
+        {
+            if (i > 0)
+                out.append('.');
+            out.append(addr[offset + i] & 0xFF);
+        }
+    }
+
+    private static boolean isV4Mapped(byte[] addr)
+    {
+        for (int i = 0; i < 10; ++i)
+        {
+            if (addr[i] != 0)
+                return false;
+        }
+        return addr[10] == (byte)0xFF && addr[11] == (byte)0xFF;
+    }
+
+    // Appends an IPv6 address compactly, as inet_ntop does: the longest run of two or more zero groups
+    // (the first, if runs tie) becomes "::", e.g. "::1" or "1:0:0:2::3".
+    private static void appendIPv6(StringBuilder out, byte[] addr)
+    {
+        int bestStart = -1, bestLength = 1; // Only runs longer than this are compressed.
+        for (int g = 0; g < 8; )
+        {
+            if (group(addr, g) != 0)
+            {
+                ++g;
+                continue;
+            }
+            int start = g;
+            while (g < 8 && group(addr, g) == 0)
+                ++g;
+            if (g - start > bestLength)
+            {
+                bestStart = start;
+                bestLength = g - start;
+            }
+        }
+        for (int g = 0; g < 8; ++g)
+        {
+            if (g == bestStart)
+            {
+                out.append("::");
+                g += bestLength - 1;
+                continue;
+            }
+            if (g > 0 && g != bestStart + bestLength)
+                out.append(':');
+            appendHex(out, group(addr, g));
+        }
+    }
+
+    private static int group(byte[] addr, int g)
+    {
+        return (addr[2 * g] & 0xFF) << 8 | (addr[2 * g + 1] & 0xFF);
+    }
+
+    // Appends the value in lower-case hex without leading zeros, as inet_ntop does.
+    private static void appendHex(StringBuilder out, int value)
+    {
+        boolean started = false;
+        for (int shift = 12; shift >= 0; shift -= 4)
+        {
+            int digit = (value >> shift) & 0xF;
+            if (digit != 0 || started || shift == 0)
+            {
+                out.append(Character.forDigit(digit, 16));
+                started = true;
+            }
+        }
+    }
+
+    // Returns the logged-in users in the format of "who".
+    public CharSequence users() throws IOException
+    {
+        out.setLength(0);
+        scanUsers(false);
+        return out;
+    }
+
+    // Returns the logged-in users as a structured response.
+    public ByteBuffer usersStructured() throws IOException
+    {
+        startStructured();
+        reserve(4);
+        int countAt = bin.position();
+        bin.putInt(0);
+        int count = scanUsers(true); // May grow bin, so call before using it.
+        bin.putInt(countAt, count);
+        return finishStructured();
+    }
+
+    // Lists the logged-in users, as text or structured. Returns how many were listed.
+    private int scanUsers(boolean structured)
+    {
+        if (!tryLoad("/var/run/utmp"))
+            return 0;
+
+        int count = 0;
+        for (int rec = 0; rec + UTMP_SIZE <= length; rec += UTMP_SIZE)
+        {
+            if (readIntLE(rec) != USER_PROCESS)
+                continue;
+            long seconds = readIntLE(rec + UT_TV) & 0xFFFFFFFFL;
+            if (structured)
+            {
+                putString(rec + UT_USER, cStringEnd(rec + UT_USER, 32), false);
+                putString(rec + UT_LINE, cStringEnd(rec + UT_LINE, 32), false);
+                reserve(8);
+                bin.putLong(seconds);
+                putString(rec + UT_HOST, cStringEnd(rec + UT_HOST, 256), true);
+            } else {
+                int nameStart = out.length();
+                appendCString(rec + UT_USER, 32);
+                padTo(out, nameStart + 8);
+                out.append(' ');
+                int lineStart = out.length();
+                appendCString(rec + UT_LINE, 32);
+                padTo(out, lineStart + 12);
+                out.append(' ');
+                whoTime.formatTo(Instant.ofEpochSecond(seconds), out);
+                if (buf[rec + UT_HOST] != 0)
+                {
+                    out.append(" (");
+                    appendCString(rec + UT_HOST, 256);
+                    out.append(')');
+                }
+                out.append('\n');
+            }
+            ++count;
+        }
+        return count;
+    }
+
+    // Layout of struct utmp on Linux.
+    private static final int UTMP_SIZE = 384;
+    private static final int UT_LINE = 8;
+    private static final int UT_USER = 44;
+    private static final int UT_HOST = 76;
+    private static final int UT_TV = 340;
+    private static final int USER_PROCESS = 7;
+
+    static final DateTimeFormatter whoTime = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    private static volatile int pidWidth = -1; // Computed by whichever thread lists processes first; they all get the same answer.
+
+    // Returns the running processes in the format of "ps -e".
+    public CharSequence processes() throws IOException
+    {
+        out.setLength(0);
+        scanProcesses(false);
+        return out;
+    }
+
+    // Returns the running processes as a structured response.
+    public ByteBuffer processesStructured() throws IOException
+    {
+        startStructured();
+        reserve(4);
+        int countAt = bin.position();
+        bin.putInt(0);
+        int count = scanProcesses(true); // May grow bin, so call before using it.
+        bin.putInt(countAt, count);
+        return finishStructured();
+    }
+
+    // Lists the running processes, as text or structured. Returns how many were listed.
+    private int scanProcesses(boolean structured) throws IOException
+    {
+        if (pidWidth < 0)
+        {
+            load("/proc/sys/kernel/pid_max");
+            pidWidth = Math.max(5, Long.toString(nextLong()).length());
+        }
+
+        // The JDK can't list a directory without a String per entry, so the pids are at least parsed in place, into a reused array.
+        String[] names = PROC_DIR.list();
+        if (names == null)
+            throw new IOException("Cannot list /proc");
+        if (pids.length < names.length)
+            pids = new int[names.length + names.length / 2];
+        int count = 0;
+        for (String name : names)
+        {
+            int pid = parsePid(name);
+            if (pid > 0)
+                pids[count++] = pid;
+        }
+        Arrays.sort(pids, 0, count);
+
+        if (!structured)
+            appendProcessHeader(out, pidWidth);
+        int listed = 0;
+        for (int i = 0; i < count; ++i)
+        {
+            path.setLength(PROC.length());
+            path.append(pids[i]).append("/stat");
+            if (!tryLoad(path))
+                continue; // The process exited after we listed it.
+
+            // Format: pid (comm) state ppid pgrp session tty_nr tpgid flags minflt cminflt majflt cmajflt utime stime ...
+            int commStart = indexOf((byte)'(', 0) + 1;
+            int commEnd = lastIndexOf((byte)')');
+            if (commStart <= 0 || commEnd < commStart)
+                continue;
+            pos = commEnd + 1;
+            skipField(); // state
+            nextLong();  // ppid
+            nextLong();  // pgrp
+            nextLong();  // session
+            int ttyNr = (int)nextLong();
+            for (int f = 0; f < 6; ++f)
+                nextLong(); // tpgid through cmajflt
+            long ticks = nextLong() + nextLong(); // utime + stime
+
+            if (structured)
+            {
+                reserve(12);
+                bin.putInt(pids[i]).putInt(ttyNr).putInt((int)(ticks / CLOCK_TICKS));
+                putString(commStart, commEnd, false);
+            } else {
+                appendProcess(out, pidWidth, pids[i], ttyNr, ticks / CLOCK_TICKS);
+                appendAscii(commStart, commEnd);
+                out.append('\n');
+            }
+            ++listed;
+        }
+        return listed;
+    }
+
+    // Appends the header of "ps -e", with the PID column the given width.
+    static void appendProcessHeader(StringBuilder out, int pidWidth)
+    {
+        appendRight(out, "PID", pidWidth);
+        out.append(" TTY          TIME CMD\n");
+    }
+
+    // Appends the columns of one line of "ps -e", up to but not including the command.
+    static void appendProcess(StringBuilder out, int pidWidth, int pid, int ttyNr, long cpuSeconds)
+    {
+        appendRight(out, pid, pidWidth);
+        out.append(' ');
+        int col = out.length();
+        appendTty(out, ttyNr);
+        padTo(out, col + 8);
+        out.append(' ');
+        appendCpuTime(out, cpuSeconds);
+        out.append(' ');
+    }
+
+    // Returns the pid a /proc entry is named for, or -1 if it isn't all digits (self, net, sys and the like).
+    private static int parsePid(String name)
+    {
+        int n = name.length();
+        if (n == 0 || n > 9)
+            return -1;
+        int pid = 0;
+        for (int i = 0; i < n; ++i)
+        {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            pid = pid * 10 + (c - '0');
+        }
+        return pid;
+    }
+
+    private static void appendTty(StringBuilder out, int ttyNr)
+    {
+        int major = (ttyNr >> 8) & 0xFFF;
+        int minor = (ttyNr & 0xFF) | ((ttyNr >> 12) & 0xFFF00);
+        if (major >= 136 && major <= 143)
+        {
+            out.append("pts/").append((major - 136) * 256 + minor);
+        } else if (major == 4 && minor < 64) {
+            out.append("tty").append(minor);
+        } else if (major == 4) {
+            out.append("ttyS").append(minor - 64);
+        } else {
+            out.append('?');
+        }
+    }
+
+    // Appends CPU time as [DD-]HH:MM:SS.
+    private static void appendCpuTime(StringBuilder out, long seconds)
+    {
+        long days = seconds / 86400;
+        if (days > 0)
+            out.append(days).append('-');
+        append2(out, seconds / 3600 % 24);
+        out.append(':');
+        append2(out, seconds / 60 % 60);
+        out.append(':');
+        append2(out, seconds % 60);
+    }
+
+    private static void append2(StringBuilder out, long n)
+    {
+        if (n < 10)
+            out.append('0');
+        out.append(n);
+    }
+
+    // --- Structured output helpers. ---
+
+    // Starts a structured response in bin.
+    private void startStructured()
+    {
+        bin.clear();
+        bin.put(Structured.DATA);
+    }
+
+    // Returns the structured response built in bin.
+    private ByteBuffer finishStructured()
+    {
+        bin.flip();
+        return bin;
+    }
+
+    // Makes room for n more bytes in bin.
+    private void reserve(int n)
+    {
+        if (bin.remaining() >= n)
+            return;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(bin.capacity() * 2, bin.position() + n));
+        bin.flip();
+        bigger.put(bin);
+        bin = bigger;
+    }
+
+    // Puts the bytes of buf from start to end as a string, or a string16 if wide. Longer strings are cut short.
+    private void putString(int start, int end, boolean wide)
+    {
+        int n = Math.min(end - start, wide ? 0xFFFF : 0xFF);
+        reserve(2 + n);
+        if (wide)
+            bin.putShort((short)n);
+        else
+            bin.put((byte)n);
+        bin.put(buf, start, n);
+    }
+
+    // --- Reading and parsing helpers. ---
+
+    // Reads the whole file into buf and resets the parse position.
+    private void load(CharSequence path) throws IOException
+    {
+        length = 0;
+        pos = 0;
+        try (FileInputStream in = new FileInputStream(path.toString())) {
+            int n;
+            while ((n = in.read(buf, length, buf.length - length)) > 0)
+            {
+                length += n;
+                if (length == buf.length)
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+        }
+    }
+
+    // Like load(), but returns false instead of throwing if the file can't be read.
+    private boolean tryLoad(CharSequence path)
+    {
+        try {
+            load(path);
+            return true;
+        } catch (IOException ex) {
+            length = 0;
+            return false;
+        }
+    }
+
+    private int indexOf(byte b, int from)
+    {
+        for (int i = from; i < length; ++i)
+        {
+            if (buf[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private int lastIndexOf(byte b)
+    {
+        for (int i = length - 1; i >= 0; --i)
+        {
+            if (buf[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private int lineEnd()
+    {
+        int nl = indexOf((byte)'\n', pos);
+        return nl < 0 ? length : nl;
+    }
+
+    private void skipLine()
+    {
+        pos = lineEnd() + 1;
+    }
+
+    private void skipSpaces()
+    {
+        while (pos < length && buf[pos] == ' ')
+            pos++;
+    }
+
+    private void skipField()
+    {
+        skipSpaces();
+        while (pos < length && buf[pos] != ' ' && buf[pos] != '\n')
+            pos++;
+    }
+
+    // Parses the next decimal number, ignoring anything after a decimal point.
+    private long nextLong()
+    {
+        skipSpaces();
+        boolean negative = pos < length && buf[pos] == '-';
+        if (negative)
+            pos++;
+        long n = 0;
+        while (pos < length && buf[pos] >= '0' && buf[pos] <= '9')
+            n = n * 10 + (buf[pos++] - '0');
+        while (pos < length && buf[pos] != ' ' && buf[pos] != '\n')
+            pos++;
+        return negative ? -n : n;
+    }
+
+    // Parses the next hexadecimal number, stopping at any non-hex character.
+    private long nextHex()
+    {
+        skipSpaces();
+        long n = 0;
+        int digit;
+        while (pos < length && (digit = hexValue(buf[pos])) >= 0)
+        {
+            n = n << 4 | digit;
+            pos++;
+        }
+        return n;
+    }
+
+    private static int hexValue(byte b)
+    {
+        if (b >= '0' && b <= '9')
+            return b - '0';
+        if (b >= 'A' && b <= 'F')
+            return b - 'A' + 10;
+        if (b >= 'a' && b <= 'f')
+            return b - 'a' + 10;
+        return -1;
+    }
+
+    private boolean nameEquals(int start, int end, String name)
+    {
+        if (end - start != name.length())
+            return false;
+        for (int i = 0; i < name.length(); ++i)
+        {
+            if (buf[start + i] != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private int readIntLE(int at)
+    {
+        return (buf[at] & 0xFF) | (buf[at + 1] & 0xFF) << 8 | (buf[at + 2] & 0xFF) << 16 | (buf[at + 3] & 0xFF) << 24;
+    }
+
+    // Appends a NUL-terminated string of at most maxLength bytes.
+    private void appendCString(int start, int maxLength)
+    {
+        appendAscii(start, cStringEnd(start, maxLength));
+    }
+
+    // Returns the end of a NUL-terminated string of at most maxLength bytes.
+    private int cStringEnd(int start, int maxLength)
+    {
+        int end = start;
+        while (end < start + maxLength && buf[end] != 0)
+            end++;
+        return end;
+    }
+
+    private void appendAscii(int start, int end)
+    {
+        boolean ascii = true;
+        for (int i = start; i < end && ascii; ++i)
+            ascii = buf[i] >= 0;
+        if (!ascii)
+        {
+            out.append(new String(buf, start, end - start, StandardCharsets.UTF_8));
+            return;
+        }
+        for (int i = start; i < end; ++i)
+            out.append((char)buf[i]);
+    }
+
+    // The column helpers below are static so that Structured can lay out text exactly as these methods do.
+
+    static void padTo(StringBuilder out, int column)
+    {
+        while (out.length() < column)
+            out.append(' ');
+    }
+
+    static void appendLeft(StringBuilder out, String s, int width)
+    {
+        int col = out.length();
+        out.append(s);
+        padTo(out, col + width);
+    }
+
+    static void appendLeft(StringBuilder out, long n, int width)
+    {
+        int col = out.length();
+        out.append(n);
+        padTo(out, col + width);
+    }
+
+    static void appendRight(StringBuilder out, String s, int width)
+    {
+        for (int i = s.length(); i < width; ++i)
+            out.append(' ');
+        out.append(s);
+    }
+
+    static void appendRight(StringBuilder out, long n, int width)
+    {
+        int digits = n < 0 ? 2 : 1;
+        for (long m = Math.abs(n); m >= 10; m /= 10)
+            digits++;
+        for (int i = digits; i < width; ++i)
+            out.append(' ');
+        out.append(n);
+    }
+}
@@ -1,7 +1,14 @@
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 /*
  * This class contains the entry point for the application.
@@ -13,20 +20,68 @@ public class Project1 {
     {
         System.err.println("Usage: project1 [mode] [arguments]");
 
-        System.err.println("[mode] - server (s), client (c), or many (m)");
+        System.err.println("[mode] - server (s), client (c), many (m), or fanout (f)");
 
-        System.err.println("\nServer arguments: [port]");
+        System.err.println("\nServer arguments: [port] [options]");
         System.err.println("\t[port] - The port to listen on");
+        System.err.println("\t--engine=pool|nio|virtual - Serve clients from a thread pool (default), with NIO event loops, or on a virtual thread each (Java 21+)");
+        System.err.println("\t--workers=N - The number of clients served at the same time (pool engine; an open keep-alive session holds one,");
+        System.err.println("\t              so HELLO gets single-shot when none is spare; many keep-alive clients need --engine=nio or virtual)");
+        System.err.println("\t--session-idle=MS - Close keep-alive sessions idle this long (default " + ClientHandler.POOL_SESSION_IDLE_TIMEOUT_MS
+                + " for the pool engine, " + ClientHandler.SESSION_IDLE_TIMEOUT_MS + " for virtual; nio never closes them)");
+        System.err.println("\t--queue=N - The number of clients that may wait for a worker (pool engine)");
+        System.err.println("\t--bulkhead-threads=N - How many requests of each slow opcode, and how many batches, run at the same time (default " + Bulkheads.DEFAULT_THREADS + ")");
+        System.err.println("\t--bulkhead-queue=N - How many more of each may wait before the rest are answered BUSY (default: no limit, so nothing is shed, or " + Bulkheads.DEFAULT_QUEUE_CAPACITY + " with --max-in-flight or --opcode-limit)");
+        System.err.println("\t--loops=N - The number of NIO event loop threads");
+        System.err.println("\t--collectors=proc|exec - Read system information from /proc (default) or run free, netstat, who and ps");
+        System.err.println("\t--stream - With --collectors=exec, send command output as it is produced (thread engines only; in the opcode's bulkhead, unshared)");
+        System.err.println("\t--cache-ttl=MS - Cache the memory, netstat, users and processes responses for MS milliseconds");
+        System.err.println("\t--cache-ttl=OP:MS,... - Cache the response to each hex opcode OP for MS milliseconds");
+        System.err.println("\t--compress-min=BYTES - For clients that ask for compression, compress responses at least this long (default " + Compression.DEFAULT_THRESHOLD + ")");
+        System.err.println("\t--delta-history=N - How many recent netstat and processes listings to keep for clients asking for changes (default " + DeltaHistory.DEFAULT_DEPTH + ")");
+        System.err.println("\t--max-in-flight=N - Answer requests beyond N at once BUSY instead of queuing them (pool engine: also clients beyond the queue)");
+        System.err.println("\t--opcode-limit=OP:N,... - Answer requests for each hex opcode OP beyond N at once BUSY");
+        System.err.println("\t--log-level=off|error|warn|info|debug - The least severe log lines to print (default info, which includes every connection)");
+        System.err.println("\t--log-sample=N - Print one in N of the info lines, chosen at random (default 1)");
 
-        System.err.println("Client arguments: [host address] [port]");
+        System.err.println("Client arguments: [host address] [port] [options]");
         System.err.println("\t[host address] - The remote host's IPv4 address");
         System.err.println("\t[port] - The remote port to connect");
+        System.err.println("\t--structured - Ask for compact binary responses and format them locally");
+        System.err.println("\t--compress - Ask the server to compress large responses");
+        System.err.println("\t--delta - Ask for netstat and processes as changes since the last time");
 
-        System.err.println("Many-client arguments: [host address] [port] [count] [operation]");
+        System.err.println("Many-client arguments: [host address] [port] [count] [operation] [options]");
         System.err.println("\t[host address] - The remote host's IPv4 address");
         System.err.println("\t[port] - The remote port to connect");
         System.err.println("\t[count] - The number of clients to use for test.");
         System.err.println("\t[operation] - The type of request that will be performed.");
+        System.err.println("\t              Or a weighted mix such as date:5,ps:1, or @FILE to read the mix and scenario options from FILE as name=value lines.");
+        System.err.println("\t--requests=N - The number of requests each client makes (default 1)");
+        System.err.println("\t--keep-alive - Pipeline each client's requests over one connection");
+        System.err.println("\t--async - Make requests asynchronously, without a thread per client");
+        System.err.println("\t--in-flight=N - With --async, how many requests each client keeps outstanding (default 1)");
+        System.err.println("\t--io-threads=N - With --async, how many threads do the I/O (default: one per CPU)");
+        System.err.println("\t--pool=N - Share at most N keep-alive connections among all the clients, reusing them between requests");
+        System.err.println("\t--csv - Print one CSV line per request instead of a latency summary");
+        System.err.println("\t--histogram-log=PREFIX - Also write each operation's latency distribution to PREFIX.<operation>.hgrm");
+        System.err.println("\t--rate=N[/s] - Send N requests per second no matter how fast they are answered, using the clients as a connection pool");
+        System.err.println("\t--duration=T - How long to send at --rate, e.g. 60s, 500ms or 2m (default 10s)");
+        System.err.println("\t--ramp-up=T, --steady=T, --ramp-down=T - Scenario phase lengths; users start during ramp-up and stop during ramp-down (default steady 10s)");
+        System.err.println("\t--think=T or --think=T1-T2 - Pause between each user's requests, fixed or uniformly random");
+        System.err.println("\t--structured - Ask for compact binary responses instead of text");
+        System.err.println("\t--compress - Ask the server to compress large responses (keep-alive, pooled and async requests)");
+        System.err.println("\t--delta - Have each client ask for netstat and processes as changes since its last copy (not with --keep-alive, which sends all requests at once)");
+
+        System.err.println("Fan-out arguments: [hosts] [port] [operation] [options]");
+        System.err.println("\t[hosts] - Comma-separated host names or addresses, each optionally with :port, or @FILE with one per line");
+        System.err.println("\t[port] - The port of hosts that don't give one");
+        System.err.println("\t[operation] - The type of request to send to every host");
+        System.err.println("\t--timeout=MS - How long to wait for each host (default " + FanOut.DEFAULT_TIMEOUT_MS + ")");
+        System.err.println("\t--concurrency=N - How many hosts to ask at a time (default " + FanOut.DEFAULT_CONCURRENCY + ")");
+        System.err.println("\t--json - Print the results as a JSON array instead of a table");
+        System.err.println("\t--structured - Ask for compact binary responses and format them locally");
+        System.err.println("\t--compress - Ask the servers to compress large responses");
 
     }
 
@@ -35,7 +90,8 @@ public class Project1 {
         Unknown,
         Server,
         Client,
-        ManyClients
+        ManyClients,
+        FanOut
     }
 
     public static void main(String[] args)
@@ -59,6 +115,9 @@ public class Project1 {
             case ManyClients:
                 startAsManyClients(args);
                 break;
+            case FanOut:
+                startAsFanOut(args);
+                break;
             default:
                 System.err.println("Unknown mode.\n");
                 showUsage();
@@ -68,9 +127,9 @@ public class Project1 {
     // Starts the application as a server.
     private static void startAsServer(String[] args)
     {
-        if (args.length != 2)
+        if (args.length < 2)
         {
-            System.err.println("Too many arguments.\n");
+            System.err.println("Too few arguments.\n");
             showUsage();
             return;
         }
@@ -80,12 +139,124 @@ public class Project1 {
             System.err.format("Cannot parse port number \"%s\"\n", args[1]);
             return;
         }
+        Map<String, String> options = parseOptions(args, 2);
+        if (options == null)
+        {
+            showUsage();
+            return;
+        }
+        Integer workers = getIntegerOption(options, "workers", Project1Server.DEFAULT_WORKERS);
+        Integer queue = getIntegerOption(options, "queue", Project1Server.DEFAULT_QUEUE_CAPACITY);
+        Integer loops = getIntegerOption(options, "loops", NioServer.DEFAULT_EVENT_LOOPS);
+        Integer compressMin = getIntegerOption(options, "compress-min", Compression.DEFAULT_THRESHOLD);
+        Integer deltaHistory = getIntegerOption(options, "delta-history", DeltaHistory.DEFAULT_DEPTH);
+        Integer logSample = getIntegerOption(options, "log-sample", 1);
+        Integer bulkheadThreads = getIntegerOption(options, "bulkhead-threads", Bulkheads.DEFAULT_THREADS);
+        Integer bulkheadQueue = getIntegerOption(options, "bulkhead-queue", Bulkheads.DEFAULT_QUEUE_CAPACITY);
+        if (workers == null || queue == null || loops == null || compressMin == null || deltaHistory == null || logSample == null
+                || bulkheadThreads == null || bulkheadQueue == null)
+            return;
+        if (deltaHistory < 1)
+        {
+            System.err.println("--delta-history must be positive.");
+            return;
+        }
+        if (logSample < 1)
+        {
+            System.err.println("--log-sample must be positive.");
+            return;
+        }
+        ServerLog.setSampling(logSample);
+        if (options.containsKey("log-level"))
+        {
+            try {
+                ServerLog.setLevel(ServerLog.Level.valueOf(options.get("log-level").toUpperCase()));
+            } catch (IllegalArgumentException ex) {
+                System.err.format("Unknown log level \"%s\"\n", options.get("log-level"));
+                return;
+            }
+        }
+        String engine = options.containsKey("engine") ? options.get("engine").toLowerCase() : "pool";
+        String collectors = options.containsKey("collectors") ? options.get("collectors").toLowerCase() : "proc";
+        if (!collectors.equals("proc") && !collectors.equals("exec"))
+        {
+            System.err.format("Unknown collectors \"%s\"\n", collectors);
+            return;
+        }
+        ServerCommands.setUseExternalCommands(collectors.equals("exec"));
+        SnapshotCache cache = null;
+        if (options.containsKey("cache-ttl"))
+        {
+            cache = parseCacheTimes(options.get("cache-ttl"));
+            if (cache == null)
+                return;
+        }
+        boolean streaming = options.containsKey("stream");
+        if (streaming && !collectors.equals("exec"))
+            System.err.println("Note: --stream only affects --collectors=exec.");
+        Integer sessionIdle = null;
+        if (options.containsKey("session-idle"))
+        {
+            sessionIdle = getIntegerOption(options, "session-idle", 0);
+            if (sessionIdle == null)
+                return;
+            if (sessionIdle < 1)
+            {
+                System.err.println("--session-idle must be positive.");
+                return;
+            }
+            if (engine.equals("nio"))
+                System.err.println("Note: the nio engine does not close idle sessions.");
+        }
+        if (streaming && engine.equals("nio"))
+            System.err.println("Note: the nio engine does not stream responses.");
+        Responder responder = new Responder(cache, streaming);
+        responder.setCompressionThreshold(compressMin);
+        responder.setDeltaHistoryDepth(deltaHistory);
+        boolean limited = options.containsKey("max-in-flight") || options.containsKey("opcode-limit");
+        if (limited)
+        {
+            AdmissionControl admission = parseAdmission(options);
+            if (admission == null)
+                return;
+            responder.setAdmissionControl(admission);
+        }
+        // Without admission control, expensive requests queue rather than being shed, unless asked otherwise.
+        if (!limited && !options.containsKey("bulkhead-queue"))
+            bulkheadQueue = Bulkheads.UNBOUNDED;
+        try {
+            responder.setBulkheads(new Bulkheads(bulkheadThreads, bulkheadQueue));
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return;
+        }
+
         // Start up server.
-        Project1Server server = null;
+        Server server = null;
         try {
-            server = new Project1Server(port);
+            switch (engine)
+            {
+                case "pool":
+                    Project1Server pool = new Project1Server(port, workers, queue, responder);
+                    if (sessionIdle != null)
+                        pool.setSessionIdleTimeout(sessionIdle);
+                    server = pool;
+                    break;
+                case "nio":
+                    server = new NioServer(port, loops, responder);
+                    break;
+                case "virtual":
+                    Project1Server virtual = Project1Server.withVirtualThreads(port, responder);
+                    if (sessionIdle != null)
+                        virtual.setSessionIdleTimeout(sessionIdle);
+                    server = virtual;
+                    break;
+                default:
+                    System.err.format("Unknown engine \"%s\"\n", engine);
+                    return;
+            }
             server.start();
-        } catch (IOException ex) {
+        } catch (IOException | IllegalArgumentException | UnsupportedOperationException ex) {
             System.err.format("Error setting up server: %s\n", ex.getMessage());
             return;
         }
@@ -93,8 +264,10 @@ public class Project1 {
         Scanner read = new Scanner(System.in);
         String line;
         do {
-            System.out.println("Type \"stop\" to stop server.");
+            System.out.println("Type \"stop\" to stop server, or \"stats\" to show statistics.");
             line = read.nextLine().trim();
+            if (line.equalsIgnoreCase("stats"))
+                printServerStats(responder);
         } while (!line.equalsIgnoreCase("stop"));
         System.out.println("Stopping server...");
         server.stop(2000);
@@ -105,13 +278,96 @@ public class Project1 {
             // Kill it.
             server.abort();
         }
+        ServerLog.flush(500);
 	System.exit(0); // Testing shows this is necessary.
     }
 
+    private static void printServerStats(Responder responder)
+    {
+        if (responder.getCache() != null)
+            System.out.println(responder.getCache());
+        else
+            System.out.println("cache: disabled");
+        System.out.print(ServerMetrics.get().format());
+    }
+
+    // Parses the value of the --cache-ttl option. Returns null (after printing an error) if it is malformed.
+    private static SnapshotCache parseCacheTimes(String value)
+    {
+        SnapshotCache cache = new SnapshotCache(Responder::load);
+        Integer ttl = tryParseInteger(value);
+        if (ttl != null)
+        {
+            // One time for every command-backed opcode, in text and structured form.
+            for (byte code = 0; code >= 0; ++code)
+            {
+                if (ServerCommands.isSlow(code))
+                {
+                    cache.setTimeToLive(code, ttl);
+                    cache.setTimeToLive(Structured.of(code), ttl);
+                }
+            }
+            return cache;
+        }
+
+        for (String item : value.split(","))
+        {
+            String[] parts = item.trim().split(":");
+            Integer code = parts.length == 2 ? tryParseHex(parts[0].trim()) : null;
+            ttl = parts.length == 2 ? tryParseInteger(parts[1].trim()) : null;
+            // Statistics are never cached.
+            if (code == null || ttl == null || !ServerCommands.isKnown((byte)(int)code) || code == Protocol.STATS)
+            {
+                System.err.format("Cannot parse cache time \"%s\"\n", item);
+                return null;
+            }
+            byte op = (byte)(int)code;
+            cache.setTimeToLive(op, ttl);
+            if (!Structured.isStructured(op))
+                cache.setTimeToLive(Structured.of(op), ttl); // A plain opcode covers its structured form too.
+        }
+        return cache;
+    }
+
+    // Parses the --max-in-flight and --opcode-limit options. Returns null (after printing an error) if either is malformed.
+    private static AdmissionControl parseAdmission(Map<String, String> options)
+    {
+        Integer max = getIntegerOption(options, "max-in-flight", Integer.MAX_VALUE);
+        if (max == null)
+            return null;
+        if (max < 1)
+        {
+            System.err.println("--max-in-flight must be positive.");
+            return null;
+        }
+        AdmissionControl admission = new AdmissionControl(max);
+        if (!options.containsKey("opcode-limit"))
+            return admission;
+        for (String item : options.get("opcode-limit").split(","))
+        {
+            String[] parts = item.trim().split(":");
+            Integer code = parts.length == 2 ? tryParseHex(parts[0].trim()) : null;
+            Integer limit = parts.length == 2 ? tryParseInteger(parts[1].trim()) : null;
+            if (code == null || limit == null || limit < 1 || !ServerCommands.isKnown((byte)(int)code))
+            {
+                System.err.format("Cannot parse opcode limit \"%s\"\n", item);
+                return null;
+            }
+            admission.setLimit((byte)(int)code, limit);
+        }
+        return admission;
+    }
+
     // Starts the application as an interactive client.
     private static void startAsClient(String[] args)
     {
-        if (args.length != 3)
+        if (args.length < 3)
+        {
+            showUsage();
+            return;
+        }
+        Map<String, String> options = parseOptions(args, 3);
+        if (options == null)
         {
             showUsage();
             return;
@@ -136,16 +392,83 @@ public class Project1 {
         // Start up client.
         Project1Client client;
         client = new Project1Client(addr, port);
+        client.setKeepAlive(true);
+        client.setStructured(options.containsKey("structured"));
+        client.setCompression(options.containsKey("compress"));
+        client.setDelta(options.containsKey("delta"));
         client.interact();
+        client.close();
     }
 
     private static void startAsManyClients(String[] args)
     {
-        if (args.length != 5)
+        if (args.length < 5)
+        {
+            showUsage();
+            return;
+        }
+        Map<String, String> options = parseOptions(args, 5);
+        if (options == null)
         {
             showUsage();
             return;
         }
+        Integer requests = getIntegerOption(options, "requests", 1);
+        if (requests == null)
+            return;
+        if (requests < 1)
+        {
+            System.err.println("--requests must be positive.");
+            return;
+        }
+        boolean keepAlive = options.containsKey("keep-alive");
+        boolean compress = options.containsKey("compress");
+        boolean delta = options.containsKey("delta");
+        Integer poolSize = getIntegerOption(options, "pool", 0);
+        if (poolSize == null)
+            return;
+        if (poolSize < 0)
+        {
+            System.err.println("--pool must be positive.");
+            return;
+        }
+        boolean async = options.containsKey("async");
+        Integer inFlight = getIntegerOption(options, "in-flight", 1);
+        Integer ioThreads = getIntegerOption(options, "io-threads", Runtime.getRuntime().availableProcessors());
+        if (inFlight == null || ioThreads == null)
+            return;
+        if (inFlight < 1 || ioThreads < 1)
+        {
+            System.err.println("--in-flight and --io-threads must be positive.");
+            return;
+        }
+        if (async && (poolSize > 0 || options.containsKey("rate")))
+        {
+            System.err.println("--async cannot be used with --pool or --rate.");
+            return;
+        }
+        if (poolSize > 0 && keepAlive)
+        {
+            System.err.println("Note: --keep-alive has no effect with --pool.");
+            keepAlive = false;
+        }
+        Double rate = null;
+        long durationNanos = TimeUnit.SECONDS.toNanos(10);
+        if (options.containsKey("rate"))
+        {
+            rate = parseRate(options.get("rate"));
+            if (rate == null)
+                return;
+        }
+        if (options.containsKey("duration"))
+        {
+            Long d = parseDuration(options.get("duration"));
+            if (d == null)
+                return;
+            if (rate == null)
+                System.err.println("Note: --duration has no effect without --rate.");
+            durationNanos = d;
+        }
 
         InetAddress addr;
         try {
@@ -169,35 +492,351 @@ public class Project1 {
             return;
         }
 
+        if (isScenario(args[4], options))
+        {
+            if (rate != null || async)
+            {
+                System.err.println("--rate and --async cannot be used with a scenario.");
+                return;
+            }
+            Scenario scenario = parseScenario(args[4], options);
+            if (scenario == null)
+                return;
+            if (options.containsKey("csv") || options.containsKey("requests"))
+                System.err.println("Note: --csv and --requests have no effect with a scenario.");
+            ManyClients clients = new ManyClients(count, addr, port);
+            clients.setCompression(compress);
+            clients.setDelta(delta);
+            ConnectionPool pool = poolSize > 0 ? new ConnectionPool(poolSize, ConnectionPool.DEFAULT_IDLE_TIMEOUT_MS, ConnectionPool.DEFAULT_MAX_WAIT_MS) : null;
+            if (pool != null)
+                pool.setCompression(compress);
+            clients.setConnectionPool(pool);
+            runScenario(clients, scenario, keepAlive, options.get("histogram-log"));
+            if (pool != null)
+            {
+                System.err.println(pool);
+                pool.close();
+            }
+            return;
+        }
+
         Project1Client.Operation op = Project1Client.parseOperation(args[4]);
         if (op == null)
         {
             System.err.format("Invalid operation \"%s\"\n", args[4]);
             return;
         }
+        if (options.containsKey("structured"))
+            op = op.structured();
 
         // Start up clients.
         System.err.println("Running tests...");
         ManyClients clients;
         clients = new ManyClients(count, addr, port);
-        BenchmarkResult[] results = null;
-            results = clients.timeOperation(op);
+        clients.setCompression(compress);
+        clients.setDelta(delta);
+        ConnectionPool pool = poolSize > 0 ? new ConnectionPool(poolSize, ConnectionPool.DEFAULT_IDLE_TIMEOUT_MS, ConnectionPool.DEFAULT_MAX_WAIT_MS) : null;
+        if (pool != null)
+            pool.setCompression(compress);
+        clients.setConnectionPool(pool);
+        BenchmarkResult[] results;
+        if (rate != null)
+        {
+            if (options.containsKey("requests"))
+                System.err.println("Note: --requests has no effect with --rate.");
+            long start = System.nanoTime();
+            results = clients.runOpenLoop(op, rate, durationNanos, keepAlive);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.format("Sent %d requests in %.2f s (target %.1f/s, achieved %.1f/s).\n",
+                    results.length, seconds, rate, results.length / seconds);
+        }
+        else if (async)
+        {
+            try {
+                results = clients.timeOperationAsync(op, requests, inFlight, ioThreads);
+            } catch (IOException ex) {
+                System.err.format("Error: %s\n", ex.getMessage());
+                return;
+            }
+        }
+        else
+        {
+            if (delta && keepAlive)
+                System.err.println("Note: --delta has no effect with --keep-alive, which sends every request before the first reply.");
+            results = clients.timeOperation(op, requests, keepAlive);
+        }
         System.err.println("Test done.");
+        if (pool != null)
+        {
+            System.err.println(pool);
+            pool.close();
+        }
+
+        String histogramLog = options.get("histogram-log");
+        if (histogramLog != null)
+            clients.getReport().writeHistogramLogs(histogramLog);
+        if (!options.containsKey("csv"))
+        {
+            clients.getReport().print(System.out);
+            return;
+        }
 
         // output results as CSV
-        System.out.println("Test #,Operation,Success,Response Size (bytes),Duration (ms)");
+        System.out.println("Test #,Operation,Success,Response Size (bytes),Wire Size (bytes),Duration (ns),Time to First Byte (ns)");
         for (int i = 0; i < results.length; ++i)
         {
             BenchmarkResult r = results[i];
-            System.out.format("%d,%s,%s,%d,%d\n",
+            System.out.format("%d,%s,%s,%d,%d,%d,%d\n",
                     i,                      // Test #
                     op.getShortName(),      // Operation
                     r.wasSuccess(),         // Whether request succeeded
                     r.getResponseSize(),    // Response size
-                    r.getDuration());       // Transaction time
+                    r.getWireSize(),        // Bytes received, compressed or not
+                    r.getDuration(),        // Transaction time
+                    r.getTimeToFirstByte()); // Time until the response started arriving
+        }
+    }
+
+    // Starts the application as a client that asks many servers the same thing at once.
+    private static void startAsFanOut(String[] args)
+    {
+        if (args.length < 4)
+        {
+            showUsage();
+            return;
+        }
+        Map<String, String> options = parseOptions(args, 4);
+        if (options == null)
+        {
+            showUsage();
+            return;
+        }
+        Integer timeout = getIntegerOption(options, "timeout", (int)FanOut.DEFAULT_TIMEOUT_MS);
+        Integer concurrency = getIntegerOption(options, "concurrency", FanOut.DEFAULT_CONCURRENCY);
+        if (timeout == null || concurrency == null)
+            return;
+        if (timeout < 1 || concurrency < 1)
+        {
+            System.err.println("--timeout and --concurrency must be positive.");
+            return;
+        }
+
+        Integer port = tryParseInteger(args[2]);
+        if (port == null)
+        {
+            System.err.format("Cannot parse port number \"%s\"\n", args[2]);
+            return;
+        }
+
+        List<FanOut.Target> targets = parseTargets(args[1], port);
+        if (targets == null)
+            return;
+
+        Project1Client.Operation op = Project1Client.parseOperation(args[3]);
+        if (op == null)
+        {
+            System.err.format("Invalid operation \"%s\"\n", args[3]);
+            return;
+        }
+        if (options.containsKey("structured"))
+            op = op.structured();
+
+        FanOut fanOut = new FanOut(op, timeout, concurrency);
+        fanOut.setCompression(options.containsKey("compress"));
+        long start = System.nanoTime();
+        try {
+            if (options.containsKey("json"))
+            {
+                FanOut.JsonPrinter printer = new FanOut.JsonPrinter(System.out);
+                fanOut.run(targets, printer);
+                printer.finish();
+            }
+            else
+            {
+                FanOut.TablePrinter printer = new FanOut.TablePrinter(System.out);
+                fanOut.run(targets, printer);
+                printer.finish(System.nanoTime() - start);
+            }
+        } catch (IOException | InterruptedException ex) {
+            System.err.format("Error: %s\n", ex.getMessage());
         }
     }
 
+    // Parses a fan-out host list: "host[:port],..." or @FILE with one host[:port] per line.
+    // Returns null (after printing an error) if it is malformed.
+    private static List<FanOut.Target> parseTargets(String arg, int defaultPort)
+    {
+        List<String> entries = new ArrayList<>();
+        if (arg.startsWith("@"))
+        {
+            try {
+                for (String line : Files.readAllLines(Paths.get(arg.substring(1))))
+                {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#"))
+                        entries.add(line);
+                }
+            } catch (IOException ex) {
+                System.err.format("Cannot read host list \"%s\": %s\n", arg.substring(1), ex.getMessage());
+                return null;
+            }
+        }
+        else
+        {
+            for (String item : arg.split(","))
+            {
+                if (!item.trim().isEmpty())
+                    entries.add(item.trim());
+            }
+        }
+
+        List<FanOut.Target> targets = new ArrayList<>(entries.size());
+        for (String entry : entries)
+        {
+            String host = entry;
+            Integer port = defaultPort;
+            // A port follows the last colon, except in a bare IPv6 address; write those as [addr]:port.
+            int colon = entry.lastIndexOf(':');
+            if (entry.startsWith("["))
+            {
+                int close = entry.indexOf(']');
+                host = close < 0 ? entry : entry.substring(1, close);
+                port = close >= 0 && colon > close ? tryParseInteger(entry.substring(colon + 1)) : close >= 0 && close == entry.length() - 1 ? Integer.valueOf(defaultPort) : null;
+            }
+            else if (colon >= 0 && colon == entry.indexOf(':'))
+            {
+                host = entry.substring(0, colon);
+                port = tryParseInteger(entry.substring(colon + 1));
+            }
+            if (port == null || host.isEmpty())
+            {
+                System.err.format("Cannot parse host \"%s\"\n", entry);
+                return null;
+            }
+            targets.add(new FanOut.Target(host, port));
+        }
+        if (targets.isEmpty())
+        {
+            System.err.println("No hosts given.");
+            return null;
+        }
+        return targets;
+    }
+
+    private static void runScenario(ManyClients clients, Scenario scenario, boolean keepAlive, String histogramLog)
+    {
+        System.err.format("Running scenario for %.1f s...\n", scenario.getTotalNanos() / 1e9);
+        Map<String, LoadReport> byPhase = clients.runScenario(scenario, keepAlive);
+        System.err.println("Test done.");
+        if (byPhase == null)
+            return;
+        for (Map.Entry<String, LoadReport> e : byPhase.entrySet())
+        {
+            System.out.format("Phase: %s\n", e.getKey());
+            e.getValue().print(System.out);
+            System.out.println();
+            if (histogramLog != null)
+                e.getValue().writeHistogramLogs(histogramLog + "." + e.getKey());
+        }
+    }
+
+    // Returns whether many mode was asked for a scenario rather than a single operation.
+    private static boolean isScenario(String operation, Map<String, String> options)
+    {
+        return operation.startsWith("@") || operation.contains(":") || operation.contains(",")
+                || options.containsKey("ramp-up") || options.containsKey("steady")
+                || options.containsKey("ramp-down") || options.containsKey("think");
+    }
+
+    /*
+     * Builds a scenario from many mode's operation argument and options. Returns null (after printing an error) if they are malformed.
+     * The operation argument is either a mix of operations with optional weights, like "date:5,ps:1",
+     * or @FILE, naming a file of name=value lines that supplies any of the scenario options, with the mix as "mix".
+     * Options given on the command line take precedence over the file.
+     */
+    private static Scenario parseScenario(String operation, Map<String, String> options)
+    {
+        String mix = operation;
+        if (operation.startsWith("@"))
+        {
+            String file = operation.substring(1);
+            try {
+                for (String line : Files.readAllLines(Paths.get(file)))
+                {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#"))
+                        continue;
+                    int eq = line.indexOf('=');
+                    if (eq < 0)
+                    {
+                        System.err.format("Cannot parse scenario line \"%s\"\n", line);
+                        return null;
+                    }
+                    options.putIfAbsent(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+                }
+            } catch (IOException ex) {
+                System.err.format("Cannot read scenario \"%s\": %s\n", file, ex.getMessage());
+                return null;
+            }
+            mix = options.get("mix");
+            if (mix == null)
+            {
+                System.err.format("Scenario \"%s\" has no mix.\n", file);
+                return null;
+            }
+        }
+
+        List<Project1Client.Operation> ops = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        for (String item : mix.split(","))
+        {
+            String[] parts = item.trim().split(":");
+            Project1Client.Operation op = Project1Client.parseOperation(parts[0].trim());
+            Integer weight = parts.length == 1 ? Integer.valueOf(1) : parts.length == 2 ? tryParseInteger(parts[1].trim()) : null;
+            if (op == null || weight == null || weight <= 0)
+            {
+                System.err.format("Cannot parse operation mix entry \"%s\"\n", item);
+                return null;
+            }
+            ops.add(options.containsKey("structured") ? op.structured() : op);
+            weights.add(weight);
+        }
+
+        long[] phases = new long[3];
+        String[] phaseNames = { "ramp-up", "steady", "ramp-down" };
+        for (int i = 0; i < phases.length; ++i)
+        {
+            String value = options.get(phaseNames[i]);
+            if (value == null)
+                continue;
+            Long d = value.equals("0") ? Long.valueOf(0) : parseDuration(value);
+            if (d == null)
+                return null;
+            phases[i] = d;
+        }
+        if (phases[0] + phases[1] + phases[2] == 0)
+            phases[1] = TimeUnit.SECONDS.toNanos(10);
+
+        // Think time is either fixed ("100ms") or a uniform range ("50ms-150ms").
+        long minThink = 0, maxThink = 0;
+        String think = options.get("think");
+        if (think != null && !think.equals("0"))
+        {
+            String[] range = think.split("-");
+            Long min = range.length <= 2 ? parseDuration(range[0].trim()) : null;
+            Long max = range.length == 2 ? parseDuration(range[1].trim()) : min;
+            if (min == null || max == null || max < min)
+            {
+                System.err.format("Cannot parse think time \"%s\"\n", think);
+                return null;
+            }
+            minThink = min;
+            maxThink = max;
+        }
+
+        return new Scenario(ops, weights, phases[0], phases[1], phases[2], minThink, maxThink);
+    }
+
     // Returns the input parsed as an integer, or null on failure.
     private static Integer tryParseInteger(String s)
     {
@@ -208,6 +847,101 @@ public class Project1 {
         }
     }
 
+    // Parses a request rate such as "5000/s" or "5000". Returns null (after printing an error) if it is malformed.
+    private static Double parseRate(String s)
+    {
+        String number = s.endsWith("/s") ? s.substring(0, s.length() - 2) : s;
+        try {
+            double rate = Double.parseDouble(number);
+            if (rate > 0 && !Double.isInfinite(rate))
+                return rate;
+        } catch (NumberFormatException nfe) {
+        }
+        System.err.format("Cannot parse rate \"%s\"\n", s);
+        return null;
+    }
+
+    // Parses a duration such as "60s", "500ms" or "2m" (plain numbers are seconds) into nanoseconds.
+    // Returns null (after printing an error) if it is malformed.
+    private static Long parseDuration(String s)
+    {
+        TimeUnit unit = TimeUnit.SECONDS;
+        String number = s;
+        if (s.endsWith("ms"))
+        {
+            unit = TimeUnit.MILLISECONDS;
+            number = s.substring(0, s.length() - 2);
+        }
+        else if (s.endsWith("s"))
+        {
+            number = s.substring(0, s.length() - 1);
+        }
+        else if (s.endsWith("m"))
+        {
+            unit = TimeUnit.MINUTES;
+            number = s.substring(0, s.length() - 1);
+        }
+        Integer n = tryParseInteger(number);
+        if (n == null || n <= 0)
+        {
+            System.err.format("Cannot parse duration \"%s\"\n", s);
+            return null;
+        }
+        return unit.toNanos(n);
+    }
+
+    // Parses arguments of the form "--name=value" or "--name value", starting at the given index.
+    // Returns a map from option name to value, or null if an argument is not an option.
+    private static Map<String, String> parseOptions(String[] args, int start)
+    {
+        Map<String, String> options = new HashMap<>();
+        for (int i = start; i < args.length; ++i)
+        {
+            String arg = args[i];
+            if (!arg.startsWith("--") || arg.length() == 2)
+            {
+                System.err.format("Unexpected argument \"%s\"\n", arg);
+                return null;
+            }
+            int eq = arg.indexOf('=');
+            if (eq >= 0)
+            {
+                options.put(arg.substring(2, eq).toLowerCase(), arg.substring(eq + 1));
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(arg.substring(2).toLowerCase(), args[++i]);
+            } else {
+                // A flag with no value.
+                options.put(arg.substring(2).toLowerCase(), "");
+            }
+        }
+        return options;
+    }
+
+    // Returns the named option parsed as an integer, the default if it is absent, or null (after printing an error) if it is malformed.
+    private static Integer getIntegerOption(Map<String, String> options, String name, int defaultValue)
+    {
+        String value = options.get(name);
+        if (value == null)
+            return defaultValue;
+        Integer ret = tryParseInteger(value);
+        if (ret == null)
+            System.err.format("Cannot parse --%s value \"%s\"\n", name, value);
+        return ret;
+    }
+
+    // Returns the input parsed as a hexadecimal byte (with or without "0x"), or null on failure.
+    private static Integer tryParseHex(String s)
+    {
+        if (s.startsWith("0x") || s.startsWith("0X"))
+            s = s.substring(2);
+        try {
+            int ret = Integer.parseInt(s, 16);
+            return ret >= 0 && ret <= 0xFF ? ret : null;
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
     private static Mode parseMode(String arg)
     {
         switch (arg.toLowerCase())
@@ -221,6 +955,9 @@ public class Project1 {
             case "many":
             case "m":
                 return Mode.ManyClients;
+            case "fanout":
+            case "f":
+                return Mode.FanOut;
         }
         return Mode.Unknown;
     }
@@ -1,29 +1,114 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.CharBuffer;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 // Represents a client.
-public class Project1Client {
+public class Project1Client implements Closeable {
 
-    final int READ_BUFFER_SIZE = 4096;
+    static final int READ_BUFFER_SIZE = 4096;
     InetAddress remoteAddress;
     int port;
 
+    private boolean keepAlive = false;
+    private boolean structured = false; // Whether interact() asks for structured responses.
+    private byte features = Protocol.DEFAULT_CLIENT_FEATURES; // Offered when opening sessions.
+    private Delta.Tracker deltas; // The listings this client got, if it asks for deltas; otherwise null.
+    private boolean serverIsSingleShot = false; // Learned when the server turns down a keep-alive session.
+    private ClientSession session;
+    private ConnectionPool pool;
+    private AsynchronousChannelGroup asyncGroup;      // Null for the JVM's default group.
+    private CompletableFuture<AsyncSession> asyncSession; // Guarded by this.
+
     public Project1Client(InetAddress remoteAddress, int port)
     {
         this.remoteAddress = remoteAddress;
         this.port = port;
     }
 
+    // Chooses whether requests share one keep-alive connection (when the server supports it) or each use their own.
+    public void setKeepAlive(boolean keepAlive)
+    {
+        this.keepAlive = keepAlive;
+        if (!keepAlive)
+            closeSession();
+    }
+
+    // Chooses whether interact() asks for structured responses (see Structured) rather than text.
+    public void setStructured(boolean structured)
+    {
+        this.structured = structured;
+    }
+
+    // Chooses whether sessions opened from now on ask the server to compress large responses (see Compression).
+    public void setCompression(boolean compress)
+    {
+        if (compress)
+            features |= Protocol.FEATURE_COMPRESSION;
+        else
+            features &= ~Protocol.FEATURE_COMPRESSION;
+    }
+
+    // Chooses whether requests for the listings that have deltas ask only for what changed since this client's last copy (see Delta).
+    public void setDelta(boolean delta)
+    {
+        deltas = delta ? new Delta.Tracker() : null;
+    }
+
+    // Returns the operation this client actually sends for the given one: its delta form, if this client asks for deltas.
+    private Operation withDelta(Operation op)
+    {
+        return deltas == null ? op : op.delta(deltas);
+    }
+
+    // Makes requests borrow keep-alive sessions from the given pool, which may be shared with other clients, instead of holding one.
+    // Pass null to stop using a pool.
+    public void setConnectionPool(ConnectionPool pool)
+    {
+        this.pool = pool;
+        if (pool != null)
+            closeSession();
+    }
+
+    // Chooses which channel group's threads do the I/O for requestAsync. Null (the default) uses the JVM's default group.
+    public void setAsyncChannelGroup(AsynchronousChannelGroup group)
+    {
+        asyncGroup = group;
+    }
+
+    /*
+     * Sends a request without waiting for the reply. The future completes with the response, whatever its status,
+     * or exceptionally if the server could not be reached.
+     * Requests share one asynchronous keep-alive session, over which any number may be in flight at once;
+     * if the server only supports single-shot requests, each uses a connection of its own.
+     */
+    public CompletableFuture<Response> requestAsync(Operation op)
+    {
+        Operation sent = withDelta(op);
+        InetSocketAddress address = new InetSocketAddress(remoteAddress, port);
+        CompletableFuture<AsyncSession> session;
+        synchronized (this)
+        {
+            if (asyncSession == null || asyncSession.isCompletedExceptionally()
+                    || (asyncSession.isDone() && asyncSession.join() != null && asyncSession.join().isBroken()))
+                asyncSession = AsyncSession.open(asyncGroup, address, features);
+            session = asyncSession;
+        }
+        return session.thenCompose(s -> s != null ? s.request(sent) : AsyncSession.requestSingleShot(asyncGroup, address, sent));
+    }
+
     // Uses the console to present a menu and interact with the server. Returns when the user indicates they want to quit.
     public void interact()
     {
@@ -79,7 +164,7 @@ public class Project1Client {
 
             // Send the command to the server and print result to console.
             try {
-                System.out.println(doRequest(op));
+                System.out.println(doRequest(structured ? op.structured() : op));
             } catch (IOException ex) {
                 System.out.format("Error communicating with server: %s\n", ex.getMessage());
             }
@@ -88,17 +173,204 @@ public class Project1Client {
     }
 
 
-    // Sends a request to the server and returns its response.
+    // Sends a request to the server and returns its response text.
+    // Throws IOException if the server could not answer it.
     public String doRequest(Operation op) throws IOException
+    {
+        return textOf(op, request(op));
+    }
+
+    // Sends a request to the server and returns its response, whatever its status.
+    public Response request(Operation op) throws IOException
+    {
+        op = withDelta(op);
+        if (pool != null && !serverIsSingleShot)
+        {
+            Response r = pool.request(remoteAddress, port, op);
+            if (r != null)
+                return r;
+            serverIsSingleShot = true;
+        }
+        else if (keepAlive && !serverIsSingleShot)
+        {
+            boolean reused = session != null;
+            try {
+                ClientSession s = getSession();
+                if (s != null)
+                    return s.request(op);
+            } catch (IOException ex) {
+                closeSession();
+                if (!reused)
+                    throw ex;
+                // The server may have closed an idle session. Try once more on a new one.
+                ClientSession s = getSession();
+                if (s != null)
+                    return s.request(op);
+            }
+        }
+        return doSingleShotRequest(op);
+    }
+
+    // Sends all the requests and returns their response texts in order.
+    // With keep-alive, the requests are pipelined over one connection without waiting for each reply.
+    public List<String> doRequests(List<Operation> ops) throws IOException
+    {
+        List<Response> responses = null;
+        if (keepAlive && !serverIsSingleShot)
+        {
+            try {
+                ClientSession s = getSession();
+                if (s != null)
+                {
+                    List<Operation> sent = new ArrayList<>(ops.size());
+                    for (Operation op : ops)
+                        sent.add(withDelta(op));
+                    responses = s.requestAll(sent);
+                }
+            } catch (IOException ex) {
+                closeSession();
+                throw ex;
+            }
+        }
+        if (responses == null)
+        {
+            responses = new ArrayList<>(ops.size());
+            for (Operation op : ops)
+                responses.add(doSingleShotRequest(withDelta(op)));
+        }
+        List<String> texts = new ArrayList<>(responses.size());
+        for (int i = 0; i < responses.size(); ++i)
+            texts.add(textOf(ops.get(i), responses.get(i)));
+        return texts;
+    }
+
+    // Returns the text of a successful response to the operation, or throws describing why it failed.
+    // Structured responses are formatted like the text ones.
+    public static String textOf(Operation op, Response r) throws IOException
+    {
+        return op.isBatch() ? batchTextOf(r) : textOf(op.getCode(), r);
+    }
+
+    // Returns the text of a successful response to the opcode, or throws describing why it failed.
+    private static String textOf(byte code, Response r) throws IOException
+    {
+        switch (r.getStatus())
+        {
+            case Protocol.STATUS_OK:
+                return Structured.isStructured(code) ? Structured.toText(code, r.getBody()) : r.getText();
+            case Protocol.STATUS_BUSY:
+                throw new IOException("Server is busy. Try again later.");
+            case Protocol.STATUS_UNKNOWN_OPCODE:
+                throw new IOException(Structured.isStructured(code)
+                        ? "Server does not support structured responses."
+                        : "Server does not support this operation.");
+            default:
+                throw new IOException(String.format("Server error: %s", r.getText()));
+        }
+    }
+
+    // Returns the text of every answer in a batch reply, each under a heading naming its operation.
+    // Answers that failed are described in place of their text.
+    public static String batchTextOf(Response r) throws IOException
+    {
+        textOf(Protocol.BATCH, r); // Throws if the batch as a whole failed.
+        StringBuilder sb = new StringBuilder();
+        for (Batch.Item item : Batch.decode(r.getBody()))
+        {
+            Operation op = forCode(Structured.plain(item.getCode()));
+            sb.append(String.format("--- %s ---\n", op == null ? String.format("0x%02x", item.getCode()) : op.getShortName()));
+            try {
+                sb.append(textOf(item.getCode(), item.getResponse()));
+            } catch (IOException ex) {
+                sb.append(ex.getMessage());
+            }
+            if (sb.charAt(sb.length() - 1) != '\n')
+                sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Opens a new keep-alive session that the caller controls, or returns null if the server doesn't support sessions.
+    public ClientSession openSession() throws IOException
+    {
+        return ClientSession.open(remoteAddress, port, features);
+    }
+
+    // Returns the open session, opening one if necessary, or null if the server doesn't support sessions.
+    private ClientSession getSession() throws IOException
+    {
+        if (session == null)
+        {
+            session = ClientSession.open(remoteAddress, port, features);
+            if (session == null)
+                serverIsSingleShot = true;
+        }
+        return session;
+    }
+
+    private void closeSession()
+    {
+        if (session == null)
+            return;
+        try {
+            session.close();
+        } catch (IOException ex) { } // Ignore exception when closing.
+        session = null;
+    }
+
+    // Closes the keep-alive connection, if there is one.
+    @Override
+    public void close()
+    {
+        closeSession();
+        CompletableFuture<AsyncSession> s;
+        synchronized (this)
+        {
+            s = asyncSession;
+            asyncSession = null;
+        }
+        if (s != null)
+            s.thenAccept(session -> {
+                if (session != null)
+                    session.close();
+            });
+    }
+
+    // Sends a request on a connection of its own (protocol version 1) and returns its response.
+    private Response doSingleShotRequest(Operation op) throws IOException
+    {
+        Response response = doSingleShotRequest(op.getRequest());
+        if (!response.isOk())
+            return response; // The server was too busy to answer.
+        if (op.isBatch() && response.getSize() == 0)
+        {
+            // A server that doesn't know batches hangs up without answering. Ask for each part on its own.
+            byte[] codes = op.getBatchCodes();
+            List<Response> parts = new ArrayList<>(codes.length);
+            for (byte code : codes)
+                parts.add(doSingleShotRequest(new byte[] { code }));
+            response = Batch.combine(codes, parts);
+        }
+        else if (op.isDelta())
+        {
+            // A server that doesn't know deltas hangs up without answering. Ask for the whole listing.
+            if (response.getSize() == 0)
+                return doSingleShotRequest(new byte[] { op.getCode() });
+            response = op.complete(response);
+        }
+        return response;
+    }
+
+    private Response doSingleShotRequest(byte[] request) throws IOException
     {
         Socket client = null;
-        String response = null;
+        Response response = null;
         try {
             client = new Socket(remoteAddress, port);
-            client.getOutputStream().write(op.code);
+            client.getOutputStream().write(request);
             client.getOutputStream().flush();
 
-            // Get response from server (as text)
+            // The server closes the connection after the response, so read until end of stream.
             response = readAll(client.getInputStream());
         }
         finally
@@ -113,19 +385,28 @@ public class Project1Client {
         return response;
     }
 
-    // Reads all data from the given stream and decodes it as UTF-8 text.
-    private String readAll(InputStream is) throws IOException
+    // Reads all data from the given stream until the other side closes it, as a single-shot response.
+    static Response readAll(InputStream is) throws IOException
     {
-        StringBuilder sb = new StringBuilder(is.available());
+        ByteArrayOutputStream all = new ByteArrayOutputStream(READ_BUFFER_SIZE);
         byte[] buf = new byte[READ_BUFFER_SIZE];
         int bytesRead;
-        do
+        long firstByteTime = 0;
+        while ((bytesRead = is.read(buf)) != -1)
         {
-            bytesRead = is.read(buf);
-            sb.append(UTF_8.decode(ByteBuffer.wrap(buf)));
-        } while (bytesRead > 0 && is.available() > 0);
+            if (firstByteTime == 0 && bytesRead > 0)
+                firstByteTime = System.nanoTime();
+            all.write(buf, 0, bytesRead);
+        }
+        return singleShotResponse(all.toByteArray(), firstByteTime);
+    }
 
-        return sb.toString();
+    // Returns the response made of everything the server sent for a single-shot request: BUSY alone, or the answer.
+    static Response singleShotResponse(byte[] reply, long firstByteTime)
+    {
+        if (reply.length == 1 && reply[0] == Protocol.BUSY)
+            return new Response(Protocol.STATUS_BUSY, new byte[0], firstByteTime, 1);
+        return new Response(Protocol.STATUS_OK, reply, firstByteTime);
     }
 
     // Returns true if and only if the first argument equals any of the other arguments.
@@ -181,6 +462,12 @@ public class Project1Client {
                 "users", "who"));
         _operations.add(new Operation("Get host running processes",  (byte)0x66,
                 "processes", "process", "ps"));
+        // All of the above in one request.
+        _operations.add(new Operation("Get all of the above at once",
+                new byte[] { 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 },
+                "all", "batch"));
+        _operations.add(new Operation("Get server statistics",  Protocol.STATS,
+                "stats"));
     }
 
     // Represents a function the client has.
@@ -189,6 +476,8 @@ public class Project1Client {
         private String descr;
         private String[] nicks;
         private byte code;
+        private byte[] batch; // The opcodes of a batch operation, otherwise null.
+        private Delta.Tracker deltas; // For a delta operation, the listings its replies patch; otherwise null.
 
         /*
          * @param description   A description of the operation that will be shown to the user.
@@ -202,6 +491,17 @@ public class Project1Client {
             nicks = nicknames;
         }
 
+        /*
+         * Creates an operation that asks for several others in one request (see Batch).
+         * @param codes   The opcodes to ask for, in the order their answers should come back.
+         */
+        public Operation(String description, byte[] codes, String... nicknames)
+        {
+            this(description, Protocol.BATCH, nicknames);
+            Batch.request(codes); // Validates the count.
+            batch = codes.clone();
+        }
+
         // Returns true iff the given text matches any of this Operation's nicknames.
         public boolean matches(String text)
         {
@@ -222,6 +522,70 @@ public class Project1Client {
         {
             return nicks[0];
         }
+
+        public boolean isBatch()
+        {
+            return batch != null;
+        }
+
+        // Returns the opcodes of a batch operation, or null if this isn't one.
+        public byte[] getBatchCodes()
+        {
+            return batch == null ? null : batch.clone();
+        }
+
+        public boolean isDelta()
+        {
+            return deltas != null;
+        }
+
+        // Returns the bytes that ask the server for this operation.
+        // Those of a delta operation name the tracker's newest copy, so they change as replies arrive.
+        public byte[] getRequest()
+        {
+            if (deltas != null)
+                return Delta.request(code, deltas.since(code));
+            return batch == null ? new byte[] { code } : Batch.request(batch);
+        }
+
+        // Turns the reply to this operation's request into its response. A delta operation's reply is applied to the tracker's copy.
+        public Response complete(Response r) throws IOException
+        {
+            return deltas == null ? r : deltas.apply(code, r);
+        }
+
+        // Returns this operation asking only for what changed since the tracker's newest copy of its listing (see Delta),
+        // or this operation itself if its listing has no deltas.
+        public Operation delta(Delta.Tracker tracker)
+        {
+            if (batch != null || !Delta.supports(code))
+                return this;
+            Operation op = new Operation(descr, code, nicks);
+            op.deltas = tracker;
+            return op;
+        }
+
+        // Returns this operation asking for structured responses (see Structured) instead of text.
+        public Operation structured()
+        {
+            if (batch == null)
+                return new Operation(descr, Structured.of(code), nicks);
+            byte[] codes = new byte[batch.length];
+            for (int i = 0; i < codes.length; ++i)
+                codes[i] = Structured.of(batch[i]);
+            return new Operation(descr, codes, nicks);
+        }
+    }
+
+    // Returns the single-opcode operation with the given code, or null if there is none.
+    public static Operation forCode(byte code)
+    {
+        for (Operation op : _operations)
+        {
+            if (!op.isBatch() && op.getCode() == code)
+                return op;
+        }
+        return null;
     }
 
     // Displays the list of choices to the user.
@@ -236,8 +600,29 @@ public class Project1Client {
         System.out.println();
     }
 
+    // Parses an operation by number or nickname, or a batch of them joined with '+' (like "date+uptime+mem").
+    // Returns null if the input doesn't name exactly one operation.
     public static Operation parseOperation(String input)
     {
+        if (input.indexOf('+') >= 0)
+        {
+            String[] parts = input.split("\\+");
+            if (!Batch.isValidCount(parts.length))
+                return null;
+            byte[] codes = new byte[parts.length];
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < parts.length; ++i)
+            {
+                Operation op = parseOperation(parts[i].trim());
+                if (op == null || op.isBatch())
+                    return null;
+                codes[i] = op.getCode();
+                if (i > 0)
+                    name.append('+');
+                name.append(op.getShortName());
+            }
+            return new Operation("Batch of " + name, codes, name.toString());
+        }
         Operation op;
         // Try parsing the choice as a number.
         Integer choice = tryParseInteger(input.replaceAll("[\\p{Punct}]", ""));
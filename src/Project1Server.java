@@ -1,63 +1,225 @@
 /*
- * This server uses a monitor and an atomic int to achieve basically the same effect as
- * the "fixed thread pool" described in https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/Executors.html#newFixedThreadPool-int-
- * While the number of concurrent clients is at its allowed maximum, the server stops accepting (i.e. ignores) new ones.
+ * This server hands each accepted client to a fixed-size pool of worker threads, as described in
+ * https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/Executors.html#newFixedThreadPool-int-
+ * Clients that arrive while every worker is busy wait in a bounded accept queue.
+ * When that queue is also full, the listener stops accepting until a slot frees up,
+ * so excess clients wait in the kernel backlog instead of being dropped.
+ * A keep-alive session holds its worker for as long as it stays open, idle or not, so idle sessions are closed after
+ * a few seconds (see ClientHandler.POOL_SESSION_IDLE_TIMEOUT_MS), and a HELLO that arrives when no other worker is free
+ * is answered with version 1, so that client uses single-shot requests instead of parking a worker in a blocking read.
+ * Many keep-alive clients need the nio or virtual engine to keep their sessions.
+ * With admission control (see AdmissionControl), it instead answers them BUSY at once and hangs up,
+ * so they can back off rather than time out, and workers shed requests over the in-flight limits the same way.
+ *
+ * A client's thread answers cheap opcodes itself and waits while its opcode's bulkhead (see Bulkheads) answers expensive ones,
+ * so a flood of one expensive opcode holds a bounded number of threads, and with admission control its excess is answered BUSY.
+ *
+ * Alternatively, each client can be served on its own virtual thread (Java 21 and later),
+ * which makes blocking I/O cheap enough that no pool or queue is needed.
  */
 
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.net.*;
-import java.util.concurrent.atomic.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.*;
 
-public class Project1Server {
+public class Project1Server implements Server {
+
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors() * 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    // How long a refused client has to hang up after reading BUSY before we close on it anyway.
+    private static final int REFUSED_DRAIN_MS = 200;
 
     private ServerSocket svSock;
+    private ExecutorService workers;
+    private String workerDescription;
+    private Responder responder;
+    private volatile int sessionIdleTimeoutMs;
 
     private Listener listen;
     private Thread tListen;
+
+    // Drains and closes refused clients (see Listener.refuse), off the listener's thread. Closed at once if it falls behind.
+    private static final ThreadPoolExecutor refusedClients = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1024), r -> {
+                Thread t = new Thread(r, "Refused clients");
+                t.setDaemon(true);
+                return t;
+            });
+
+    static {
+        refusedClients.allowCoreThreadTimeOut(true);
+    }
+
     public Project1Server(int port) throws IOException
     {
-        svSock = new ServerSocket(port);
+        this(port, DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY, new Responder());
+    }
+
+    /*
+     * @param port            The port to listen on.
+     * @param workerCount     The maximum number of clients that are served at the same time.
+     * @param queueCapacity   The number of accepted clients that may wait for a free worker.
+     * @param responder       Produces the responses sent to clients.
+     */
+    public Project1Server(int port, int workerCount, int queueCapacity, Responder responder) throws IOException
+    {
+        this(port, newWorkerPool(workerCount, queueCapacity, responder.getAdmissionControl() != AdmissionControl.UNLIMITED),
+                String.format("%d workers (queue capacity %d)", workerCount, queueCapacity), responder,
+                ClientHandler.POOL_SESSION_IDLE_TIMEOUT_MS);
+    }
+
+    private Project1Server(int port, ExecutorService workers, String workerDescription, Responder responder,
+            int sessionIdleTimeoutMs) throws IOException
+    {
+        // Open through a channel so that accepted sockets have channels for ClientHandler to write through.
+        ServerSocketChannel svChannel = ServerSocketChannel.open();
+        try {
+            svChannel.bind(new InetSocketAddress(port));
+        } catch (IOException ex) {
+            svChannel.close();
+            workers.shutdown();
+            throw ex;
+        }
+        svSock = svChannel.socket();
+        this.workers = workers;
+        if (workers instanceof ThreadPoolExecutor)
+            ServerMetrics.get().setQueueDepth(((ThreadPoolExecutor)workers).getQueue()::size);
+        ServerMetrics.get().setBulkheads(responder.getBulkheads());
+        this.workerDescription = workerDescription;
+        this.responder = responder;
+        this.sessionIdleTimeoutMs = sessionIdleTimeoutMs;
         listen = new Listener(this);
         tListen = new Thread(listen);
     }
 
+    // Returns a server that runs each client on a new virtual thread.
+    // Throws UnsupportedOperationException if this JVM does not have virtual threads.
+    public static Project1Server withVirtualThreads(int port, Responder responder) throws IOException
+    {
+        return new Project1Server(port, newVirtualThreadPerTaskExecutor(), "a virtual thread per client", responder,
+                ClientHandler.SESSION_IDLE_TIMEOUT_MS);
+    }
+
+    // Sets how long a keep-alive session may sit idle before the server closes it.
+    public void setSessionIdleTimeout(int milliseconds)
+    {
+        if (milliseconds < 1)
+            throw new IllegalArgumentException("Session idle timeout must be positive.");
+        sessionIdleTimeoutMs = milliseconds;
+    }
+
+    // Returns whether a pool worker other than the caller's is idle and no client is waiting for one,
+    // so a keep-alive session can hold the caller's worker without holding up anyone else.
+    private boolean hasSpareWorker()
+    {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor)workers;
+        return pool.getQueue().isEmpty() && pool.getActiveCount() < pool.getMaximumPoolSize();
+    }
+
+    // A shedding pool rejects clients when its queue is full; otherwise the listener waits for space.
+    private static ExecutorService newWorkerPool(int workerCount, int queueCapacity, boolean shed)
+    {
+        if (workerCount < 1)
+            throw new IllegalArgumentException("Worker count must be positive.");
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be positive.");
+        return new ThreadPoolExecutor(workerCount, workerCount,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                shed ? new ThreadPoolExecutor.AbortPolicy() : new WaitForQueueSpace());
+    }
+
+    // Looked up reflectively so the rest of the server still builds and runs on Java 8.
+    private static ExecutorService newVirtualThreadPerTaskExecutor()
+    {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+        } catch (InvocationTargetException ex) {
+            throw new UnsupportedOperationException("Virtual threads are not available: " + ex.getCause().getMessage());
+        }
+    }
+
+    @Override
     public void start()
     {
-        System.out.format("Starting server on %s.\n", svSock.getLocalSocketAddress().toString());
+        System.out.format("Starting server on %s with %s, and %s.\n",
+                svSock.getLocalSocketAddress().toString(), workerDescription, responder.getBulkheads().describe());
         tListen.start();
     }
 
+    @Override
     public boolean isRunning()
     {
-        return tListen.isAlive();
+        return tListen.isAlive() || !workers.isTerminated();
     }
 
+    @Override
     public void stop(long timeoutMilliseconds)
     {
         listen.stop();
+        closeServerSocket();
+        workers.shutdown();
         try {
+            long deadline = System.currentTimeMillis() + timeoutMilliseconds;
             tListen.join(timeoutMilliseconds);
+            workers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
         } catch (InterruptedException ex) { }
     }
 
+    @Override
     public void abort()
     {
         listen.stop();
+        closeServerSocket();
         tListen.interrupt();
+        workers.shutdownNow();
+    }
+
+    // Closes the listening socket, which unblocks a pending accept().
+    private void closeServerSocket()
+    {
+        try {
+            svSock.close();
+        } catch (IOException ex) { } // Ignore exception when closing.
+    }
+
+    // Applies backpressure: instead of rejecting a client when the accept queue is full,
+    // block the listener until a worker takes the next queued client.
+    private static class WaitForQueueSpace implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("Server is shutting down.");
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for queue space.", ex);
+            }
+        }
     }
 
     class Listener implements Runnable
     {
         Project1Server server;
+        private final ServerMetrics metrics = ServerMetrics.get();
+
         public Listener(Project1Server server)
         {
             this.server = server;
         }
 
-        boolean stop = false;
+        volatile boolean stop = false;
 
-        public synchronized void stop()
+        public void stop()
         {
             stop = true;
         }
@@ -67,28 +229,83 @@ public class Project1Server {
         {
             while (!stop)
             {
+                Socket client = null;
                 try {
-                    Socket client = svSock.accept();
-                    System.out.format("Client connected: %s\n", client.getRemoteSocketAddress().toString());
-                    ClientHandler handler = new ClientHandler(client);
-                    handler.start();
-                    handler.join();
+                    client = svSock.accept();
+                    metrics.connectionOpened();
+                    if (ServerLog.isEnabled(ServerLog.Level.INFO))
+                        ServerLog.info("Client connected: %s\n", client.getRemoteSocketAddress());
+                    ClientHandler handler = new ClientHandler(client, responder);
+                    handler.setSessionIdleTimeout(sessionIdleTimeoutMs);
+                    if (workers instanceof ThreadPoolExecutor)
+                        handler.setSessionsAllowed(server::hasSpareWorker);
+                    workers.execute(handler);
                 }
-                catch (Exception ex)
+                catch (RejectedExecutionException ex)
                 {
-                    if (ex instanceof IOException)
+                    if (!workers.isShutdown())
                     {
-                        System.out.format("Server error: %s\n", ex.getMessage());
-                    }
-                    if (ex instanceof InterruptedException)
-                    {
-                        // Break if we're interrupted.
-                        return;
+                        // Every worker is busy and the queue is full: shed the client we just accepted.
+                        refuse(client);
+                        continue;
                     }
+                    // Shutting down. Drop the client we just accepted.
+                    closeQuietly(client);
+                    metrics.connectionClosed();
+                    return;
+                }
+                catch (IOException ex)
+                {
+                    if (stop)
+                        return; // The socket was closed by stop().
+                    ServerLog.error("Server error: %s\n", ex.getMessage());
                 }
             }
 
         }
+
+        /*
+         * Tells the client the server is busy and hangs up.
+         * Closing a socket with unread input (the client's request, usually) resets the connection, which can destroy BUSY before
+         * the client reads it. So this sends BUSY and a FIN, then reads and discards input until the client hangs up too, or briefly.
+         * A byte always fits in a new socket's send buffer, so this doesn't block.
+         */
+        private void refuse(Socket client)
+        {
+            metrics.recordShedConnection();
+            if (ServerLog.isEnabled(ServerLog.Level.INFO))
+                ServerLog.info("Client refused (busy): %s\n", client.getRemoteSocketAddress());
+            try {
+                client.getOutputStream().write(Protocol.BUSY);
+                client.shutdownOutput();
+                refusedClients.execute(() -> drainAndClose(client));
+                return;
+            } catch (IOException ex) { // The client is gone anyway.
+            } catch (RejectedExecutionException ex) { } // Too many to drain; close them at once.
+            closeQuietly(client);
+            metrics.connectionClosed();
+        }
+
+        private void drainAndClose(Socket client)
+        {
+            try {
+                client.setSoTimeout(REFUSED_DRAIN_MS);
+                InputStream in = client.getInputStream();
+                byte[] discard = new byte[256];
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REFUSED_DRAIN_MS);
+                while (in.read(discard) >= 0 && System.nanoTime() - deadline < 0) { }
+            } catch (IOException ex) { } // Timed out, or the client is gone.
+            closeQuietly(client);
+            metrics.connectionClosed();
+        }
+
+        private void closeQuietly(Socket s)
+        {
+            try {
+                if (s != null)
+                    s.close();
+            } catch (IOException ex) { } // Ignore exception when closing.
+        }
     }
 
 }
@@ -0,0 +1,87 @@
+/*
+ * Constants that the client and server must agree on.
+ *
+ * Version 1 (single-shot): the client connects and sends one opcode byte.
+ * The server writes the response text and closes the connection.
+ *
+ * Version 2 (keep-alive): the client connects and sends HELLO, the highest version it speaks, and a features byte.
+ * The server answers HELLO, the version it chose, and the features it accepted.
+ * A server that can't hold a session open right now answers with version 1 and closes the connection,
+ * and the client sends its requests single-shot instead.
+ * After that, the client may send any number of opcode bytes without waiting for replies,
+ * and the server answers each one, in order, with a frame: a status byte, a 4-byte big-endian payload length,
+ * and that many bytes of payload (see Frame). The payload of an OK frame is the response text.
+ * A response may be streamed as any number of PARTIAL frames followed by a final OK frame;
+ * the response text is all of their payloads joined together.
+ * Either side ends the session by closing the connection.
+ *
+ * Batches: instead of an opcode, a client may send BATCH, a count from 1 to Batch.MAX_ITEMS, and that many opcodes.
+ * The server collects them all (the slow ones in parallel) and sends one reply holding every answer (see Batch):
+ * as the payload of an OK frame in a session, or as the whole reply of a single-shot request.
+ * In a session, a client only sends BATCH if the server accepted FEATURE_BATCH in its HELLO.
+ *
+ * Compression: in a session where the server accepted FEATURE_COMPRESSION, it may compress any frame's payload
+ * (see Compression) and mark it by setting the STATUS_COMPRESSED bit of the frame's status.
+ *
+ * Deltas: instead of an opcode, a client may send DELTA, one of the listing opcodes, and the epoch of its last copy of that listing.
+ * The server answers with what changed since then, or the whole listing if it no longer remembers that epoch (see Delta):
+ * as the payload of an OK frame in a session, or as the whole reply of a single-shot request.
+ * In a session, a client only sends DELTA if the server accepted FEATURE_DELTA in its HELLO.
+ *
+ * Busy: a server with admission control (see AdmissionControl) answers a request it has no room for with STATUS_BUSY
+ * and an empty payload in a session, or with the single byte BUSY as the whole reply of a single-shot request.
+ * A pool server whose clients' queue is full answers a new connection with BUSY and hangs up, discarding whatever the client sent.
+ * Either way the request was not run, and the client may try again later.
+ *
+ * Structured responses: setting the STRUCTURED bit of an opcode asks for its answer as packed binary fields
+ * instead of text (see Structured). It works the same in either version and in batches.
+ *
+ * A server that only speaks version 1 treats HELLO as an unknown opcode and closes the connection,
+ * which tells the client to fall back to single-shot requests.
+ */
+public final class Protocol {
+
+    private Protocol() { }
+
+    public static final byte HELLO = 0x01;
+
+    public static final byte VERSION_SINGLE_SHOT = 1;
+    public static final byte VERSION_KEEP_ALIVE = 2;
+    // The highest version this build speaks.
+    public static final byte CURRENT_VERSION = VERSION_KEEP_ALIVE;
+
+    // Optional features, as bits of the HELLO features byte. The client offers some and the server accepts those it supports.
+    public static final byte NO_FEATURES = 0;
+    public static final byte FEATURE_BATCH = 0x01;
+    public static final byte FEATURE_COMPRESSION = 0x02;
+    public static final byte FEATURE_DELTA = 0x04;
+    // The features this build supports.
+    public static final byte SUPPORTED_FEATURES = FEATURE_BATCH | FEATURE_COMPRESSION | FEATURE_DELTA;
+    // The features clients offer unless told otherwise. Compression trades CPU time for bandwidth, so it is opt-in.
+    public static final byte DEFAULT_CLIENT_FEATURES = FEATURE_BATCH | FEATURE_DELTA;
+
+    // Opcode introducing a batch of opcodes.
+    public static final byte BATCH = 0x0B;
+    // Opcode asking for what changed in a listing (see Delta).
+    public static final byte DELTA = 0x0D;
+    // Admin opcode asking for the server's metrics as text (see ServerMetrics). It has no structured form.
+    public static final byte STATS = 0x77;
+
+    // The whole reply of a single-shot request (or connection) the server is too busy to take. It is never valid text.
+    public static final byte BUSY = (byte)0xFF;
+
+    // Bit of an opcode asking for a structured response.
+    public static final byte STRUCTURED = (byte)0x80;
+
+    // Frame status codes.
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_UNKNOWN_OPCODE = 1; // The server does not understand the opcode. Empty payload.
+    public static final byte STATUS_ERROR = 2;          // The server failed to produce a response. Payload is a message.
+    public static final byte STATUS_PARTIAL = 3;        // One piece of a streamed response; more frames for the same response follow.
+    public static final byte STATUS_BUSY = 4;           // The server shed the request without running it. Empty payload.
+    // Bit of a status byte marking a compressed payload. The rest of the byte is one of the statuses above.
+    public static final byte STATUS_COMPRESSED = 0x40;
+
+    // Frames longer than this are rejected as malformed, so a corrupt header can't make the reader allocate without bound.
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+}
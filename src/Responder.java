@@ -0,0 +1,358 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * Produces the encoded bytes a server engine sends in response to an opcode.
+ * Responses come from ServerCommands, optionally through a SnapshotCache.
+ * Opcodes with the STRUCTURED bit set are answered with structured responses rather than text (see Structured).
+ * Delta requests are answered from a history of the listings sent before (see DeltaHistory).
+ * Expensive opcodes can be answered asynchronously, in their bulkheads (see Bulkheads),
+ * and concurrent requests for the same one then share a single collection (see Coalescer).
+ * Fixed responses (errors and "not supported" messages) are encoded once, up front.
+ */
+public class Responder {
+
+    // Keyed by identity: ServerCommands returns these exact String instances.
+    private static final Map<CharSequence, ByteBuffer> fixed = new IdentityHashMap<>();
+
+    static {
+        for (String msg : ServerCommands.FIXED_RESPONSES)
+            fixed.put(msg, toDirect(msg));
+    }
+
+    private final SnapshotCache cache;
+    private final boolean streaming;
+    private volatile int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+    private volatile DeltaHistory deltas = new DeltaHistory(DeltaHistory.DEFAULT_DEPTH);
+    private volatile AdmissionControl admission = AdmissionControl.UNLIMITED;
+    private volatile Bulkheads bulkheads = new Bulkheads(Bulkheads.DEFAULT_THREADS, Bulkheads.UNBOUNDED);
+    private final Coalescer coalescer = new Coalescer();
+
+    // Creates a responder that runs every request.
+    public Responder()
+    {
+        this(null, false);
+    }
+
+    // Creates a responder that serves requests through the given cache, which may be null.
+    public Responder(SnapshotCache cache)
+    {
+        this(cache, false);
+    }
+
+    /*
+     * @param cache       Serves requests for the opcodes it caches. May be null.
+     * @param streaming   Whether uncached responses from external commands should be streamed as the command runs.
+     */
+    public Responder(SnapshotCache cache, boolean streaming)
+    {
+        this.cache = cache;
+        this.streaming = streaming;
+    }
+
+    // Sets the smallest payload compressed for sessions that accept compression (see Compression).
+    public void setCompressionThreshold(int bytes)
+    {
+        compressionThreshold = bytes;
+    }
+
+    public int getCompressionThreshold()
+    {
+        return compressionThreshold;
+    }
+
+    // Sets how many listings of each opcode are remembered for delta requests, forgetting those remembered so far.
+    public void setDeltaHistoryDepth(int depth)
+    {
+        deltas = new DeltaHistory(depth);
+    }
+
+    // Sets the limits on how many requests the servers using this responder work on at once.
+    public void setAdmissionControl(AdmissionControl admission)
+    {
+        this.admission = admission;
+    }
+
+    public AdmissionControl getAdmissionControl()
+    {
+        return admission;
+    }
+
+    // Sets the pools that expensive requests run in, including the slow parts of batches.
+    public void setBulkheads(Bulkheads bulkheads)
+    {
+        this.bulkheads = bulkheads;
+    }
+
+    public Bulkheads getBulkheads()
+    {
+        return bulkheads;
+    }
+
+    // Returns true iff the response to the given opcode should be streamed from startStream() rather than built with respond().
+    public boolean shouldStream(byte code)
+    {
+        return streaming
+                && ServerCommands.usesExternalCommands()
+                && ServerCommands.commandFor(code) != null
+                && (cache == null || !cache.isCached(code));
+    }
+
+    // Starts the command whose output is the response to the given opcode.
+    public Process startStream(byte code) throws IOException
+    {
+        return ServerCommands.startCommand(code);
+    }
+
+    // Returns the UTF-8 encoded response for the given opcode, or null if the opcode is unknown.
+    // The buffer belongs to the caller and stays valid indefinitely.
+    public ByteBuffer respond(byte code)
+    {
+        if (!ServerCommands.isKnown(code))
+            return null;
+        long start = System.nanoTime();
+        if (cache != null && cache.isCached(code))
+            return collected(code, start, cache.get(code));
+        if (Structured.isStructured(code))
+            return collected(code, start, copy(ServerCommands.respondStructured(code)));
+        CharSequence text = ServerCommands.respond(code);
+        ByteBuffer pre = fixed.get(text);
+        if (pre != null)
+            return collected(code, start, pre.duplicate());
+        long encodeStart = collected(code, start);
+        return encoded(code, encodeStart, StandardCharsets.UTF_8.encode(CharBuffer.wrap(text)));
+    }
+
+    // Like respond(code), but fresh responses are encoded into the writer's reusable buffer,
+    // so the result is only valid until the writer's next use.
+    public ByteBuffer respond(byte code, ResponseWriter writer) throws CharacterCodingException
+    {
+        if (!ServerCommands.isKnown(code))
+            return null;
+        long start = System.nanoTime();
+        if (cache != null && cache.isCached(code))
+            return collected(code, start, cache.get(code));
+        if (Structured.isStructured(code))
+            return collected(code, start, ServerCommands.respondStructured(code)); // Already bytes, in a buffer the thread owns.
+        CharSequence text = ServerCommands.respond(code);
+        ByteBuffer pre = fixed.get(text);
+        if (pre != null)
+            return collected(code, start, pre.duplicate());
+        long encodeStart = collected(code, start);
+        return encoded(code, encodeStart, writer.encode(text));
+    }
+
+    // Records how long collecting the response took, and returns the time it finished.
+    private static long collected(byte code, long start)
+    {
+        long now = System.nanoTime();
+        ServerMetrics.get().recordCollect(code, now - start);
+        return now;
+    }
+
+    private static ByteBuffer collected(byte code, long start, ByteBuffer response)
+    {
+        collected(code, start);
+        return response;
+    }
+
+    private static ByteBuffer encoded(byte code, long start, ByteBuffer response)
+    {
+        ServerMetrics.get().recordEncode(code, System.nanoTime() - start);
+        return response;
+    }
+
+    /*
+     * Returns the reply to a DELTA request: what changed in the opcode's listing since the given epoch (see Delta),
+     * or null if the opcode has no deltas. The buffer belongs to the caller.
+     */
+    public ByteBuffer respondDelta(byte code, long since)
+    {
+        if (!Delta.supports(code))
+            return null;
+        return deltas.respond(code, since, respond(code));
+    }
+
+    /*
+     * Returns the response for the given opcode, like respond(code), once it is ready.
+     * Cheap opcodes and fresh cache hits are answered on this thread; an expensive opcode is never collected here,
+     * even if its cache entry has just expired. Expensive ones are collected in their bulkhead,
+     * once for every request for the opcode that arrives before the collection starts, so no request gets data older than itself.
+     * The future fails with RejectedExecutionException if the bulkhead has no room.
+     */
+    public CompletableFuture<ByteBuffer> respondAsync(byte code)
+    {
+        // Always the opcode's own pool, never one that runs tasks here: the collection is shared, and so is its executor's refusal.
+        Executor pool = bulkheads.forOpcode(code);
+        if (pool == null)
+            return CompletableFuture.completedFuture(respond(code));
+        ByteBuffer cached = tryRespondNow(code);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+        return coalescer.get(code, pool, () -> respond(code));
+    }
+
+    // Returns the reply to a DELTA request, like respondDelta(code, since), once the listing is ready (see respondAsync).
+    public CompletableFuture<ByteBuffer> respondDeltaAsync(byte code, long since)
+    {
+        if (!Delta.supports(code))
+            return CompletableFuture.completedFuture(null);
+        DeltaHistory history = deltas;
+        return respondAsync(code).thenApply(listing -> history.respond(code, since, listing));
+    }
+
+    // Returns the reply to a batch, like respondBatch(codes), answering it on this thread if every expensive part is a fresh cache hit
+    // and otherwise in the batch bulkhead. The future fails with RejectedExecutionException if the bulkhead has no room.
+    public CompletableFuture<ByteBuffer> respondBatchAsync(byte[] codes)
+    {
+        ByteBuffer now = respondBatch(codes, true);
+        if (now != null)
+            return CompletableFuture.completedFuture(now);
+        try {
+            return CompletableFuture.supplyAsync(() -> respondBatch(codes), bulkheads.forOpcode(Protocol.BATCH));
+        } catch (RejectedExecutionException ex) {
+            CompletableFuture<ByteBuffer> shed = new CompletableFuture<>();
+            shed.completeExceptionally(ex);
+            return shed;
+        }
+    }
+
+    /*
+     * Answers every opcode of a batch and returns the reply (see Batch).
+     * The slow opcodes are collected in parallel, each in its own bulkhead (see Bulkheads), so this takes about as long as the slowest one;
+     * an opcode asked for twice is collected once, and may share its collection with other requests (see respondAsync).
+     */
+    public ByteBuffer respondBatch(byte[] codes)
+    {
+        return respondBatch(codes, false);
+    }
+
+    // With onlyNow, returns null instead of collecting any expensive part that isn't a fresh cache hit.
+    private ByteBuffer respondBatch(byte[] codes, boolean onlyNow)
+    {
+        byte[] statuses = new byte[codes.length];
+        ByteBuffer[] payloads = new ByteBuffer[codes.length];
+        List<Integer> slow = new ArrayList<>();
+        for (int i = 0; i < codes.length; ++i)
+        {
+            if (!ServerCommands.isKnown(codes[i]))
+            {
+                statuses[i] = Protocol.STATUS_UNKNOWN_OPCODE;
+                payloads[i] = ResponseWriter.EMPTY;
+            }
+            else if (indexOf(codes, codes[i], i) >= 0)
+                continue; // A repeat; filled in below.
+            else if (ServerCommands.isSlow(codes[i]) && (payloads[i] = tryRespondNow(codes[i])) == null)
+            {
+                if (onlyNow)
+                    return null;
+                slow.add(i);
+            }
+            else if (payloads[i] == null)
+                payloads[i] = respond(codes[i]);
+        }
+
+        // Hand every slow opcode to its bulkhead at once, joining any collection of it that hasn't started yet.
+        List<CompletableFuture<ByteBuffer>> pending = new ArrayList<>(slow.size());
+        for (int i : slow)
+            pending.add(respondAsync(codes[i]));
+        for (int k = 0; k < pending.size(); ++k)
+        {
+            int i = slow.get(k);
+            try {
+                try {
+                    payloads[i] = pending.get(k).get();
+                } catch (ExecutionException ex) {
+                    if (!(ex.getCause() instanceof RejectedExecutionException))
+                        throw ex;
+                    payloads[i] = respond(codes[i]); // The bulkhead was full; the batch was admitted, and is better late than shed.
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                statuses[i] = Protocol.STATUS_ERROR;
+                payloads[i] = StandardCharsets.UTF_8.encode(String.format("Failed to collect response: %s", ex));
+            }
+        }
+
+        for (int i = 0; i < codes.length; ++i)
+        {
+            int first = indexOf(codes, codes[i], i);
+            if (first >= 0)
+            {
+                statuses[i] = statuses[first];
+                payloads[i] = payloads[first].duplicate();
+            }
+        }
+        // Take views, so encoding doesn't consume buffers shared between repeats.
+        for (int i = 0; i < codes.length; ++i)
+            payloads[i] = payloads[i].duplicate();
+        return Batch.encode(codes, statuses, payloads);
+    }
+
+    // Returns the index of the first occurrence of code before the given index, or -1 if there is none.
+    private static int indexOf(byte[] codes, byte code, int before)
+    {
+        for (int i = 0; i < before; ++i)
+        {
+            if (codes[i] == code)
+                return i;
+        }
+        return -1;
+    }
+
+    // Returns the response for the given opcode if it can be produced without blocking (a cache hit), otherwise null.
+    public ByteBuffer tryRespondNow(byte code)
+    {
+        if (cache == null)
+            return null;
+        return cache.peek(code);
+    }
+
+    // Returns the cache this responder uses, or null if it doesn't have one.
+    public SnapshotCache getCache()
+    {
+        return cache;
+    }
+
+    // Runs the command for the given opcode and encodes its output. Suitable as a SnapshotCache.Loader.
+    public static ByteBuffer load(byte code)
+    {
+        if (Structured.isStructured(code))
+            return toDirect(ServerCommands.respondStructured(code));
+        return toDirect(ServerCommands.respond(code));
+    }
+
+    // Copies the buffer's remaining bytes into a new heap buffer.
+    private static ByteBuffer copy(ByteBuffer bytes)
+    {
+        ByteBuffer b = ByteBuffer.allocate(bytes.remaining());
+        b.put(bytes);
+        b.flip();
+        return b;
+    }
+
+    // Encodes the text into a read-only direct buffer of exactly the right size.
+    private static ByteBuffer toDirect(CharSequence text)
+    {
+        return toDirect(StandardCharsets.UTF_8.encode(CharBuffer.wrap(text)));
+    }
+
+    // Copies the buffer's remaining bytes into a read-only direct buffer of exactly the right size.
+    private static ByteBuffer toDirect(ByteBuffer bytes)
+    {
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.remaining());
+        direct.put(bytes);
+        direct.flip();
+        return direct.asReadOnlyBuffer();
+    }
+}
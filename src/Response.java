@@ -0,0 +1,69 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// A server's reply to one request, as seen by the client.
+public class Response {
+
+    private final byte status;
+    private final byte[] body;
+    private final long firstByteTime;
+    private final long wireSize;
+
+    public Response(byte status, byte[] body)
+    {
+        this(status, body, 0);
+    }
+
+    // @param firstByteTime   System.nanoTime() when the first byte of the reply arrived, or 0 if unknown.
+    public Response(byte status, byte[] body, long firstByteTime)
+    {
+        this(status, body, firstByteTime, body.length);
+    }
+
+    // @param wireSize   How many bytes the reply took on the wire, counting frame headers and before decompression.
+    public Response(byte status, byte[] body, long firstByteTime, long wireSize)
+    {
+        this.status = status;
+        this.body = body;
+        this.firstByteTime = firstByteTime;
+        this.wireSize = wireSize;
+    }
+
+    public boolean isOk()
+    {
+        return status == Protocol.STATUS_OK;
+    }
+
+    public byte getStatus()
+    {
+        return status;
+    }
+
+    // Returns the number of bytes in the reply body.
+    public int getSize()
+    {
+        return body.length;
+    }
+
+    // Returns how many bytes the reply took on the wire, counting frame headers and before decompression.
+    public long getWireSize()
+    {
+        return wireSize;
+    }
+
+    // Returns System.nanoTime() when the first byte of the reply arrived, or 0 if unknown.
+    public long getFirstByteTime()
+    {
+        return firstByteTime;
+    }
+
+    public byte[] getBody()
+    {
+        return body;
+    }
+
+    // Returns the reply body decoded as UTF-8 text.
+    public String getText()
+    {
+        return new String(body, UTF_8);
+    }
+}
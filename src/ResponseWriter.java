@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Encodes and writes responses without allocating on the hot path.
+ * Each thread gets its own writer, with a direct buffer that response text is encoded into and reused for every response,
+ * and a direct header buffer that is sent together with the payload in one gathering write.
+ * Because the buffers are direct, the channel writes them without copying them again.
+ */
+public class ResponseWriter {
+
+    private static final ThreadLocal<ResponseWriter> instances = ThreadLocal.withInitial(ResponseWriter::new);
+
+    // Returns the calling thread's writer.
+    public static ResponseWriter get()
+    {
+        return instances.get();
+    }
+
+    private static final int INITIAL_BODY_SIZE = 16 * 1024;
+    // Largest piece of a streamed response held in memory at once.
+    public static final int STREAM_CHUNK_SIZE = 16 * 1024;
+    public static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer header = ByteBuffer.allocateDirect(Frame.HEADER_SIZE);
+    private ByteBuffer body = ByteBuffer.allocateDirect(INITIAL_BODY_SIZE);
+    private final ByteBuffer[] frame = new ByteBuffer[2];
+    private final byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+    private final ByteBuffer chunkBuf = ByteBuffer.wrap(chunk);
+
+    private ResponseWriter() { }
+
+    // Encodes the text as UTF-8 into this writer's buffer and returns it, ready to be written.
+    // The result is only valid until the next call to encode().
+    public ByteBuffer encode(CharSequence text) throws CharacterCodingException
+    {
+        while (true)
+        {
+            body.clear();
+            encoder.reset();
+            CharBuffer in = text instanceof CharBuffer ? ((CharBuffer)text).duplicate() : CharBuffer.wrap(text);
+            CoderResult result = encoder.encode(in, body, true);
+            if (!result.isOverflow())
+                result = encoder.flush(body);
+            if (result.isOverflow())
+            {
+                // Grow and start over. The buffer keeps its new size for later responses.
+                body = ByteBuffer.allocateDirect(Math.max(body.capacity() * 2, text.length() * 3));
+                continue;
+            }
+            if (result.isError())
+                result.throwException();
+            body.flip();
+            return body;
+        }
+    }
+
+    // Writes the payload as is (protocol version 1).
+    public void write(GatheringByteChannel ch, ByteBuffer payload) throws IOException
+    {
+        long written = 0;
+        try {
+            while (payload.hasRemaining())
+                written += ch.write(payload);
+        } finally {
+            ServerMetrics.get().addBytesOut(written);
+        }
+    }
+
+    // Writes a frame header and the payload in one gathering write (protocol version 2).
+    public void writeFrame(GatheringByteChannel ch, byte status, ByteBuffer payload) throws IOException
+    {
+        writeFrame(ch, status, payload, Compression.NEVER);
+    }
+
+    // Like writeFrame(ch, status, payload), but compresses a payload of at least compressionThreshold bytes (see Compression).
+    public void writeFrame(GatheringByteChannel ch, byte status, ByteBuffer payload, int compressionThreshold) throws IOException
+    {
+        if (payload.remaining() >= compressionThreshold)
+        {
+            ByteBuffer compressed = Compression.compress(payload);
+            if (compressed != null)
+            {
+                payload.position(payload.limit()); // Consumed, as if written.
+                payload = compressed;
+                status |= Protocol.STATUS_COMPRESSED;
+            }
+        }
+        header.clear();
+        header.put(status);
+        header.putInt(payload.remaining());
+        header.flip();
+        frame[0] = header;
+        frame[1] = payload;
+        long written = 0;
+        try {
+            while (payload.hasRemaining() || header.hasRemaining())
+                written += ch.write(frame);
+        } finally {
+            frame[1] = null; // Don't keep the caller's buffer alive.
+            ServerMetrics.get().addBytesOut(written);
+        }
+    }
+
+    // Copies everything from the input to the channel as soon as it is produced, one chunk at a time,
+    // so memory use stays bounded however long the output is.
+    // When framed, each chunk is a PARTIAL frame and an empty OK frame ends the response.
+    public void stream(GatheringByteChannel ch, InputStream in, boolean framed) throws IOException
+    {
+        stream(ch, in, framed, Compression.NEVER);
+    }
+
+    // Like stream(ch, in, framed), but compresses each framed chunk of at least compressionThreshold bytes.
+    public void stream(GatheringByteChannel ch, InputStream in, boolean framed, int compressionThreshold) throws IOException
+    {
+        int n;
+        while ((n = in.read(chunk)) != -1)
+        {
+            if (n == 0)
+                continue;
+            chunkBuf.clear();
+            chunkBuf.limit(n);
+            if (framed)
+                writeFrame(ch, Protocol.STATUS_PARTIAL, chunkBuf, compressionThreshold);
+            else
+                write(ch, chunkBuf);
+        }
+        if (framed)
+            writeFrame(ch, Protocol.STATUS_OK, EMPTY);
+    }
+}
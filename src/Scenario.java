@@ -0,0 +1,90 @@
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Describes a mixed workload for ManyClients.runScenario.
+ * Each client is a virtual user that repeatedly picks an operation at random by weight, requests it,
+ * then waits for a think time before the next one.
+ * Users start one by one through the ramp-up phase, all run during the steady phase,
+ * and stop one by one through the ramp-down phase.
+ */
+public class Scenario
+{
+    private final Project1Client.Operation[] operations;
+    private final int[] cumulativeWeights;
+    private final long rampUpNanos;
+    private final long steadyNanos;
+    private final long rampDownNanos;
+    private final long minThinkNanos;
+    private final long maxThinkNanos;
+
+    /*
+     * @param operations      The operations to mix.
+     * @param weights         The relative frequency of each operation. Each must be positive.
+     * @param minThinkNanos   The shortest pause between a user's requests.
+     * @param maxThinkNanos   The longest pause between a user's requests. Pauses are uniformly distributed in between.
+     */
+    public Scenario(List<Project1Client.Operation> operations, List<Integer> weights,
+                    long rampUpNanos, long steadyNanos, long rampDownNanos,
+                    long minThinkNanos, long maxThinkNanos)
+    {
+        if (operations.isEmpty() || operations.size() != weights.size())
+            throw new IllegalArgumentException("Every operation needs one weight.");
+        if (minThinkNanos < 0 || maxThinkNanos < minThinkNanos)
+            throw new IllegalArgumentException("Invalid think time range.");
+        this.operations = operations.toArray(new Project1Client.Operation[0]);
+        cumulativeWeights = new int[weights.size()];
+        int total = 0;
+        for (int i = 0; i < cumulativeWeights.length; ++i)
+        {
+            if (weights.get(i) <= 0)
+                throw new IllegalArgumentException("Weights must be positive.");
+            total += weights.get(i);
+            cumulativeWeights[i] = total;
+        }
+        this.rampUpNanos = rampUpNanos;
+        this.steadyNanos = steadyNanos;
+        this.rampDownNanos = rampDownNanos;
+        this.minThinkNanos = minThinkNanos;
+        this.maxThinkNanos = maxThinkNanos;
+    }
+
+    // Picks an operation with probability proportional to its weight.
+    public Project1Client.Operation pickOperation(Random random)
+    {
+        int n = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; ; ++i)
+        {
+            if (n < cumulativeWeights[i])
+                return operations[i];
+        }
+    }
+
+    // Picks how long a user waits before its next request.
+    public long pickThinkTime(Random random)
+    {
+        if (maxThinkNanos == minThinkNanos)
+            return minThinkNanos;
+        return minThinkNanos + (long)(random.nextDouble() * (maxThinkNanos - minThinkNanos));
+    }
+
+    public long getRampUpNanos()
+    {
+        return rampUpNanos;
+    }
+
+    public long getSteadyNanos()
+    {
+        return steadyNanos;
+    }
+
+    public long getRampDownNanos()
+    {
+        return rampDownNanos;
+    }
+
+    public long getTotalNanos()
+    {
+        return rampUpNanos + steadyNanos + rampDownNanos;
+    }
+}
@@ -0,0 +1,15 @@
+// The operations Project1 uses to control a running server, whichever engine it uses.
+public interface Server {
+
+    // Starts accepting clients. Returns immediately.
+    void start();
+
+    // Returns true while the server still has threads running.
+    boolean isRunning();
+
+    // Stops accepting clients and waits up to the given time for the ones in progress to finish.
+    void stop(long timeoutMilliseconds);
+
+    // Stops the server without waiting for clients in progress.
+    void abort();
+}
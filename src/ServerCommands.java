@@ -0,0 +1,336 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/*
+ * Produces the text responses for each opcode the server understands, and their structured forms (see Structured).
+ * This is shared by every server engine so they all answer the same way.
+ */
+public final class ServerCommands {
+
+    private ServerCommands() { }
+
+    // Returns true iff the given code is an opcode this server understands. Every opcode but STATS has a structured form.
+    public static boolean isKnown(byte code)
+    {
+        switch (Structured.plain(code)) {
+            case 0x11:
+            case 0x22:
+            case 0x33:
+            case 0x44:
+            case 0x55:
+            case 0x66:
+                return true;
+            case Protocol.STATS:
+                return code == Protocol.STATS;
+            default:
+                return false;
+        }
+    }
+
+    // Returns a short name for the opcode, for reports.
+    public static String nameOf(byte code)
+    {
+        String name;
+        switch (Structured.plain(code)) {
+            case 0x11: name = "date"; break;
+            case 0x22: name = "uptime"; break;
+            case 0x33: name = "memory"; break;
+            case 0x44: name = "netstat"; break;
+            case 0x55: name = "users"; break;
+            case 0x66: name = "processes"; break;
+            case Protocol.STATS: name = "stats"; break;
+            case Protocol.BATCH: name = "batch"; break;
+            case Protocol.DELTA: name = "delta"; break;
+            default: name = String.format("0x%02x", Structured.plain(code));
+        }
+        return Structured.isStructured(code) ? name + "/structured" : name;
+    }
+
+    // Returns true iff answering the given opcode runs an external command or scans /proc, and so may take a long time.
+    public static boolean isSlow(byte code)
+    {
+        switch (Structured.plain(code)) {
+            case 0x33:
+            case 0x44:
+            case 0x55:
+            case 0x66:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Returns the response text for the given opcode, or null if the opcode is unknown.
+    // The result may be a builder owned by the calling thread, valid only until that thread's next call.
+    public static CharSequence respond(byte code)
+    {
+        switch (code) {
+            case 0x11:
+                return getDateAndTime();
+            case 0x22:
+                return getUptime();
+            case 0x33:
+                return getMemoryUsage();
+            case 0x44:
+                return getNetstat();
+            case 0x55:
+                return getUsers();
+            case 0x66:
+                return getProcesses();
+            case Protocol.STATS:
+                return ServerMetrics.get().format();
+            default:
+                return null;
+        }
+    }
+
+    /*
+     * Returns the structured response for the given opcode, which has the STRUCTURED bit set, or null if the opcode is unknown.
+     * The result may be a buffer owned by the calling thread, valid only until that thread's next call.
+     * These always read /proc, whichever collectors the text responses use.
+     */
+    public static ByteBuffer respondStructured(byte code)
+    {
+        switch (Structured.plain(code)) {
+            case 0x11:
+                return getDateAndTimeStructured();
+            case 0x22:
+                return readStructured(r -> {
+                    ByteBuffer b = structuredScratch.get();
+                    b.clear();
+                    b.put(Structured.DATA).putLong(r.uptimeSeconds()).flip();
+                    return b;
+                }, UPTIME_UNSUPPORTED, UPTIME_ERROR);
+            case 0x33:
+                return readStructured(ProcReader::memoryUsageStructured, MEMORY_UNSUPPORTED, MEMORY_ERROR);
+            case 0x44:
+                return readStructured(ProcReader::netstatStructured, NETSTAT_UNSUPPORTED, NETSTAT_ERROR);
+            case 0x55:
+                return readStructured(ProcReader::usersStructured, USERS_UNSUPPORTED, USERS_ERROR);
+            case 0x66:
+                return readStructured(ProcReader::processesStructured, PROCESSES_UNSUPPORTED, PROCESSES_ERROR);
+            default:
+                return null;
+        }
+    }
+
+    // Fixed responses. Responder pre-encodes these once; respond() returns these very instances.
+    static final String UPTIME_ERROR = "Error reading uptime";
+    static final String UPTIME_UNSUPPORTED = "Uptime not supported (linux not detected)";
+    static final String MEMORY_ERROR = "Error reading memory usage";
+    static final String MEMORY_UNSUPPORTED = "Memory usage not supported (linux not detected)";
+    static final String NETSTAT_ERROR = "Error reading netstat";
+    static final String NETSTAT_UNSUPPORTED = "Netstat not supported (linux not detected)";
+    static final String USERS_ERROR = "Error reading users";
+    static final String USERS_UNSUPPORTED = "Users not supported (linux not detected)";
+    static final String PROCESSES_ERROR = "Error reading processes";
+    static final String PROCESSES_UNSUPPORTED = "Processes not supported (linux not detected)";
+
+    static final String[] FIXED_RESPONSES = {
+            UPTIME_ERROR, UPTIME_UNSUPPORTED, MEMORY_ERROR, MEMORY_UNSUPPORTED, NETSTAT_ERROR, NETSTAT_UNSUPPORTED,
+            USERS_ERROR, USERS_UNSUPPORTED, PROCESSES_ERROR, PROCESSES_UNSUPPORTED
+    };
+
+    private static DateTimeFormatter dtf = DateTimeFormatter.ofPattern("MM/dd/yyyy, HH:mm:ss");
+
+    // Small responses are built in a per-thread builder rather than a new String each time.
+    private static final ThreadLocal<StringBuilder> scratch = ThreadLocal.withInitial(() -> new StringBuilder(64));
+
+    public static CharSequence getDateAndTime()
+    {
+        StringBuilder sb = scratch.get();
+        sb.setLength(0);
+        dtf.formatTo(LocalDateTime.now(), sb);
+        return sb;
+    }
+
+    // Small structured responses likewise.
+    private static final ThreadLocal<ByteBuffer> structuredScratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(16));
+
+    public static ByteBuffer getDateAndTimeStructured()
+    {
+        Instant now = Instant.now();
+        ByteBuffer b = structuredScratch.get();
+        b.clear();
+        b.put(Structured.DATA).putLong(now.toEpochMilli());
+        b.putInt(ZoneId.systemDefault().getRules().getOffset(now).getTotalSeconds());
+        b.flip();
+        return b;
+    }
+
+    // Reads one structured response from the calling thread's ProcReader.
+    private interface StructuredReader
+    {
+        ByteBuffer read(ProcReader reader) throws IOException;
+    }
+
+    private static ByteBuffer readStructured(StructuredReader source, String unsupported, String error)
+    {
+        if (!haveUnix)
+            return Structured.message(unsupported);
+        try {
+            return source.read(ProcReader.get());
+        } catch (IOException e) {
+            return Structured.message(error);
+        }
+    }
+
+    // Check we're on Linux.
+    private static boolean haveUnix;
+
+    static {
+	String osname = System.getProperty("os.name").toLowerCase();
+	ServerLog.info("osname: %s\n", osname);
+        haveUnix = osname.contains("nux") || osname.contains("nix");
+    }
+
+    // Whether to run free, netstat, who and ps instead of reading /proc directly.
+    private static volatile boolean useExternalCommands = false;
+
+    // Chooses between running the external commands and reading /proc in-process (the default).
+    public static void setUseExternalCommands(boolean value)
+    {
+        useExternalCommands = value;
+    }
+
+    public static CharSequence getUptime()
+    {
+        if (!haveUnix)
+            return UPTIME_UNSUPPORTED;
+        int upSeconds;
+        try {
+            upSeconds = ProcReader.get().uptimeSeconds();
+        } catch (IOException e) {
+            ServerLog.error("Error getting uptime: %s\n", e.getMessage());
+            return UPTIME_ERROR;
+        }
+        int upMinutes = upSeconds / 60;
+        int upHours = upMinutes / 60;
+        int upDays = upHours / 24;
+        upHours %= 24;
+        upMinutes %= 60;
+        upSeconds %= 60;
+
+        // Same as "%dd %dh %02dm %02ds", without the formatter.
+        StringBuilder sb = scratch.get();
+        sb.setLength(0);
+        if (upDays > 0)
+            sb.append(upDays).append("d ");
+        sb.append(upHours).append("h ");
+        append2(sb, upMinutes).append("m ");
+        append2(sb, upSeconds).append('s');
+        return sb;
+    }
+
+    private static StringBuilder append2(StringBuilder sb, int n)
+    {
+        if (n < 10)
+            sb.append('0');
+        return sb.append(n);
+    }
+
+    public static CharSequence getMemoryUsage()
+    {
+        if (!haveUnix)
+            return MEMORY_UNSUPPORTED;
+        try {
+            return useExternalCommands ? runCommand("free") : ProcReader.get().memoryUsage();
+        } catch (IOException e) {
+            return MEMORY_ERROR;
+        }
+    }
+
+    public static CharSequence getNetstat()
+    {
+        if (!haveUnix)
+            return NETSTAT_UNSUPPORTED;
+        try {
+            return useExternalCommands ? runCommand("netstat") : ProcReader.get().netstat();
+        } catch (IOException e) {
+            return NETSTAT_ERROR;
+        }
+    }
+
+    public static CharSequence getUsers()
+    {
+        if (!haveUnix)
+            return USERS_UNSUPPORTED;
+        try {
+            return useExternalCommands ? runCommand("who") : ProcReader.get().users();
+        } catch (IOException e) {
+            return USERS_ERROR;
+        }
+    }
+
+    // Lists the running processes like "ps -e".
+    public static CharSequence getProcesses()
+    {
+        if (!haveUnix)
+            return PROCESSES_UNSUPPORTED;
+        try {
+            return useExternalCommands ? runCommand("ps", "-e") : ProcReader.get().processes();
+        } catch (IOException e) {
+            return PROCESSES_ERROR;
+        }
+    }
+
+    // Returns true iff command-backed opcodes are answered by running external commands.
+    public static boolean usesExternalCommands()
+    {
+        return haveUnix && useExternalCommands;
+    }
+
+    // Returns the external command that answers the given opcode, or null if it isn't answered by one.
+    public static String[] commandFor(byte code)
+    {
+        switch (code) {
+            case 0x33:
+                return new String[] { "free" };
+            case 0x44:
+                return new String[] { "netstat" };
+            case 0x55:
+                return new String[] { "who" };
+            case 0x66:
+                return new String[] { "ps", "-e" };
+            default:
+                return null;
+        }
+    }
+
+    // Starts the external command for the given opcode, for the caller to read its output as it is produced.
+    public static Process startCommand(byte code) throws IOException
+    {
+        ProcessBuilder psb = new ProcessBuilder();
+        psb.command(commandFor(code));
+        psb.redirectError(ProcessBuilder.Redirect.to(new java.io.File("/dev/null")));
+        return start(psb);
+    }
+
+    // Runs the given command and returns everything it writes to standard output.
+    private static String runCommand(String... command) throws IOException
+    {
+        ProcessBuilder psb = new ProcessBuilder();
+        psb.command(command);
+        Process p = start(psb);
+        return readAll(p.getInputStream());
+    }
+
+    // Starts the process, recording how long that took.
+    private static Process start(ProcessBuilder psb) throws IOException
+    {
+        long start = System.nanoTime();
+        Process p = psb.start();
+        ServerMetrics.get().recordSpawn(System.nanoTime() - start);
+        return p;
+    }
+
+    static String readAll(java.io.InputStream is) {
+        java.util.Scanner s = new java.util.Scanner(is).useDelimiter("\\A");
+        return s.hasNext() ? s.next() : "";
+    }
+
+}
@@ -0,0 +1,198 @@
+import java.util.Formatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Writes the server's log lines from a background thread, so serving a client never waits for System.out,
+ * whose lock every thread would otherwise take for every line.
+ * Callers hand over a format and its arguments through a lock-free ring; only the writer thread formats them,
+ * and it prints everything waiting as one block, taking System.out's lock once per batch.
+ * Lines below the configured level cost a volatile read, plus whatever their arguments cost to compute (and the varargs array),
+ * so callers check isEnabled first when an argument is costly, such as a socket's address. INFO and DEBUG lines (one per connection) can also be sampled,
+ * keeping one in N, so benchmarks can keep a trace of connections without paying for all of them.
+ * When the ring is full, lines are dropped and counted, and the writer says how many it missed.
+ */
+public final class ServerLog {
+
+    private ServerLog() { }
+
+    // Most severe first; a level logs its own lines and those above it.
+    public enum Level { OFF, ERROR, WARN, INFO, DEBUG }
+
+    public static final Level DEFAULT_LEVEL = Level.INFO;
+    private static final int CAPACITY = 4096; // A power of two.
+    private static final int MASK = CAPACITY - 1;
+    // How long the writer sleeps when it finds nothing to write, which is how long a line may wait to be seen.
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private static volatile Level level = DEFAULT_LEVEL;
+    private static volatile int sampleEvery = 1;
+
+    /*
+     * The ring. Slot i is free for the writer that claims position p (with p % CAPACITY == i) when sequences[i] == p,
+     * and holds that position's line once sequences[i] == p + 1. The writer thread frees it again by setting p + CAPACITY.
+     */
+    private static final String[] formats = new String[CAPACITY];
+    private static final Object[][] arguments = new Object[CAPACITY][];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head; // Only used by the writer thread.
+    private static volatile long written;
+
+    private static final LongAdder dropped = new LongAdder();
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; ++i)
+            sequences.set(i, i);
+        writer = new Thread(ServerLog::writeAll, "ServerLog writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Sets the least severe level that is logged. OFF logs nothing.
+    public static void setLevel(Level l)
+    {
+        level = l;
+    }
+
+    // Keeps one in every n INFO and DEBUG lines, chosen at random. Errors and warnings are always kept.
+    public static void setSampling(int n)
+    {
+        if (n < 1)
+            throw new IllegalArgumentException("Sampling must be positive.");
+        sampleEvery = n;
+    }
+
+    // Returns true iff lines of the given level are logged (though INFO and DEBUG ones may still be sampled out).
+    public static boolean isEnabled(Level l)
+    {
+        return l != Level.OFF && l.compareTo(level) <= 0;
+    }
+
+    public static void error(String format, Object... args)
+    {
+        if (isEnabled(Level.ERROR))
+            enqueue(format, args);
+    }
+
+    public static void warn(String format, Object... args)
+    {
+        if (isEnabled(Level.WARN))
+            enqueue(format, args);
+    }
+
+    public static void info(String format, Object... args)
+    {
+        if (isEnabled(Level.INFO) && sampled())
+            enqueue(format, args);
+    }
+
+    public static void debug(String format, Object... args)
+    {
+        if (isEnabled(Level.DEBUG) && sampled())
+            enqueue(format, args);
+    }
+
+    private static boolean sampled()
+    {
+        int n = sampleEvery;
+        return n == 1 || ThreadLocalRandom.current().nextInt(n) == 0;
+    }
+
+    // Puts a line in the ring, or counts it as dropped if the ring is full.
+    private static void enqueue(String format, Object[] args)
+    {
+        long p;
+        int slot;
+        while (true)
+        {
+            p = tail.get();
+            slot = (int)p & MASK;
+            long seq = sequences.get(slot);
+            if (seq < p)
+            {
+                // The writer hasn't freed this slot since the last time around: full.
+                dropped.increment();
+                return;
+            }
+            if (seq == p && tail.compareAndSet(p, p + 1))
+                break;
+            // Another thread claimed p first; try the next position.
+        }
+        formats[slot] = format;
+        arguments[slot] = args;
+        sequences.lazySet(slot, p + 1); // Publishes the slot's contents to the writer.
+    }
+
+    // Returns how many lines have been dropped since the server started.
+    public static long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    // Waits up to the given time for the lines logged so far to be written, e.g. before the process exits.
+    public static void flush(long timeoutMilliseconds)
+    {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMilliseconds);
+        LockSupport.unpark(writer);
+        while (written < target && System.nanoTime() - deadline < 0)
+        {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void writeAll()
+    {
+        StringBuilder batch = new StringBuilder(8192);
+        Formatter formatter = new Formatter(batch, Locale.getDefault());
+        long reported = 0;
+        while (true)
+        {
+            long missed = dropped.sum();
+            if (missed != reported)
+            {
+                formatter.format("(%d log lines dropped)\n", missed - reported);
+                reported = missed;
+            }
+            while (true)
+            {
+                int slot = (int)head & MASK;
+                if (sequences.get(slot) != head + 1)
+                    break;
+                String format = formats[slot];
+                Object[] args = arguments[slot];
+                formats[slot] = null;
+                arguments[slot] = null;
+                sequences.lazySet(slot, head + CAPACITY);
+                ++head;
+                try {
+                    formatter.format(format, args);
+                } catch (RuntimeException ex) {
+                    batch.append("(bad log line \"").append(format).append("\": ").append(ex).append(")\n");
+                }
+            }
+            if (batch.length() == 0)
+            {
+                written = head;
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            System.out.print(batch);
+            System.out.flush();
+            batch.setLength(0);
+            written = head;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/*
+ * Counters and latency histograms describing what the server is doing, shared by every engine.
+ * Everything is recorded with atomic adds, so recording never blocks a request and costs a few nanoseconds.
+ * Each opcode's requests are timed as a whole and split into collecting the response (running a command or reading /proc),
+ * encoding it and writing it. The nio engine writes replies in the background, so its requests have no write times.
+ * Requests and clients shed by admission control (see AdmissionControl) are counted too, as are requests that shared a collection (see Coalescer).
+ * Clients read these with the STATS opcode, and the server console's "stats" command prints them.
+ */
+public class ServerMetrics {
+
+    private static final ServerMetrics instance = new ServerMetrics();
+
+    // Returns the metrics of the server running in this process.
+    public static ServerMetrics get()
+    {
+        return instance;
+    }
+
+    // Enough to tell a p99 from a p50, and small enough (about 40 KB) to keep several per opcode.
+    private static final int DIGITS = 2;
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder active = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder unknownOpcodes = new LongAdder();
+    private final LongAdder shedRequests = new LongAdder();
+    private final LongAdder shedConnections = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LatencyHistogram spawns = new LatencyHistogram(DIGITS);
+    // Indexed by opcode; created the first time an opcode is seen.
+    private final AtomicReferenceArray<OpcodeStats> opcodes = new AtomicReferenceArray<>(256);
+    private volatile IntSupplier queueDepth = () -> 0;
+    private volatile Bulkheads bulkheads;
+
+    // For the accept rate since the last report. Guarded by this.
+    private long lastReportNanos = startNanos;
+    private long lastReportAccepted;
+
+    private ServerMetrics() { }
+
+    // One opcode's request count and timings.
+    private static class OpcodeStats
+    {
+        final LongAdder requests = new LongAdder();
+        final LongAdder shed = new LongAdder();
+        final LatencyHistogram total = new LatencyHistogram(DIGITS);
+        final LatencyHistogram collect = new LatencyHistogram(DIGITS);
+        final LatencyHistogram encode = new LatencyHistogram(DIGITS);
+        final LatencyHistogram write = new LatencyHistogram(DIGITS);
+    }
+
+    private OpcodeStats statsFor(byte code)
+    {
+        int i = code & 0xFF;
+        OpcodeStats s = opcodes.get(i);
+        if (s == null)
+        {
+            opcodes.compareAndSet(i, null, new OpcodeStats());
+            s = opcodes.get(i);
+        }
+        return s;
+    }
+
+    // Counts a newly accepted client.
+    public void connectionOpened()
+    {
+        accepted.increment();
+        active.increment();
+    }
+
+    // Counts a client that is no longer connected.
+    public void connectionClosed()
+    {
+        active.decrement();
+    }
+
+    // Sets where the number of requests (or clients) waiting for a worker comes from.
+    public void setQueueDepth(IntSupplier depth)
+    {
+        queueDepth = depth;
+    }
+
+    // Sets the pools whose use is reported.
+    public void setBulkheads(Bulkheads bulkheads)
+    {
+        this.bulkheads = bulkheads;
+    }
+
+    // Records one whole request for the opcode, from reading it to sending (or queuing) its reply.
+    public void recordRequest(byte code, long nanos)
+    {
+        OpcodeStats s = statsFor(code);
+        s.requests.increment();
+        s.total.record(nanos);
+    }
+
+    public void recordCollect(byte code, long nanos)
+    {
+        statsFor(code).collect.record(nanos);
+    }
+
+    public void recordEncode(byte code, long nanos)
+    {
+        statsFor(code).encode.record(nanos);
+    }
+
+    public void recordWrite(byte code, long nanos)
+    {
+        statsFor(code).write.record(nanos);
+    }
+
+    // Counts a request answered BUSY without being run, under its opcode (or BATCH or DELTA).
+    public void recordShed(byte code)
+    {
+        shedRequests.increment();
+        statsFor(code).shed.increment();
+    }
+
+    // Counts a client answered BUSY as soon as it connected.
+    public void recordShedConnection()
+    {
+        shedConnections.increment();
+    }
+
+    // Counts a request that shared another's collection rather than starting its own (see Coalescer).
+    public void recordCoalesced()
+    {
+        coalesced.increment();
+    }
+
+    public long getShedRequests()
+    {
+        return shedRequests.sum();
+    }
+
+    public void recordUnknownOpcode()
+    {
+        unknownOpcodes.increment();
+    }
+
+    // Records how long it took to start an external command.
+    public void recordSpawn(long nanos)
+    {
+        spawns.record(nanos);
+    }
+
+    public void addBytesOut(long bytes)
+    {
+        bytesOut.add(bytes);
+    }
+
+    public long getAccepted()
+    {
+        return accepted.sum();
+    }
+
+    public long getActiveConnections()
+    {
+        return active.sum();
+    }
+
+    public long getBytesOut()
+    {
+        return bytesOut.sum();
+    }
+
+    // Returns a report of everything recorded so far. Times are in microseconds.
+    public synchronized String format()
+    {
+        long now = System.nanoTime();
+        long acceptedNow = accepted.sum();
+        double uptime = (now - startNanos) / 1e9;
+        double sinceLast = (now - lastReportNanos) / 1e9;
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(String.format("uptime %.1f s\n", uptime));
+        sb.append(String.format("connections: accepted=%d (%.1f/s, %.1f/s since last report) active=%d queued=%d\n",
+                acceptedNow, acceptedNow / uptime, (acceptedNow - lastReportAccepted) / sinceLast,
+                active.sum(), queueDepth.getAsInt()));
+        sb.append(String.format("bytes out: %d, unknown opcodes: %d, dropped log lines: %d\n",
+                bytesOut.sum(), unknownOpcodes.sum(), ServerLog.getDropped()));
+        sb.append(String.format("shed (answered busy): %d requests, %d connections\n", shedRequests.sum(), shedConnections.sum()));
+        sb.append(String.format("coalesced (shared a collection): %d requests\n", coalesced.sum()));
+        sb.append(String.format("command spawns: %d, p50 %.1f us, p99 %.1f us, max %.1f us\n", spawns.getTotalCount(),
+                spawns.getValueAtPercentile(50) / 1e3, spawns.getValueAtPercentile(99) / 1e3, spawns.getMax() / 1e3));
+        lastReportNanos = now;
+        lastReportAccepted = acceptedNow;
+        Bulkheads b = bulkheads;
+        if (b != null)
+            sb.append(b.report());
+
+        sb.append(String.format("%-20s %10s %10s %10s %10s %10s %10s %10s %10s %10s %10s\n", "opcode", "requests", "shed",
+                "p50", "p99", "collect50", "collect99", "encode50", "encode99", "write50", "write99"));
+        for (int i = 0; i < opcodes.length(); ++i)
+        {
+            OpcodeStats s = opcodes.get(i);
+            if (s == null)
+                continue;
+            sb.append(String.format("%-20s %10d %10d", ServerCommands.nameOf((byte)i), s.requests.sum(), s.shed.sum()));
+            for (LatencyHistogram h : new LatencyHistogram[] { s.total, s.collect, s.encode, s.write })
+            {
+                if (h.getTotalCount() == 0)
+                    sb.append(String.format(" %10s %10s", "-", "-"));
+                else
+                    sb.append(String.format(" %10.1f %10.1f", h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(99) / 1e3));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
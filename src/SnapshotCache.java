@@ -0,0 +1,185 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Caches the encoded response for each opcode for a configurable time to live,
+ * so that busy servers don't run an external command for every request.
+ * Each snapshot is kept in a read-only buffer, and every hit gets its own view of it, so hits copy nothing.
+ * Refreshes are single-flight: when a snapshot expires, the first request to notice runs the loader
+ * and every concurrent request for the same opcode waits for that result instead of running its own.
+ */
+public class SnapshotCache {
+
+    // Produces the encoded response for an opcode.
+    public interface Loader
+    {
+        // Returns the response in a buffer that will never be modified.
+        ByteBuffer load(byte code);
+    }
+
+    private final Loader loader;
+    // Indexed by opcode. Null means responses for that opcode are not cached.
+    private final Entry[] entries = new Entry[256];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+
+    public SnapshotCache(Loader loader)
+    {
+        this.loader = loader;
+    }
+
+    // Caches responses to the given opcode for the given number of milliseconds. Not thread-safe; call before serving.
+    public void setTimeToLive(byte code, long ttlMilliseconds)
+    {
+        if (ttlMilliseconds <= 0)
+            entries[code & 0xFF] = null;
+        else
+            entries[code & 0xFF] = new Entry(ttlMilliseconds * 1000000L);
+    }
+
+    // Returns true iff responses to the given opcode are cached.
+    public boolean isCached(byte code)
+    {
+        return entries[code & 0xFF] != null;
+    }
+
+    // Returns the cached response for the given opcode if it is still fresh, otherwise null. Never blocks.
+    public ByteBuffer peek(byte code)
+    {
+        Entry e = entries[code & 0xFF];
+        if (e == null)
+            return null;
+        Snapshot s = e.current;
+        if (s == null || !s.isFresh(e.ttlNanos, System.nanoTime()))
+            return null;
+        hits.increment();
+        return s.bytes.duplicate();
+    }
+
+    // Returns the response for the given opcode, from the cache if it is fresh, otherwise by running the loader.
+    public ByteBuffer get(byte code)
+    {
+        Entry e = entries[code & 0xFF];
+        if (e == null)
+            return loader.load(code);
+
+        Snapshot s = e.current;
+        if (s != null && s.isFresh(e.ttlNanos, System.nanoTime()))
+        {
+            hits.increment();
+            return s.bytes.duplicate();
+        }
+
+        FutureTask<ByteBuffer> task;
+        boolean mustRun = false;
+        synchronized (e)
+        {
+            // Check again in case another thread refreshed it while we were waiting for the lock.
+            s = e.current;
+            if (s != null && s.isFresh(e.ttlNanos, System.nanoTime()))
+            {
+                hits.increment();
+                return s.bytes.duplicate();
+            }
+            misses.increment();
+            task = e.refreshing;
+            if (task == null)
+            {
+                task = newRefresh(e, code);
+                e.refreshing = task;
+                mustRun = true;
+            }
+        }
+
+        if (mustRun)
+        {
+            refreshes.increment();
+            task.run();
+        }
+        try {
+            return task.get().duplicate();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return loader.load(code);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private FutureTask<ByteBuffer> newRefresh(final Entry e, final byte code)
+    {
+        return new FutureTask<ByteBuffer>(() -> {
+            // Stamp the snapshot with the time we started, so it never looks fresher than it is.
+            long takenAt = System.nanoTime();
+            ByteBuffer bytes = null;
+            try {
+                bytes = loader.load(code);
+                return bytes;
+            } finally {
+                synchronized (e)
+                {
+                    if (bytes != null)
+                        e.current = new Snapshot(bytes, takenAt);
+                    e.refreshing = null;
+                }
+            }
+        });
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    public long getRefreshes()
+    {
+        return refreshes.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("cache: %d hits, %d misses, %d refreshes", getHits(), getMisses(), getRefreshes());
+    }
+
+    private static class Entry
+    {
+        final long ttlNanos;
+        volatile Snapshot current;
+        FutureTask<ByteBuffer> refreshing; // Guarded by this.
+
+        Entry(long ttlNanos)
+        {
+            this.ttlNanos = ttlNanos;
+        }
+    }
+
+    private static class Snapshot
+    {
+        final ByteBuffer bytes;
+        final long takenAt;
+
+        Snapshot(ByteBuffer bytes, long takenAt)
+        {
+            this.bytes = bytes;
+            this.takenAt = takenAt;
+        }
+
+        boolean isFresh(long ttlNanos, long now)
+        {
+            return now - takenAt < ttlNanos;
+        }
+    }
+}
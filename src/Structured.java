@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Structured responses: the same information as the text responses, as packed binary fields,
+ * for clients that want the numbers rather than a table to show someone.
+ * A client asks for one by setting the Protocol.STRUCTURED bit of an opcode (e.g. 0xB3 for memory usage);
+ * the request and reply are otherwise unchanged, so this works single-shot, in sessions and in batches.
+ * A server that predates structured responses treats such an opcode as unknown.
+ *
+ * Every structured payload starts with a kind byte. DATA is followed by the fields below. MESSAGE is followed by
+ * UTF-8 text saying why there is no data, the same text a plain request would get (e.g. "Error reading memory usage").
+ * Numbers are big-endian. A string is a one-byte length followed by that many bytes of UTF-8; a string16 has a two-byte length.
+ *
+ *   date       int64 milliseconds since the epoch, int32 the server's UTC offset in seconds
+ *   uptime     int64 seconds
+ *   memory     int64 each, in KiB: total, used, free, shared, buff/cache, available, swap total, swap used, swap free
+ *   netstat    int32 count, then per Internet socket: byte flags (INET_UDP, INET_IPV6), byte TCP state,
+ *                  int32 receive queue, int32 send queue, local address (4 bytes, or 16 with INET_IPV6), uint16 local port,
+ *                  remote address, uint16 remote port;
+ *              then int32 count, then per UNIX domain socket: int32 reference count, byte type, byte state, int64 inode, string16 path
+ *   users      int32 count, then per login: string user, string line, int64 login time in seconds since the epoch, string16 host
+ *   processes  int32 count, then per process: int32 pid, int32 tty number (as in /proc/[pid]/stat), int32 CPU seconds, string command
+ *
+ * The server always reads these from /proc, even when its text responses come from external commands.
+ */
+public final class Structured {
+
+    private Structured() { }
+
+    // Payload kinds.
+    public static final byte DATA = 0;
+    public static final byte MESSAGE = 1;
+
+    // Bits of a netstat Internet socket's flags.
+    public static final byte INET_UDP = 0x01;
+    public static final byte INET_IPV6 = 0x02;
+
+    public static final int MEMORY_FIELDS = 9;
+
+    // Returns true iff the opcode asks for a structured response.
+    public static boolean isStructured(byte code)
+    {
+        return (code & Protocol.STRUCTURED) != 0;
+    }
+
+    // Returns the opcode that asks for the structured form of the given plain opcode.
+    public static byte of(byte code)
+    {
+        return (byte)(code | Protocol.STRUCTURED);
+    }
+
+    // Returns the plain opcode for the given opcode, structured or not.
+    public static byte plain(byte code)
+    {
+        return (byte)(code & ~Protocol.STRUCTURED);
+    }
+
+    // Returns a MESSAGE payload holding the given text.
+    public static ByteBuffer message(String text)
+    {
+        byte[] bytes = text.getBytes(UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(1 + bytes.length);
+        b.put(MESSAGE).put(bytes);
+        b.flip();
+        return b;
+    }
+
+    // Like ServerCommands' date format.
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("MM/dd/yyyy, HH:mm:ss");
+
+    /*
+     * Formats a structured response to the given opcode like the server's text response to it.
+     * A MESSAGE payload is returned as its text.
+     * Throws if the payload is malformed.
+     */
+    public static String toText(byte code, byte[] payload) throws IOException
+    {
+        if (payload.length == 0)
+            throw new IOException("Empty structured response. The server may not support structured responses.");
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        byte kind = in.get();
+        if (kind == MESSAGE)
+            return new String(payload, 1, payload.length - 1, UTF_8);
+        if (kind != DATA)
+            throw new IOException(String.format("Unknown structured response kind %d.", kind));
+        try {
+            StringBuilder out = new StringBuilder();
+            switch (plain(code))
+            {
+                case 0x11:
+                    long millis = in.getLong();
+                    ZoneOffset offset = ZoneOffset.ofTotalSeconds(in.getInt());
+                    DATE.formatTo(Instant.ofEpochMilli(millis).atOffset(offset), out);
+                    break;
+                case 0x22:
+                    formatUptime(out, in.getLong());
+                    break;
+                case 0x33:
+                    long[] memory = new long[MEMORY_FIELDS];
+                    for (int i = 0; i < memory.length; ++i)
+                        memory[i] = in.getLong();
+                    ProcReader.formatMemory(out, memory);
+                    break;
+                case 0x44:
+                    formatNetstat(out, in);
+                    break;
+                case 0x55:
+                    formatUsers(out, in);
+                    break;
+                case 0x66:
+                    formatProcesses(out, in);
+                    break;
+                default:
+                    throw new IOException(String.format("No structured form for opcode 0x%02x.", code));
+            }
+            if (in.hasRemaining())
+                throw new IOException("Structured response has trailing bytes.");
+            return out.toString();
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | DateTimeException ex) {
+            throw new IOException("Malformed structured response.");
+        }
+    }
+
+    private static void formatUptime(StringBuilder out, long seconds)
+    {
+        long days = seconds / 86400;
+        if (days > 0)
+            out.append(days).append("d ");
+        out.append(seconds / 3600 % 24).append("h ");
+        out.append(String.format("%02dm %02ds", seconds / 60 % 60, seconds % 60));
+    }
+
+    private static void formatNetstat(StringBuilder out, ByteBuffer in) throws IOException
+    {
+        out.append("Active Internet connections (w/o servers)\n");
+        out.append("Proto Recv-Q Send-Q Local Address           Foreign Address         State      \n");
+        for (int n = in.getInt(); n > 0; --n)
+        {
+            byte flags = in.get();
+            int state = in.get() & 0xFF;
+            long rxQueue = in.getInt() & 0xFFFFFFFFL;
+            long txQueue = in.getInt() & 0xFFFFFFFFL;
+            boolean udp = (flags & INET_UDP) != 0;
+            boolean ipv6 = (flags & INET_IPV6) != 0;
+            byte[] local = new byte[ipv6 ? 16 : 4];
+            in.get(local);
+            int localPort = in.getShort() & 0xFFFF;
+            byte[] remote = new byte[local.length];
+            in.get(remote);
+            int remotePort = in.getShort() & 0xFFFF;
+            ProcReader.formatInetSocket(out, (udp ? "udp" : "tcp") + (ipv6 ? "6" : ""), rxQueue, txQueue,
+                    local, localPort, remote, remotePort, ProcReader.inetStateName(udp, state));
+        }
+        out.append("Active UNIX domain sockets (w/o servers)\n");
+        out.append("Proto RefCnt Flags       Type       State         I-Node   Path\n");
+        for (int n = in.getInt(); n > 0; --n)
+        {
+            long refCount = in.getInt() & 0xFFFFFFFFL;
+            int type = in.get() & 0xFF;
+            int state = in.get() & 0xFF;
+            long inode = in.getLong();
+            ProcReader.appendUnixSocket(out, refCount, type, state, inode);
+            out.append(getString(in, in.getShort() & 0xFFFF)).append('\n');
+        }
+    }
+
+    // Login times are shown in the client's time zone.
+    private static void formatUsers(StringBuilder out, ByteBuffer in)
+    {
+        for (int n = in.getInt(); n > 0; --n)
+        {
+            int nameStart = out.length();
+            out.append(getString(in, in.get() & 0xFF));
+            ProcReader.padTo(out, nameStart + 8);
+            out.append(' ');
+            int lineStart = out.length();
+            out.append(getString(in, in.get() & 0xFF));
+            ProcReader.padTo(out, lineStart + 12);
+            out.append(' ');
+            ProcReader.whoTime.formatTo(Instant.ofEpochSecond(in.getLong()), out);
+            String host = getString(in, in.getShort() & 0xFFFF);
+            if (!host.isEmpty())
+                out.append(" (").append(host).append(')');
+            out.append('\n');
+        }
+    }
+
+    // The PID column is as wide as the largest PID listed (at least 5), since the server's pid_max isn't sent.
+    private static void formatProcesses(StringBuilder out, ByteBuffer in)
+    {
+        int count = in.getInt();
+        int first = in.position();
+        int maxPid = 0;
+        for (int i = 0; i < count; ++i)
+        {
+            maxPid = Math.max(maxPid, in.getInt());
+            in.position(in.position() + 8); // tty and CPU time
+            int commandLength = in.get() & 0xFF;
+            in.position(in.position() + commandLength);
+        }
+        int pidWidth = Math.max(5, Integer.toString(maxPid).length());
+        in.position(first);
+
+        ProcReader.appendProcessHeader(out, pidWidth);
+        for (int i = 0; i < count; ++i)
+        {
+            int pid = in.getInt();
+            int ttyNr = in.getInt();
+            long cpuSeconds = in.getInt() & 0xFFFFFFFFL;
+            ProcReader.appendProcess(out, pidWidth, pid, ttyNr, cpuSeconds);
+            out.append(getString(in, in.get() & 0xFF)).append('\n');
+        }
+    }
+
+    private static String getString(ByteBuffer in, int length)
+    {
+        if (length > in.remaining())
+            throw new BufferUnderflowException(); // Reported as malformed, like any other short read.
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/*
+ * Checks that delta replies round-trip: a listing edited at random, answered by DeltaHistory.respond
+ * and applied by Delta.Tracker, always gives back the listing byte for byte.
+ * One client polls every round and mostly gets patches; one polls rarely, so its epoch has aged out of the history;
+ * and fresh clients ask with NO_EPOCH or an epoch the server never issued. The last two must get the whole listing.
+ * Run with: make test
+ */
+public class DeltaTest
+{
+    private static final byte CODE = 0x44; // netstat
+    private static final int ROUNDS = 5000;
+    private static final int DEPTH = 4;
+
+    private static int failures;
+    private static int patches;
+    private static int staleFulls;
+
+    public static void main(String[] args)
+    {
+        Random random = new Random(1);
+        DeltaHistory history = new DeltaHistory(DEPTH);
+        Delta.Tracker poller = new Delta.Tracker();
+        Delta.Tracker laggard = new Delta.Tracker();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 40; ++i)
+            lines.add(randomLine(random));
+
+        for (int round = 0; round < ROUNDS; ++round)
+        {
+            edit(random, lines);
+            byte[] listing = String.join("\n", lines).getBytes(ISO_8859_1);
+
+            check(history, poller, poller.since(CODE), listing, false, "poller, round " + round);
+            if (round % (3 * DEPTH) == 0)
+            {
+                long since = laggard.since(CODE);
+                if (round > 0)
+                    staleFulls += check(history, laggard, since, listing, false, "laggard, round " + round) == Delta.FULL ? 1 : 0;
+                else
+                    check(history, laggard, since, listing, true, "laggard, round " + round);
+            }
+            if (round % 50 == 0)
+            {
+                check(history, new Delta.Tracker(), Delta.NO_EPOCH, listing, true, "NO_EPOCH, round " + round);
+                check(history, new Delta.Tracker(), 1, listing, true, "unknown epoch, round " + round);
+            }
+        }
+
+        if (patches == 0 || staleFulls == 0)
+        {
+            System.out.format("Only %d patches and %d full replies to stale epochs; the test didn't cover both.\n", patches, staleFulls);
+            ++failures;
+        }
+        if (failures > 0)
+        {
+            System.out.format("FAILED: %d delta replies did not round-trip.\n", failures);
+            System.exit(1);
+        }
+        System.out.format("OK: %d delta rounds round-trip (%d patches).\n", ROUNDS, patches);
+    }
+
+    // Asks the history for the listing's changes since the epoch, applies them with the tracker, and compares.
+    // Returns the reply's kind.
+    private static byte check(DeltaHistory history, Delta.Tracker tracker, long since, byte[] listing, boolean mustBeFull, String what)
+    {
+        ByteBuffer reply = history.respond(CODE, since, ByteBuffer.wrap(listing));
+        byte[] body = new byte[reply.remaining()];
+        reply.get(body);
+        byte kind = body[8];
+        if (kind == Delta.PATCH)
+            ++patches;
+        if (mustBeFull && kind != Delta.FULL)
+            fail(what, "expected a full listing, got kind " + kind);
+        try {
+            byte[] applied = tracker.apply(CODE, new Response(Protocol.STATUS_OK, body)).getBody();
+            if (!Arrays.equals(applied, listing))
+                fail(what, String.format("applied listing has %d bytes, expected %d, or differs", applied.length, listing.length));
+        } catch (Exception ex) {
+            fail(what, ex.toString());
+        }
+        return kind;
+    }
+
+    private static void fail(String what, String why)
+    {
+        if (++failures <= 10)
+            System.out.format("%s: %s\n", what, why);
+    }
+
+    // Inserts, removes, changes, duplicates or moves a few lines, or sometimes leaves the listing as it is.
+    private static void edit(Random random, List<String> lines)
+    {
+        if (random.nextInt(5) == 0)
+            return;
+        for (int n = 1 + random.nextInt(4); n > 0; --n)
+        {
+            int at = lines.isEmpty() ? 0 : random.nextInt(lines.size());
+            switch (lines.isEmpty() ? 0 : random.nextInt(5))
+            {
+                case 0:
+                    lines.add(random.nextInt(lines.size() + 1), randomLine(random));
+                    break;
+                case 1:
+                    lines.remove(at);
+                    break;
+                case 2:
+                    lines.set(at, randomLine(random));
+                    break;
+                case 3:
+                    lines.add(random.nextInt(lines.size() + 1), lines.get(at));
+                    break;
+                default:
+                    lines.add(random.nextInt(lines.size()), lines.remove(at));
+                    break;
+            }
+        }
+        if (random.nextInt(200) == 0)
+            lines.clear();
+    }
+
+    // A short line, sometimes empty, of any bytes but the newline.
+    private static String randomLine(Random random)
+    {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        for (int n = random.nextInt(4) == 0 ? 0 : random.nextInt(30); n > 0; --n)
+        {
+            int c = random.nextInt(256);
+            b.write(c == '\n' ? ' ' : c);
+        }
+        return new String(b.toByteArray(), ISO_8859_1);
+    }
+}
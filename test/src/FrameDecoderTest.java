@@ -0,0 +1,187 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Checks that FrameDecoder reassembles responses from a stream cut into pieces at random points,
+ * including one-byte and empty pieces: plain and compressed frames, and streamed responses of PARTIAL frames
+ * (some compressed, some not) ending in a final frame of any status.
+ * Also checks that frames with a length over Protocol.MAX_FRAME_LENGTH, or negative,
+ * and compressed payloads claiming such a length, are rejected with an IOException.
+ * Run with: make test
+ */
+public class FrameDecoderTest
+{
+    private static final int STREAMS = 300;
+    private static final byte[] FINAL_STATUSES = { Protocol.STATUS_OK, Protocol.STATUS_UNKNOWN_OPCODE, Protocol.STATUS_ERROR, Protocol.STATUS_BUSY };
+
+    private static int failures;
+
+    // A response as the decoder should give it back.
+    private static class Expected
+    {
+        byte status;
+        byte[] body;
+        long wireSize;
+    }
+
+    public static void main(String[] args)
+    {
+        Random random = new Random(1);
+        for (int s = 0; s < STREAMS; ++s)
+        {
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            List<Expected> expected = new ArrayList<>();
+            for (int r = 1 + random.nextInt(10); r > 0; --r)
+                expected.add(writeResponse(random, wire));
+            decode(random, wire.toByteArray(), expected, "stream " + s);
+        }
+
+        byte[] ok = frame(Protocol.STATUS_OK, new byte[] { 'h', 'i' });
+        rejects(concat(header(Protocol.STATUS_OK, Protocol.MAX_FRAME_LENGTH + 1), ok), "length over the maximum");
+        rejects(concat(header(Protocol.STATUS_PARTIAL, Integer.MIN_VALUE), ok), "negative length");
+        rejects(header(Protocol.STATUS_OK, -1), "length -1");
+        byte[] claim = ByteBuffer.allocate(8).putInt(Protocol.MAX_FRAME_LENGTH + 1).putInt(0).array();
+        rejects(frame((byte)(Protocol.STATUS_OK | Protocol.STATUS_COMPRESSED), claim), "compressed length over the maximum");
+
+        if (failures > 0)
+        {
+            System.out.format("FAILED: %d frame decoding checks.\n", failures);
+            System.exit(1);
+        }
+        System.out.format("OK: %d frame streams decode at random split points; oversized lengths are rejected.\n", STREAMS);
+    }
+
+    // Writes a response to the wire as zero or more PARTIAL frames and a final frame, and returns what it should decode to.
+    private static Expected writeResponse(Random random, ByteArrayOutputStream wire)
+    {
+        Expected e = new Expected();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int partials = random.nextInt(3) == 0 ? 1 + random.nextInt(4) : 0;
+        for (int i = 0; i <= partials; ++i)
+        {
+            byte status = i < partials ? Protocol.STATUS_PARTIAL : FINAL_STATUSES[random.nextInt(FINAL_STATUSES.length)];
+            byte[] payload = randomPayload(random);
+            body.write(payload, 0, payload.length);
+            byte[] onWire = payload;
+            if (random.nextBoolean())
+            {
+                ByteBuffer compressed = Compression.compress(ByteBuffer.wrap(payload));
+                if (compressed != null)
+                {
+                    onWire = new byte[compressed.remaining()];
+                    compressed.get(onWire);
+                    status |= Protocol.STATUS_COMPRESSED;
+                }
+            }
+            byte[] f = frame(status, onWire);
+            wire.write(f, 0, f.length);
+            e.status = (byte)(status & ~Protocol.STATUS_COMPRESSED);
+            e.wireSize += f.length;
+        }
+        e.body = body.toByteArray();
+        return e;
+    }
+
+    // Feeds the wire bytes in random pieces, polling as it goes, and compares what comes out with what was sent.
+    private static void decode(Random random, byte[] wire, List<Expected> expected, String what)
+    {
+        FrameDecoder decoder = new FrameDecoder();
+        List<Response> got = new ArrayList<>();
+        try {
+            for (int at = 0; at < wire.length; )
+            {
+                int n = Math.min(wire.length - at, random.nextInt(4) == 0 ? random.nextInt(2) : random.nextInt(64));
+                if (random.nextBoolean())
+                    decoder.feed(wire, at, n);
+                else
+                    decoder.feed(ByteBuffer.wrap(Arrays.copyOfRange(wire, at, at + n)));
+                at += n;
+                for (Response r; (r = decoder.poll()) != null; )
+                    got.add(r);
+            }
+        } catch (IOException ex) {
+            fail(what, ex.toString());
+            return;
+        }
+        if (decoder.isPartial())
+            fail(what, "decoder still holds part of a response");
+        if (got.size() != expected.size())
+        {
+            fail(what, String.format("decoded %d responses, expected %d", got.size(), expected.size()));
+            return;
+        }
+        for (int i = 0; i < got.size(); ++i)
+        {
+            Response r = got.get(i);
+            Expected e = expected.get(i);
+            if (r.getStatus() != e.status || !Arrays.equals(r.getBody(), e.body) || r.getWireSize() != e.wireSize)
+                fail(what, String.format("response %d has status %d, %d bytes, %d on the wire; expected %d, %d bytes, %d on the wire",
+                        i, r.getStatus(), r.getBody().length, r.getWireSize(), e.status, e.body.length, e.wireSize));
+        }
+    }
+
+    // Checks that feeding the bytes, one at a time and all at once, throws an IOException.
+    private static void rejects(byte[] wire, String what)
+    {
+        for (int piece : new int[] { 1, wire.length })
+        {
+            FrameDecoder decoder = new FrameDecoder();
+            try {
+                for (int at = 0; at < wire.length; at += piece)
+                    decoder.feed(wire, at, Math.min(piece, wire.length - at));
+                fail(what, "accepted, fed " + piece + " bytes at a time");
+            } catch (IOException ex) {
+                // Expected.
+            } catch (RuntimeException | OutOfMemoryError ex) {
+                fail(what, ex.toString());
+            }
+        }
+    }
+
+    private static void fail(String what, String why)
+    {
+        if (++failures <= 10)
+            System.out.format("%s: %s\n", what, why);
+    }
+
+    // Empty, random bytes, or repetitive text that compresses well.
+    private static byte[] randomPayload(Random random)
+    {
+        switch (random.nextInt(4))
+        {
+            case 0:
+                return new byte[0];
+            case 1:
+                byte[] b = new byte[random.nextInt(300)];
+                random.nextBytes(b);
+                return b;
+            default:
+                StringBuilder text = new StringBuilder();
+                for (int n = random.nextInt(200); n > 0; --n)
+                    text.append("tcp 0 0 127.0.0.1:").append(5500 + random.nextInt(10)).append(" ESTABLISHED\n");
+                return text.toString().getBytes();
+        }
+    }
+
+    private static byte[] header(byte status, int length)
+    {
+        return ByteBuffer.allocate(Frame.HEADER_SIZE).put(status).putInt(length).array();
+    }
+
+    private static byte[] frame(byte status, byte[] payload)
+    {
+        return concat(header(status, payload.length), payload);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b)
+    {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+}
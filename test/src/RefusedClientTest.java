@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Checks that a client the pool engine refuses (every worker busy and the queue full, with admission control on)
+ * reads BUSY and then the end of the stream, rather than a connection reset.
+ * Each refused client sends its opcode at once, as real clients do, so the server has unread input when it hangs up.
+ * Run with: make test
+ */
+public class RefusedClientTest
+{
+    private static final int REFUSED_CLIENTS = 200;
+
+    public static void main(String[] args) throws Exception
+    {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ServerLog.setLevel(ServerLog.Level.OFF);
+        Responder responder = new Responder();
+        responder.setAdmissionControl(new AdmissionControl(1000));
+        Project1Server server = new Project1Server(port, 1, 1, responder);
+        server.start();
+
+        // One client for the only worker and one for the only queue slot. They send nothing, so they hold both.
+        List<Socket> holders = new ArrayList<>();
+        int failures = 0;
+        try {
+            for (int i = 0; i < 2; ++i)
+                holders.add(connect(port));
+            Thread.sleep(200); // Let the listener hand them over.
+
+            for (int i = 0; i < REFUSED_CLIENTS; ++i)
+            {
+                try (Socket s = connect(port)) {
+                    s.getOutputStream().write(0x11); // date
+                    InputStream in = s.getInputStream();
+                    int first = in.read();
+                    int next = in.read();
+                    if (first != (Protocol.BUSY & 0xFF) || next != -1)
+                    {
+                        System.out.format("Client %d read %d then %d; expected BUSY then the end of the stream.\n", i, first, next);
+                        ++failures;
+                    }
+                } catch (IOException ex) {
+                    System.out.format("Client %d failed: %s\n", i, ex);
+                    ++failures;
+                }
+            }
+        } finally {
+            for (Socket s : holders)
+                s.close();
+            server.stop(1000);
+        }
+
+        if (failures > 0)
+        {
+            System.out.format("FAILED: %d of %d refused clients did not read BUSY.\n", failures, REFUSED_CLIENTS);
+            System.exit(1);
+        }
+        System.out.format("OK: %d refused clients read BUSY.\n", REFUSED_CLIENTS);
+    }
+
+    private static Socket connect(int port) throws IOException
+    {
+        Socket s = new Socket();
+        s.connect(new InetSocketAddress("127.0.0.1", port), 2000);
+        s.setSoTimeout(5000);
+        return s;
+    }
+}
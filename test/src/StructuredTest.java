@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Checks that Structured.toText reports every malformed payload with an IOException and nothing else,
+ * since callers such as FanOut only catch that: real responses cut short or with random bytes changed,
+ * and a string length that runs past the end of the payload.
+ * Run with: make test
+ */
+public class StructuredTest
+{
+    private static final byte[] CODES = { 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+    private static final int MUTATIONS = 20000;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception
+    {
+        // A users response claiming a 200-byte name with only 3 bytes left.
+        check((byte)0x55, new byte[] { Structured.DATA, 0, 0, 0, 1, (byte)200, 'a', 'b', 'c' }, "overlong string");
+
+        Random random = new Random(1);
+        for (byte code : CODES)
+        {
+            byte structured = (byte)(code | Protocol.STRUCTURED);
+            byte[] payload = bytesOf(ServerCommands.respondStructured(structured));
+            check(structured, payload, "real response");
+            for (int n = 0; n < payload.length; ++n)
+                check(structured, Arrays.copyOf(payload, n), "cut to " + n + " bytes");
+            for (int i = 0; i < MUTATIONS / CODES.length; ++i)
+            {
+                byte[] mutated = payload.clone();
+                for (int k = 1 + random.nextInt(4); k > 0; --k)
+                    mutated[1 + random.nextInt(mutated.length - 1)] = (byte)random.nextInt(256);
+                check(structured, mutated, "mutated");
+            }
+        }
+
+        if (failures > 0)
+        {
+            System.out.format("FAILED: %d malformed payloads threw something other than IOException.\n", failures);
+            System.exit(1);
+        }
+        System.out.println("OK: malformed structured responses throw IOException.");
+    }
+
+    private static void check(byte code, byte[] payload, String what)
+    {
+        try {
+            Structured.toText(code, payload);
+        } catch (IOException ex) {
+            // Expected for anything malformed.
+        } catch (RuntimeException ex) {
+            if (++failures <= 10)
+                System.out.format("%s for opcode %02x (%s): %s\n", what, code & 0xFF, Arrays.toString(payload).length() > 80 ? payload.length + " bytes" : Arrays.toString(payload), ex);
+        }
+    }
+
+    private static byte[] bytesOf(ByteBuffer b)
+    {
+        byte[] bytes = new byte[b.remaining()];
+        b.duplicate().get(bytes);
+        return bytes;
+    }
+}